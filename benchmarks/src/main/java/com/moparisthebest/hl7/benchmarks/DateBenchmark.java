@@ -0,0 +1,75 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7.benchmarks;
+
+import com.moparisthebest.hl7.Message;
+import com.moparisthebest.hl7.SubComponent;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.time.Instant;
+import java.time.temporal.TemporalAccessor;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DateBenchmark {
+
+    private SubComponent withOffset, dateOnly, scratch;
+    private final Instant now = Instant.now();
+
+    @Setup
+    public void setup() throws ParseException {
+        final Message msg = new Message(Messages.ADT);
+        withOffset = msg.getLine("MSH").getField(7);
+        dateOnly = msg.getLine("PID").getField(7);
+        scratch = new Message().line("ZZZ").field(1);
+    }
+
+    @Benchmark
+    public TemporalAccessor parseWithOffset() {
+        return withOffset.date();
+    }
+
+    @Benchmark
+    public TemporalAccessor parseDate() {
+        return dateOnly.date();
+    }
+
+    @Benchmark
+    public String format() {
+        scratch.date(now);
+        return scratch.value();
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7.benchmarks;
+
+import com.moparisthebest.hl7.Encoding;
+import com.moparisthebest.hl7.Message;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EscapeBenchmark {
+
+    private final Encoding enc = Message.DEFAULT_ENCODING;
+
+    private final String plain = "2222 HOME STREET GREENSBORO NC 27401-1020";
+    private final String special = "2222 HOME | STREET ^ GREENSBORO & NC ~ 27401\\1020";
+    private final String escaped = enc.encode(special);
+
+    @Benchmark
+    public String encodePlain() {
+        return enc.encode(plain);
+    }
+
+    @Benchmark
+    public String encodeEscapes() {
+        return enc.encode(special);
+    }
+
+    @Benchmark
+    public String decodePlain() {
+        return enc.decode(plain);
+    }
+
+    @Benchmark
+    public String decodeEscapes() {
+        return enc.decode(escaped);
+    }
+}
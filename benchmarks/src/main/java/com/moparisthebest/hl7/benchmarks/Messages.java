@@ -0,0 +1,63 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7.benchmarks;
+
+/**
+ * Messages the benchmarks run against, built once so every benchmark sees exactly the same text.
+ */
+final class Messages {
+
+    private Messages() {
+    }
+
+    static final String ADT = "MSH|^~\\&|ADT1|GOOD HEALTH HOSPITAL|GHH LAB, INC.|GOOD HEALTH HOSPITAL|20160722153849.854-0400||ADT^A01^ADT_A01|MSG00001|P|2.5.1\r" +
+            "EVN|A01|20160722153849\r" +
+            "PID|1||PATID1234^5^M11^ADT1^MR^GOOD HEALTH HOSPITAL~123456789^^^USSSA^SS||EVERYMAN^ADAM^A^III||19610615|M||C|2222 HOME STREET^^GREENSBORO^NC^27401-1020|GL|(555) 555-2004|(555)555-2004||S||PATID12345001^2^M10^ADT1^AN^A|444333333|987654^NC\r" +
+            "NK1|1|NUCLEAR^NELDA^W|SPO^SPOUSE||||NK^NEXT OF KIN\r" +
+            "PV1|1|I|2000^2012^01||||004777^ATTEND^AARON^A|||SUR||||ADM|A0|\r";
+
+    /**
+     * @return an ORU with obx results, each with a little escaped text, big like lab results with notes get
+     */
+    static String oru(final int obx) {
+        final StringBuilder sb = new StringBuilder(obx * 96 + 512);
+        sb.append("MSH|^~\\&|LAB|GOOD HEALTH HOSPITAL|EHR|GOOD HEALTH HOSPITAL|20160722153849.854-0400||ORU^R01^ORU_R01|MSG00002|P|2.5.1\r");
+        sb.append("PID|1||PATID1234^5^M11^ADT1^MR^GOOD HEALTH HOSPITAL||EVERYMAN^ADAM^A^III||19610615|M\r");
+        sb.append("OBR|1|845439^GHH OE|1045813^GHH LAB|15545^GLUCOSE|||201607221530|||||||||555-55-5555^PRIMARY^PATRICIA P^^^^MD^^|||||||||F\r");
+        for(int i = 1; i <= obx; ++i)
+            sb.append("OBX|").append(i).append("|NM|1554-5^GLUCOSE^LN^").append(i).append("||").append(100 + i % 50)
+                    .append("|mg/dL|70\\T\\105|N|||F|||201607221530\r");
+        return sb.toString();
+    }
+
+    static final String ORU = oru(500);
+
+    static String of(final String name) {
+        switch(name) {
+            case "ADT":
+                return ADT;
+            case "ORU":
+                return ORU;
+            default:
+                throw new IllegalArgumentException("no message named " + name);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+/**
+ * A MessageProcessor that only ever responds with a plain ACK, which Server, in every mode, writes straight out with an
+ * AckTemplate instead of building a Message with msa(), unless process is overridden, then it's called like any other.
+ */
+public interface AckProcessor extends MessageProcessor {
+
+    /**
+     * @return how to acknowledge msg, never null
+     */
+    AckTemplate.Code acknowledge(final Message msg);
+
+    @Override
+    default Message process(final Message msg) {
+        return msg.msa(acknowledge(msg).name());
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.time.Instant;
+
+/**
+ * Writes ACKs straight to bytes, the same ACK msa(ackCode) would build, without copying or building any Message.
+ *
+ * Everything that doesn't depend on the message being acknowledged is encoded once up front, the rest is spliced in
+ * from the original's MSH, as-is where it was never changed and is in a compatible encoding:
+ * <pre>
+ * MSH|^~\&amp;|MSH-5|MSH-6|MSH-3|MSH-4|now|MSH-8|ACK^001^ACK_001|MSH-10|MSH-11...
+ * MSA|ackCode|MSH-10
+ * ERR|||errorCode^^HL70357|E||||text    only if there's an errorCode or text, W instead of E if accepted
+ * </pre>
+ *
+ * Holds scratch space, so like ByteMessageWriter it's meant to be used by one connection or thread at a time.
+ */
+public final class AckTemplate {
+
+    /**
+     * Acknowledgment codes, HL7 table 0008, original mode A*, enhanced mode C*
+     */
+    public enum Code {
+        AA, AE, AR, CA, CE, CR;
+
+        private final byte[] bytes = name().getBytes(StandardCharsets.US_ASCII);
+
+        public boolean accepted() {
+            return this == AA || this == CA;
+        }
+    }
+
+    // MSH-10 is the last field needed on its own, it's also where the copy of the rest of MSH starts
+    private static final int CONTROL_ID = 10;
+
+    private final Encoding enc;
+    // everything that only depends on enc, already in enc's charset
+    private final byte[] head, messageType, msa, err, errorTable, tail;
+
+    private final byte[] now = new byte[23];
+    // where each MSH field starts in raw text being acknowledged, up to the one after MSH-10
+    private final int[] starts = new int[CONTROL_ID + 2];
+
+    public AckTemplate(final Encoding enc) {
+        this.enc = enc;
+        final char f = enc.fieldDelimiter, c = enc.componentDelimiter, s = enc.segmentDelimiter;
+        this.head = bytes("" + enc.verticalTab + "MSH" + f + c + enc.repetitionDelimiter + enc.escapeCharacter + enc.subComponentDelimiter + f);
+        this.messageType = bytes("ACK" + c + "001" + c + "ACK_001");
+        this.msa = bytes(s + "MSA" + f);
+        this.err = bytes(s + "ERR" + f + f + f);
+        this.errorTable = bytes("" + c + c + "HL70357");
+        this.tail = bytes("" + enc.fileSeperator + s);
+    }
+
+    private byte[] bytes(final String s) {
+        // same as ByteMessageWriter, '?' for anything not US-ASCII if enc has no charset
+        final Charset charset = enc.charset == null ? StandardCharsets.US_ASCII : enc.charset;
+        return s.getBytes(charset);
+    }
+
+    public Encoding getEncoding() {
+        return enc;
+    }
+
+    /**
+     * Writes the ACK of in wrapped in an MLLP frame, like msa(code.name()).writeTo(w, enc) would
+     */
+    public ByteMessageWriter writeFrame(final ByteMessageWriter w, final Message in, final Code code) {
+        return writeFrame(w, in, code, null, null);
+    }
+
+    /**
+     * @param errorCode HL7 table 0357 code for ERR-3, like 207 for an application internal error, or null
+     * @param text      for ERR-8, or null, no ERR segment is written if both this and errorCode are null
+     */
+    public ByteMessageWriter writeFrame(final ByteMessageWriter w, final Message in, final Code code, final String errorCode, final String text) {
+        final Line msh = in.getLine("MSH");
+        w.charset(enc.charset);
+        w.bytes(head);
+        msh.getField(5).encode(w, enc);
+        msh.getField(6).encode(w, enc);
+        msh.getField(3).encode(w, enc);
+        msh.getField(4).encode(w, enc);
+        now(w);
+        msh.getField(8).encode(w, enc);
+        w.bytes(messageType);
+        w.delimiter(enc.fieldDelimiter);
+        for(int i = CONTROL_ID, n = msh.numSubComponents(); i < n; ++i)
+            msh.getField(i).encode(w, enc);
+        w.trim(enc.fieldDelimiter, Integer.MAX_VALUE);
+        w.bytes(msa);
+        w.bytes(code.bytes);
+        w.delimiter(enc.fieldDelimiter);
+        msh.getField(CONTROL_ID).encode(w, enc);
+        return end(w, code, errorCode, text);
+    }
+
+    public ByteMessageWriter writeFrame(final ByteMessageWriter w, final CharSequence in, final Code code) throws ParseException {
+        return writeFrame(w, in, code, null, null);
+    }
+
+    /**
+     * Like writeFrame(w, new Message(in), ...), but only finds the MSH fields it needs in in, and copies them as-is,
+     * in is only parsed if it isn't in an encoding compatible with this one
+     */
+    public ByteMessageWriter writeFrame(final ByteMessageWriter w, CharSequence in, final Code code, final String errorCode, final String text) throws ParseException {
+        final int mshIdx = Encoding.indexOf(in, "MSH", 0);
+        final Encoding inEnc = Encoding.detect(in, mshIdx, enc);
+        if(!enc.compatible(inEnc))
+            return writeFrame(w, new Message(in), code, errorCode, text);
+        if(in instanceof ByteChars && inEnc.charset != null)
+            in = ((ByteChars) in).withCharset(inEnc.charset);
+        int end = Encoding.indexOf(in, inEnc.segmentDelimiter, mshIdx + 8, in.length());
+        if(end == -1)
+            end = in.length();
+        // MSH-2 starts right after MSH-1, missing fields start past the end so they come out empty
+        int n = 2;
+        starts[n] = mshIdx + 4;
+        for(int i = starts[n]; i < end && n < starts.length - 1; ++i)
+            if(in.charAt(i) == inEnc.fieldDelimiter)
+                starts[++n] = i + 1;
+        while(n < starts.length - 1)
+            starts[++n] = end + 1;
+
+        w.charset(enc.charset);
+        w.bytes(head);
+        field(w, in, 5, end);
+        field(w, in, 6, end);
+        field(w, in, 3, end);
+        field(w, in, 4, end);
+        now(w);
+        field(w, in, 8, end);
+        w.bytes(messageType);
+        w.delimiter(enc.fieldDelimiter);
+        // MSH-10 on, exactly as it came in
+        w.text(in, Math.min(starts[CONTROL_ID], end), end);
+        w.trim(enc.fieldDelimiter, Integer.MAX_VALUE);
+        w.bytes(msa);
+        w.bytes(code.bytes);
+        w.delimiter(enc.fieldDelimiter);
+        field(w, in, CONTROL_ID, end);
+        return end(w, code, errorCode, text);
+    }
+
+    private void field(final ByteMessageWriter w, final CharSequence in, final int field, final int end) {
+        w.text(in, Math.min(starts[field], end), Math.min(starts[field + 1] - 1, end));
+        w.delimiter(enc.fieldDelimiter);
+    }
+
+    private void now(final ByteMessageWriter w) {
+        final Instant now = Instant.now();
+        if(Dtm.format(now, this.now, 0))
+            w.bytes(this.now);
+        else
+            w.text(Dtm.format(now));
+        w.delimiter(enc.fieldDelimiter);
+    }
+
+    private ByteMessageWriter end(final ByteMessageWriter w, final Code code, final String errorCode, final String text) {
+        w.trim(enc.fieldDelimiter, Integer.MAX_VALUE);
+        if(errorCode != null || text != null) {
+            w.bytes(err);
+            if(errorCode != null) {
+                w.escaped(errorCode, enc);
+                w.bytes(errorTable);
+            }
+            w.delimiter(enc.fieldDelimiter);
+            w.text(code.accepted() ? "W" : "E");
+            for(int i = 0; i < 4; ++i)
+                w.delimiter(enc.fieldDelimiter);
+            if(text != null)
+                w.escaped(text, enc);
+            w.trim(enc.fieldDelimiter, Integer.MAX_VALUE);
+        }
+        w.bytes(tail);
+        return w;
+    }
+}
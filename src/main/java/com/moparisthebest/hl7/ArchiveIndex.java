@@ -0,0 +1,518 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Finds messages in files of HL7, like the ones BatchReader reads, by MSH-10, PID-3 or MSH-7, without reading
+ * anything but the messages found.
+ *
+ * Each file gets an index next to it, named the same plus SUFFIX, holding the offset, length and MSH-7 of every
+ * message, sorted by MSH-7, and every MSH-10 and PID-3.1 sorted by value then MSH-7, looked up by binary search
+ * straight from the memory mapped index. An index is only rebuilt if its file's size or modified time changes.
+ */
+public final class ArchiveIndex implements Closeable {
+
+    public static final String SUFFIX = ".idx";
+
+    // 2 since CRLF files were indexed without any PID-3, so those get rebuilt
+    private static final int MAGIC = 0x484C3749, VERSION = 2;
+    // magic, version, file size, file modified, messages, control ids, patient ids
+    private static final int HEADER = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    // offset, length, timestamp, and key position, message
+    private static final int MESSAGE = 8 + 4 + 8, KEY = 4 + 4;
+    // files are indexed this many bytes at a time, so big ones are spread across threads too
+    private static final long CHUNK = 64 * 1024 * 1024;
+    // MSH-7 missing or invalid, sorts first
+    private static final long NO_TIME = Long.MIN_VALUE;
+
+    private static final MessagePath CONTROL_ID = MessagePath.compile("MSH-10"), TIMESTAMP = MessagePath.compile("MSH-7.1"),
+            PATIENT_ID = MessagePath.compile("PID-3[*].1");
+
+    private final List<FileIndex> indexes;
+    private final Charset charset;
+    private final ConcurrentMap<Path, FileChannel> channels = new ConcurrentHashMap<>();
+
+    private ArchiveIndex(final List<FileIndex> indexes, final Charset charset) {
+        this.indexes = indexes;
+        this.charset = charset;
+    }
+
+    /**
+     * Indexes every one of files that isn't already, on executor, then opens them all
+     *
+     * @param charset what the files are if MSH-18 doesn't say, null means ISO-8859-1
+     */
+    public static ArchiveIndex build(final Collection<Path> files, final Charset charset, final Executor executor) throws IOException {
+        final List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for(final Path file : files)
+            if(FileIndex.open(file) == null)
+                pending.add(index(file, charset, executor));
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            final Throwable cause = e.getCause();
+            if(cause instanceof UncheckedIOException)
+                throw ((UncheckedIOException) cause).getCause();
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+        return open(files, charset);
+    }
+
+    /**
+     * @throws IOException if any of files hasn't been indexed, or has changed since, see build
+     */
+    public static ArchiveIndex open(final Collection<Path> files, final Charset charset) throws IOException {
+        final List<FileIndex> ret = new ArrayList<>(files.size());
+        for(final Path file : files) {
+            final FileIndex index = FileIndex.open(file);
+            if(index == null)
+                throw new IOException("missing or out of date index for " + file);
+            ret.add(index);
+        }
+        return new ArchiveIndex(ret, charset);
+    }
+
+    private static CompletableFuture<Void> index(final Path file, final Charset charset, final Executor executor) throws IOException {
+        final long size = Files.size(file), modified = Files.getLastModifiedTime(file).toMillis();
+        final BatchReader reader = new BatchReader(FileChannel.open(file, StandardOpenOption.READ), charset, Projection.NONE, BatchReader.DEFAULT_WINDOW_SIZE);
+        final List<CompletableFuture<List<Entry>>> chunks = new ArrayList<>();
+        try {
+            for(final BatchReader chunk : reader.split(CHUNK))
+                chunks.add(CompletableFuture.supplyAsync(() -> scan(chunk), executor));
+        } catch (IOException | RuntimeException e) {
+            reader.close();
+            throw e;
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            final List<Entry> entries = new ArrayList<>();
+            for(final CompletableFuture<List<Entry>> chunk : chunks)
+                entries.addAll(chunk.join());
+            try {
+                write(file, size, modified, entries);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, executor).whenComplete((v, e) -> {
+            try {
+                reader.close();
+            } catch (IOException e2) {
+                // ignore
+            }
+        });
+    }
+
+    private static List<Entry> scan(final BatchReader reader) {
+        final List<Entry> ret = new ArrayList<>();
+        try {
+            while(true) {
+                final Message msg;
+                try {
+                    if((msg = reader.next()) == null)
+                        return ret;
+                } catch (ParseException e) {
+                    // nothing in it to find it by anyway
+                    continue;
+                }
+                ret.add(new Entry(reader.getOffset(), (int) reader.getLength(), msg));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void write(final Path file, final long size, final long modified, final List<Entry> entries) throws IOException {
+        final List<Key> controlIds = new ArrayList<>(), patientIds = new ArrayList<>();
+        final Integer[] byTime = new Integer[entries.size()];
+        for(int x = 0; x < byTime.length; ++x) {
+            final Entry e = entries.get(x);
+            byTime[x] = x;
+            if(e.controlId != null)
+                controlIds.add(new Key(e.controlId, x, e.timestamp));
+            for(final String id : e.patientIds)
+                patientIds.add(new Key(id, x, e.timestamp));
+        }
+        // stable, so ties stay in file order
+        Arrays.sort(byTime, Comparator.comparingLong(x -> entries.get(x).timestamp));
+        controlIds.sort(null);
+        patientIds.sort(null);
+
+        final Path tmp = file.resolveSibling(file.getFileName() + SUFFIX + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(size);
+            out.writeLong(modified);
+            out.writeInt(entries.size());
+            out.writeInt(controlIds.size());
+            out.writeInt(patientIds.size());
+            for(final Entry e : entries) {
+                out.writeLong(e.offset);
+                out.writeInt(e.length);
+                out.writeLong(e.timestamp);
+            }
+            for(final Integer x : byTime)
+                out.writeInt(x);
+            // each distinct key is only stored once, patient ids especially repeat a lot
+            final Map<String, Integer> positions = new HashMap<>();
+            final List<byte[]> keys = new ArrayList<>();
+            long next = 0;
+            for(final List<Key> section : Arrays.asList(controlIds, patientIds)) {
+                for(final Key k : section) {
+                    Integer pos = positions.get(k.value);
+                    if(pos == null) {
+                        if(next > Integer.MAX_VALUE)
+                            throw new IOException("too many distinct ids to index in " + file);
+                        pos = (int) next;
+                        positions.put(k.value, pos);
+                        keys.add(k.bytes);
+                        next += 2 + k.bytes.length;
+                    }
+                    out.writeInt(pos);
+                    out.writeInt(k.message);
+                }
+            }
+            for(final byte[] key : keys) {
+                out.writeShort(key.length);
+                out.write(key);
+            }
+        }
+        Files.move(tmp, file.resolveSibling(file.getFileName() + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static byte[] bytes(final String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return every message with MSH-10 of controlId, in MSH-7 order
+     */
+    public List<Hit> byControlId(final String controlId) {
+        final byte[] key = bytes(controlId);
+        final List<Hit> ret = new ArrayList<>();
+        for(final FileIndex index : indexes)
+            index.find(index.controlIds, index.controlIdCount, key, NO_TIME, Long.MAX_VALUE, ret);
+        ret.sort(null);
+        return ret;
+    }
+
+    /**
+     * @param patientId PID-3.1 of any repetition
+     * @param from      earliest MSH-7 (inclusive), or null for no limit, which includes messages without a valid MSH-7
+     * @param to        latest MSH-7 (exclusive), or null for no limit
+     * @return every matching message, in MSH-7 order
+     */
+    public List<Hit> byPatientId(final String patientId, final Instant from, final Instant to) {
+        final byte[] key = bytes(patientId);
+        final long fromMillis = from == null ? NO_TIME : from.toEpochMilli(), toMillis = to == null ? Long.MAX_VALUE : to.toEpochMilli();
+        final List<Hit> ret = new ArrayList<>();
+        for(final FileIndex index : indexes)
+            index.find(index.patientIds, index.patientIdCount, key, fromMillis, toMillis, ret);
+        ret.sort(null);
+        return ret;
+    }
+
+    /**
+     * @return every message with MSH-7 in [from, to), in MSH-7 order
+     */
+    public List<Hit> byTime(final Instant from, final Instant to) {
+        final long fromMillis = from.toEpochMilli(), toMillis = to.toEpochMilli();
+        final List<Hit> ret = new ArrayList<>();
+        for(final FileIndex index : indexes)
+            index.find(fromMillis, toMillis, ret);
+        ret.sort(null);
+        return ret;
+    }
+
+    /**
+     * Reads just hit's bytes out of its file and parses them
+     */
+    public Message read(final Hit hit) throws IOException, ParseException {
+        FileChannel ch = channels.get(hit.file);
+        if(ch == null) {
+            final FileChannel opened = FileChannel.open(hit.file, StandardOpenOption.READ);
+            ch = channels.putIfAbsent(hit.file, opened);
+            if(ch == null)
+                ch = opened;
+            else
+                opened.close();
+        }
+        final byte[] bytes = new byte[hit.length];
+        final ByteBuffer bb = ByteBuffer.wrap(bytes);
+        while(bb.hasRemaining())
+            if(ch.read(bb, hit.offset + bb.position()) == -1)
+                throw new EOFException(hit.file + " is shorter than when it was indexed");
+        return new Message(BatchReader.segments(bytes, charset));
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException first = null;
+        for(final FileChannel ch : channels.values()) {
+            try {
+                ch.close();
+            } catch (IOException e) {
+                if(first == null)
+                    first = e;
+            }
+        }
+        channels.clear();
+        if(first != null)
+            throw first;
+    }
+
+    /**
+     * Where one message is, and its MSH-7
+     */
+    public static final class Hit implements Comparable<Hit> {
+
+        private final Path file;
+        private final long offset, timestamp;
+        private final int length;
+
+        private Hit(final Path file, final long offset, final int length, final long timestamp) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.timestamp = timestamp;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return MSH-7, or null if it was missing or invalid
+         */
+        public Instant getTimestamp() {
+            return timestamp == NO_TIME ? null : Instant.ofEpochMilli(timestamp);
+        }
+
+        @Override
+        public int compareTo(final Hit o) {
+            int ret = Long.compare(timestamp, o.timestamp);
+            if(ret == 0)
+                ret = file.compareTo(o.file);
+            return ret != 0 ? ret : Long.compare(offset, o.offset);
+        }
+
+        @Override
+        public String toString() {
+            return "Hit{" +
+                    "file=" + file +
+                    ", offset=" + offset +
+                    ", length=" + length +
+                    ", timestamp=" + getTimestamp() +
+                    '}';
+        }
+    }
+
+    // one message while indexing
+    private static final class Entry {
+
+        private final long offset, timestamp;
+        private final int length;
+        private final String controlId;
+        private final List<String> patientIds;
+
+        private Entry(final long offset, final int length, final Message msg) {
+            this.offset = offset;
+            this.length = length;
+            final Instant ts = Dtm.parseInstant(TIMESTAMP.value(msg));
+            this.timestamp = ts == null ? NO_TIME : ts.toEpochMilli();
+            final String id = CONTROL_ID.value(msg);
+            this.controlId = id.isEmpty() ? null : id;
+            final List<String> ids = PATIENT_ID.values(msg);
+            ids.removeIf(String::isEmpty);
+            this.patientIds = ids;
+        }
+    }
+
+    private static final class Key implements Comparable<Key> {
+
+        private final String value;
+        private final byte[] bytes;
+        private final int message;
+        private final long timestamp;
+
+        private Key(final String value, final int message, final long timestamp) {
+            final byte[] bytes = bytes(value);
+            // length is stored in 2 bytes
+            this.value = bytes.length > 0xFFFF ? "" : value;
+            this.bytes = bytes.length > 0xFFFF ? new byte[0] : bytes;
+            this.message = message;
+            this.timestamp = timestamp;
+        }
+
+        @Override
+        public int compareTo(final Key o) {
+            final int ret = compare(bytes, o.bytes);
+            return ret != 0 ? ret : Long.compare(timestamp, o.timestamp);
+        }
+
+        private static int compare(final byte[] a, final byte[] b) {
+            for(int i = 0, n = Math.min(a.length, b.length); i < n; ++i)
+                if(a[i] != b[i])
+                    return (a[i] & 0xFF) - (b[i] & 0xFF);
+            return a.length - b.length;
+        }
+    }
+
+    private static final class FileIndex {
+
+        private final Path file;
+        private final ByteBuffer index;
+        private final int messages, controlIdCount, patientIdCount;
+        // where each section starts
+        private final int byTime, controlIds, patientIds, keys;
+
+        private FileIndex(final Path file, final ByteBuffer index) {
+            this.file = file;
+            this.index = index;
+            this.messages = index.getInt(24);
+            this.controlIdCount = index.getInt(28);
+            this.patientIdCount = index.getInt(32);
+            this.byTime = HEADER + messages * MESSAGE;
+            this.controlIds = byTime + messages * 4;
+            this.patientIds = controlIds + controlIdCount * KEY;
+            this.keys = patientIds + patientIdCount * KEY;
+        }
+
+        /**
+         * @return file's index, or null if it doesn't have one, or it's out of date
+         */
+        static FileIndex open(final Path file) throws IOException {
+            final Path p = file.resolveSibling(file.getFileName() + SUFFIX);
+            if(!Files.exists(p))
+                return null;
+            final ByteBuffer index;
+            try (FileChannel ch = FileChannel.open(p, StandardOpenOption.READ)) {
+                if(ch.size() < HEADER)
+                    return null;
+                if(ch.size() > Integer.MAX_VALUE)
+                    throw new IOException("index of " + file + " is too big to map, split the file up");
+                index = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            }
+            if(index.getInt(0) != MAGIC || index.getInt(4) != VERSION || index.getLong(8) != Files.size(file)
+                    || index.getLong(16) != Files.getLastModifiedTime(file).toMillis())
+                return null;
+            return new FileIndex(file, index);
+        }
+
+        private long timestamp(final int message) {
+            return index.getLong(HEADER + message * MESSAGE + 12);
+        }
+
+        private Hit hit(final int message) {
+            final int pos = HEADER + message * MESSAGE;
+            return new Hit(file, index.getLong(pos), index.getInt(pos + 8), index.getLong(pos + 12));
+        }
+
+        // key at i in section against key
+        private int compare(final int section, final int i, final byte[] key) {
+            final int pos = keys + index.getInt(section + i * KEY);
+            final int length = index.getShort(pos) & 0xFFFF;
+            for(int x = 0, n = Math.min(length, key.length); x < n; ++x) {
+                final int b = index.get(pos + 2 + x) & 0xFF;
+                if(b != (key[x] & 0xFF))
+                    return b - (key[x] & 0xFF);
+            }
+            return length - key.length;
+        }
+
+        void find(final int section, final int count, final byte[] key, final long from, final long to, final List<Hit> hits) {
+            int lo = 0, hi = count;
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                int c = compare(section, mid, key);
+                if(c == 0)
+                    c = Long.compare(timestamp(index.getInt(section + mid * KEY + 4)), from);
+                if(c < 0)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            for(int i = lo; i < count && compare(section, i, key) == 0; ++i) {
+                final int message = index.getInt(section + i * KEY + 4);
+                if(timestamp(message) >= to)
+                    break;
+                hits.add(hit(message));
+            }
+        }
+
+        void find(final long from, final long to, final List<Hit> hits) {
+            int lo = 0, hi = messages;
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if(timestamp(index.getInt(byTime + mid * 4)) < from)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            for(int i = lo; i < messages; ++i) {
+                final int message = index.getInt(byTime + i * 4);
+                if(timestamp(message) >= to)
+                    break;
+                hits.add(hit(message));
+            }
+        }
+    }
+}
@@ -0,0 +1,479 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads messages one at a time out of an HL7 batch file, optionally wrapped in FHS/BHS ... BTS/FTS, by memory mapping
+ * it a window at a time and scanning the bytes for segments starting with MSH, so only the message being parsed is
+ * ever copied onto the heap, no matter how big the file is.
+ *
+ * Segments may be separated by CR, LF, or CRLF, each message is parsed as if its segments were separated by just the
+ * segment delimiter found in its MSH, so CRLF files read like CR ones, and an LF inside a value of a CR file is kept,
+ * anything that isn't in a message or the envelope, like blank lines, is skipped. stream().parallel() splits the file between workers at MSH segments. One pass only, iterator(),
+ * spliterator() or stream() can only be called once.
+ */
+public final class BatchReader implements Iterable<Message>, Closeable {
+
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final int MSH = tag('M', 'S', 'H'), FHS = tag('F', 'H', 'S'), BHS = tag('B', 'H', 'S'),
+            BTS = tag('B', 'T', 'S'), FTS = tag('F', 'T', 'S');
+
+    // below this many bytes a range isn't split any further
+    static final long MIN_SPLIT = 256 * 1024;
+
+    private final FileChannel ch;
+    // only messages starting in [start, end) are read
+    private final long start, end;
+    private final Charset charset;
+    private final Projection projection;
+    private final int windowSize;
+
+    private MappedByteBuffer window;
+    private long windowStart, windowEnd;
+
+    // start of the next segment not scanned yet
+    private long pos;
+    private long offset = -1, length;
+    private String fileHeader, batchHeader, batchTrailer, fileTrailer;
+    private boolean iterated;
+
+    /**
+     * @param charset    what the bytes are if MSH-18 doesn't say, null means ISO-8859-1
+     * @param projection what to parse up front in each message, see Message(CharSequence, Projection)
+     * @param windowSize how much of the file to map at once, a message bigger than this is still read fine
+     */
+    public BatchReader(final FileChannel ch, final Charset charset, final Projection projection, final int windowSize) throws IOException {
+        this(ch, 0, ch.size(), charset, projection, windowSize);
+    }
+
+    /**
+     * Reads only the messages in bytes [start, end) of ch, start and end must be on segment boundaries, like the
+     * offsets getOffset() and getLength() give
+     */
+    public BatchReader(final FileChannel ch, final long start, final long end, final Charset charset, final Projection projection, final int windowSize) {
+        if(windowSize < 1)
+            throw new IllegalArgumentException("windowSize must be at least 1");
+        if(start < 0 || end < start)
+            throw new IllegalArgumentException("invalid range [" + start + ", " + end + ")");
+        this.ch = ch;
+        this.start = this.pos = start;
+        this.end = end;
+        this.charset = charset;
+        this.projection = projection;
+        this.windowSize = windowSize;
+    }
+
+    public BatchReader(final Path file, final Charset charset, final Projection projection) throws IOException {
+        this(FileChannel.open(file, StandardOpenOption.READ), charset, projection, DEFAULT_WINDOW_SIZE);
+    }
+
+    public BatchReader(final Path file) throws IOException {
+        this(file, null, Projection.NONE);
+    }
+
+    private static int tag(final int a, final int b, final int c) {
+        return a << 16 | b << 8 | c;
+    }
+
+    /**
+     * @return the next message in the file, or null at the end
+     * @throws ParseException if the next message can't be parsed, it's skipped, so reading can carry on after it
+     */
+    public Message next() throws IOException, ParseException {
+        while(pos < end) {
+            final long seg = pos;
+            final int tag = tag(seg);
+            pos = nextSegment(seg);
+            if(tag == MSH) {
+                // whatever ends MSH ends every segment of this message, any other line break is in a value
+                final long mshEnd = lineEnd(seg);
+                final byte delimiter = mshEnd < end ? at(mshEnd) : (byte) '\r';
+                while(pos < end && !isBoundary(tag(pos)))
+                    pos = nextSegment(pos, delimiter);
+                offset = seg;
+                length = pos - seg;
+                return new Message(segments(bytes(seg, pos), charset), projection);
+            } else if(tag == FHS) {
+                fileHeader = text(seg, pos);
+            } else if(tag == BHS) {
+                batchHeader = text(seg, pos);
+            } else if(tag == BTS) {
+                batchTrailer = text(seg, pos);
+            } else if(tag == FTS) {
+                fileTrailer = text(seg, pos);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isBoundary(final int tag) {
+        return tag == MSH || tag == BTS || tag == BHS || tag == FTS || tag == FHS;
+    }
+
+    private byte at(final long index) throws IOException {
+        if(index < windowStart || index >= windowEnd) {
+            windowStart = index;
+            windowEnd = Math.min(end, index + windowSize);
+            window = ch.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+        }
+        return window.get((int) (index - windowStart));
+    }
+
+    // first 3 bytes of the segment at index, -1 if there aren't 3
+    private int tag(final long index) throws IOException {
+        if(end - index < 3)
+            return -1;
+        return tag(at(index) & 0xFF, at(index + 1) & 0xFF, at(index + 2) & 0xFF);
+    }
+
+    // first CR or LF at or after index, or end
+    private long lineEnd(long index) throws IOException {
+        byte b;
+        while(index < end && (b = at(index)) != '\r' && b != '\n')
+            ++index;
+        return index;
+    }
+
+    // start of the segment after the one at index, or end
+    private long nextSegment(final long index) throws IOException {
+        return skipLineBreaks(lineEnd(index));
+    }
+
+    // like nextSegment, but only delimiter ends the segment
+    private long nextSegment(long index, final byte delimiter) throws IOException {
+        while(index < end && at(index) != delimiter)
+            ++index;
+        return skipLineBreaks(index);
+    }
+
+    private long skipLineBreaks(long index) throws IOException {
+        byte b;
+        while(index < end && ((b = at(index)) == '\r' || b == '\n'))
+            ++index;
+        return index;
+    }
+
+    /**
+     * @return readers for consecutive ranges of about bytes each, split at MSH segments, that between them cover
+     * everything left in this, sharing its file, so this must stay open until they're done
+     */
+    List<BatchReader> split(final long bytes) throws IOException {
+        final List<BatchReader> ret = new ArrayList<>();
+        long from = pos;
+        while(from < end) {
+            final long to = end - from <= bytes ? end : nextMessage(from + bytes);
+            ret.add(new BatchReader(ch, from, to, charset, projection, windowSize));
+            from = to;
+        }
+        pos = end;
+        return ret;
+    }
+
+    // start of the first message at or after index, or end
+    private long nextMessage(long index) throws IOException {
+        if(index > start)
+            index = nextSegment(index - 1);
+        while(index < end && tag(index) != MSH)
+            index = nextSegment(index);
+        return index;
+    }
+
+    /**
+     * Message only splits on one segmentDelimiter, the one Encoding.detect finds in MSH, so every run of it, and of
+     * CRLF if it is CR, like the CRLF ending each line in most files, is replaced in place with just the delimiter,
+     * and any CR or LF at the very end are dropped. A CR or LF that isn't the delimiter, like an LF in a CR file, is
+     * part of a value and left alone.
+     *
+     * @return b up to what's left
+     */
+    static ByteChars segments(final byte[] b, final Charset charset) {
+        int end = b.length;
+        while(end > 0 && (b[end - 1] == '\r' || b[end - 1] == '\n'))
+            --end;
+        final byte delimiter = segmentDelimiter(b, end);
+        int len = 0;
+        for(int i = 0; i < end; ) {
+            if(lineBreak(b, i, end, delimiter) == 0) {
+                b[len++] = b[i++];
+                continue;
+            }
+            for(int n; (n = lineBreak(b, i, end, delimiter)) > 0; )
+                i += n;
+            if(i < end)
+                b[len++] = delimiter;
+        }
+        return new ByteChars(b, 0, len, charset);
+    }
+
+    /**
+     * @return the segment delimiter Message will find in b, the first line break if there is no MSH, or 0 if it isn't
+     * CR or LF
+     */
+    private static byte segmentDelimiter(final byte[] b, final int end) {
+        final ByteChars s = new ByteChars(b, 0, end, null);
+        try {
+            final char delimiter = Encoding.detect(s, Encoding.indexOf(s, "MSH", 0)).segmentDelimiter;
+            return delimiter == '\r' || delimiter == '\n' ? (byte) delimiter : 0;
+        } catch (ParseException e) {
+            // Message will fail on it anyway, but not because of this
+            for(int i = 0; i < end; ++i)
+                if(b[i] == '\r' || b[i] == '\n')
+                    return b[i];
+            return 0;
+        }
+    }
+
+    // length of the segment break at i, 0 if there isn't one
+    private static int lineBreak(final byte[] b, final int i, final int end, final byte delimiter) {
+        if(delimiter == 0 || b[i] != delimiter)
+            return 0;
+        return delimiter == '\r' && i + 1 < end && b[i + 1] == '\n' ? 2 : 1;
+    }
+
+    private byte[] bytes(final long from, final long to) throws IOException {
+        final long len = to - from;
+        if(len > Integer.MAX_VALUE - 8)
+            throw new IOException("message at byte " + from + " is too big: " + len);
+        final byte[] ret = new byte[(int) len];
+        if(from >= windowStart && to <= windowEnd) {
+            final ByteBuffer bb = window.duplicate();
+            bb.position((int) (from - windowStart));
+            bb.get(ret);
+        } else {
+            // spans windows, just read it rather than remapping
+            final ByteBuffer bb = ByteBuffer.wrap(ret);
+            while(bb.hasRemaining())
+                if(ch.read(bb, from + bb.position()) == -1)
+                    throw new EOFException("file shrank while reading it");
+        }
+        return ret;
+    }
+
+    // segment without its line ending
+    private String text(final long from, long to) throws IOException {
+        byte b;
+        while(to > from && ((b = at(to - 1)) == '\r' || b == '\n'))
+            --to;
+        return new String(bytes(from, to), charset == null ? StandardCharsets.ISO_8859_1 : charset);
+    }
+
+    /**
+     * @return byte offset in the file of the message next() returned last, -1 before the first
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return length in bytes of the message next() returned last, including the line ending after it
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return FHS segment, or null if there wasn't one before the last message read
+     */
+    public String getFileHeader() {
+        return fileHeader;
+    }
+
+    /**
+     * @return BHS segment of the batch the last message read is in, or null
+     */
+    public String getBatchHeader() {
+        return batchHeader;
+    }
+
+    /**
+     * @return the last BTS segment read past, only reached once every message in its batch has been read
+     */
+    public String getBatchTrailer() {
+        return batchTrailer;
+    }
+
+    /**
+     * @return FTS segment, only reached once every message has been read
+     */
+    public String getFileTrailer() {
+        return fileTrailer;
+    }
+
+    /**
+     * IOExceptions are thrown as UncheckedIOException, and messages that can't be parsed as RuntimeException, after
+     * which hasNext() can be called again to carry on with the next message
+     */
+    @Override
+    public Iterator<Message> iterator() {
+        checkIterated();
+        return new Iterator<Message>() {
+            private Message next;
+
+            @Override
+            public boolean hasNext() {
+                if(next == null)
+                    next = uncheckedNext();
+                return next != null;
+            }
+
+            @Override
+            public Message next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                final Message ret = next;
+                next = null;
+                return ret;
+            }
+        };
+    }
+
+    private void checkIterated() {
+        if(iterated)
+            throw new IllegalStateException("BatchReader can only be iterated once");
+        iterated = true;
+    }
+
+    private Message uncheckedNext() {
+        try {
+            return next();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ParseException e) {
+            throw new RuntimeException("can't parse message at byte " + offset + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Splits at MSH segments into ranges of at least MIN_SPLIT bytes, each read by its own BatchReader sharing this
+     * one's file, so the envelope getters on this aren't kept up to date once it's been split
+     */
+    @Override
+    public Spliterator<Message> spliterator() {
+        checkIterated();
+        return new Splitter(this);
+    }
+
+    /**
+     * @return every message left in the file, in order, closing the stream closes this
+     */
+    public Stream<Message> stream() {
+        return stream(false);
+    }
+
+    /**
+     * Parses messages on the common ForkJoinPool, or whichever one the terminal operation is run in, each worker
+     * mapping and parsing its own range of the file
+     *
+     * @param ordered false if messages don't need to come out in file order, which lets things like forEach and
+     *                collect go faster
+     * @return every message left in the file, closing the stream closes this
+     */
+    public Stream<Message> parallelStream(final boolean ordered) {
+        final Stream<Message> ret = stream(true);
+        return ordered ? ret : ret.unordered();
+    }
+
+    private Stream<Message> stream(final boolean parallel) {
+        return StreamSupport.stream(spliterator(), parallel)
+                .onClose(() -> {
+                    try {
+                        close();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+    }
+
+    private final class Splitter implements Spliterator<Message> {
+
+        private final BatchReader reader;
+
+        private Splitter(final BatchReader reader) {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super Message> action) {
+            final Message next = reader.uncheckedNext();
+            if(next == null)
+                return false;
+            action.accept(next);
+            return true;
+        }
+
+        @Override
+        public Spliterator<Message> trySplit() {
+            final long from = reader.pos, to = reader.end;
+            if(to - from < MIN_SPLIT * 2)
+                return null;
+            final long mid;
+            try {
+                mid = reader.nextMessage(from + (to - from) / 2);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if(mid <= from || mid >= to)
+                return null;
+            // prefix goes to the new one so order is kept
+            reader.pos = mid;
+            return new Splitter(new BatchReader(ch, from, mid, charset, projection, windowSize));
+        }
+
+        @Override
+        public long estimateSize() {
+            // bytes rather than messages, but only ever compared to each other
+            return reader.end - reader.pos;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL | Spliterator.IMMUTABLE;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        ch.close();
+    }
+}
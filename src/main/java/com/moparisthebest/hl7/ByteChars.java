@@ -0,0 +1,137 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Bytes looked at one char per byte, exactly like ISO-8859-1, so delimiters can be found without converting
+ * anything, only the values actually read out are decoded in the real charset.
+ * <p>
+ * This only works for charsets where a byte under 128 is always that US-ASCII character, like UTF-8, ISO-8859-x
+ * or EUC-KR, otherwise part of a multi-byte character could be mistaken for a delimiter.
+ * <p>
+ * The bytes are not copied, so must not be changed while anything is still reading from them.
+ */
+public final class ByteChars implements CharSequence {
+
+    private final byte[] bytes;
+    private final int offset, length;
+    private final Charset charset;
+
+    /**
+     * @param charset what the bytes actually are, null means ISO-8859-1
+     */
+    public ByteChars(final byte[] bytes, final int offset, final int length, final Charset charset) {
+        if(offset < 0 || length < 0 || offset + length > bytes.length)
+            throw new IndexOutOfBoundsException("offset: " + offset + " length: " + length + " bytes.length: " + bytes.length);
+        this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.charset = charset == null ? StandardCharsets.ISO_8859_1 : charset;
+    }
+
+    public ByteChars(final byte[] bytes, final Charset charset) {
+        this(bytes, 0, bytes.length, charset);
+    }
+
+    public Charset charset() {
+        return charset;
+    }
+
+    /**
+     * @return the same bytes read as charset instead
+     */
+    public ByteChars withCharset(final Charset charset) {
+        return charset == null || charset.equals(this.charset) ? this : new ByteChars(bytes, offset, length, charset);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(final int index) {
+        return (char) (bytes[offset + index] & 0xFF);
+    }
+
+    @Override
+    public ByteChars subSequence(final int start, final int end) {
+        return new ByteChars(bytes, offset + start, end - start, charset);
+    }
+
+    /**
+     * @return bytes from start (inclusive) to end (exclusive) decoded in charset
+     */
+    public String decode(final int start, final int end) {
+        return new String(bytes, offset + start, end - start, charset);
+    }
+
+    /**
+     * @return everything decoded in charset
+     */
+    public String decode() {
+        return decode(0, length);
+    }
+
+    /**
+     * @param s chars from this (or made the same way, one per byte), like the result of unescaping part of this
+     * @return s decoded in charset
+     */
+    String decode(final String s) {
+        for(int i = 0; i < s.length(); ++i)
+            if(s.charAt(i) > 127)
+                return new String(s.getBytes(StandardCharsets.ISO_8859_1), charset);
+        return s;
+    }
+
+    boolean isAscii(final int start, final int end) {
+        for(int i = offset + start; i < offset + end; ++i)
+            if(bytes[i] < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Copies bytes from start (inclusive) to end (exclusive) into dest at destPos
+     */
+    void copyTo(final int start, final int end, final byte[] dest, final int destPos) {
+        System.arraycopy(bytes, offset + start, dest, destPos, end - start);
+    }
+
+    /**
+     * Puts every byte into dest at its position
+     */
+    void copyTo(final ByteBuffer dest) {
+        dest.put(bytes, offset, length);
+    }
+
+    /**
+     * @return one char per byte, as the CharSequence contract requires, use decode() for the actual text
+     */
+    @Override
+    public String toString() {
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes messages straight to bytes in one reusable buffer, which is either handed to an OutputStream each time it
+ * fills up, or grown to hold the whole message to be used as a ByteBuffer.
+ *
+ * Characters are written in the charset of the Encoding being written, unless it doesn't have one, then characters
+ * that aren't US-ASCII are written as '?', same as String.getBytes(StandardCharsets.US_ASCII). Text still in the bytes
+ * it was read from is copied straight across when it's in the same charset.
+ *
+ * If the OutputStream throws while a message is being written it is rethrown wrapped in an UncheckedIOException.
+ */
+public class ByteMessageWriter extends MessageWriter {
+
+    private final OutputStream os;
+    private byte[] buf;
+    private int len;
+    // everything ever handed to os
+    private long bytesWritten;
+    // null means US-ASCII, with anything else written as '?'
+    private Charset charset;
+
+    public ByteMessageWriter(final OutputStream os, final int bufferSize) {
+        this.os = os;
+        this.buf = new byte[bufferSize];
+    }
+
+    public ByteMessageWriter(final OutputStream os) {
+        this(os, FrameDecoder.DEFAULT_BUFFER_SIZE);
+    }
+
+    public ByteMessageWriter() {
+        this(null);
+    }
+
+    @Override
+    protected void append(final char c) {
+        if(c >= 128 && charset != null) {
+            append(String.valueOf(c), 0, 1);
+            return;
+        }
+        if(len == buf.length)
+            makeRoom(1);
+        buf[len++] = c < 128 ? (byte) c : (byte) '?';
+    }
+
+    @Override
+    protected void append(final CharSequence s, int start, final int end) {
+        while(start < end) {
+            if(len == buf.length)
+                makeRoom(end - start);
+            final int stop = Math.min(end, start + buf.length - len);
+            for(; start < stop; ++start) {
+                final char c = s.charAt(start);
+                if(c >= 128 && charset != null) {
+                    appendEncoded(s, start, end);
+                    return;
+                }
+                buf[len++] = c < 128 ? (byte) c : (byte) '?';
+            }
+        }
+    }
+
+    private void appendEncoded(final CharSequence s, final int start, final int end) {
+        final ByteBuffer bb = charset.encode(CharBuffer.wrap(s, start, end));
+        final int size = bb.remaining();
+        if(buf.length - len < size)
+            makeRoom(size);
+        if(buf.length - len < size) {
+            // flushed to os but still not enough room
+            buf = new byte[size];
+        }
+        bb.get(buf, len, size);
+        len += size;
+    }
+
+    @Override
+    protected void append(final ByteChars s, int start, final int end) {
+        if(!s.charset().equals(charset) && !s.isAscii(start, end)) {
+            super.append(s, start, end);
+            return;
+        }
+        while(start < end) {
+            if(len == buf.length)
+                makeRoom(end - start);
+            final int stop = Math.min(end, start + buf.length - len);
+            s.copyTo(start, stop, buf, len);
+            len += stop - start;
+            start = stop;
+        }
+    }
+
+    /**
+     * Writes msg in enc, in enc's charset
+     */
+    @Override
+    public MessageWriter write(final Message msg, final Encoding enc) {
+        this.charset = enc.charset;
+        return super.write(msg, enc);
+    }
+
+    /**
+     * Sets the charset text is written in, like write(msg, enc) does, for writing something other than a Message
+     */
+    void charset(final Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Writes bytes already encoded in the current charset as-is, after any delimiters still being held back
+     */
+    void bytes(final byte[] b, int off, final int length) {
+        super.flush();
+        final int end = off + length;
+        while(off < end) {
+            if(len == buf.length)
+                makeRoom(end - off);
+            final int n = Math.min(end - off, buf.length - len);
+            System.arraycopy(b, off, buf, len, n);
+            len += n;
+            off += n;
+        }
+    }
+
+    void bytes(final byte[] b) {
+        bytes(b, 0, b.length);
+    }
+
+    private void makeRoom(final int wanted) {
+        if(os != null) {
+            try {
+                os.write(buf, 0, len);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            bytesWritten += len;
+            len = 0;
+        } else {
+            final byte[] bigger = new byte[Math.max(buf.length * 2, len + wanted)];
+            System.arraycopy(buf, 0, bigger, 0, len);
+            buf = bigger;
+        }
+    }
+
+    /**
+     * Writes msg in enc wrapped in an MLLP frame, &lt;VT&gt;message&lt;FS&gt;&lt;CR&gt;
+     */
+    public ByteMessageWriter writeFrame(final Message msg, final Encoding enc) {
+        append(enc.verticalTab);
+        write(msg, enc);
+        append(enc.fileSeperator);
+        append(enc.segmentDelimiter);
+        return this;
+    }
+
+    /**
+     * Writes everything buffered to the OutputStream, so this can be reused for the next message
+     */
+    public void writeOut() throws IOException {
+        if(os == null)
+            throw new IllegalStateException("no OutputStream to write to");
+        super.flush();
+        os.write(buf, 0, len);
+        bytesWritten += len;
+        len = 0;
+    }
+
+    /**
+     * @return total bytes written to the OutputStream so far
+     */
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return everything buffered, only valid until this is next written to or reset
+     */
+    public ByteBuffer toByteBuffer() {
+        super.flush();
+        return ByteBuffer.wrap(buf, 0, len);
+    }
+
+    public int size() {
+        return len;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        len = 0;
+    }
+}
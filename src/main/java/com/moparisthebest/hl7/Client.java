@@ -0,0 +1,411 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends messages to one MLLP endpoint over a pool of kept alive connections, without a thread per message waiting
+ * on a response.
+ *
+ * Each connection has one thread, which connects and then reads responses, completing the futures of messages sent
+ * on that connection in the order they were sent, so anything chained onto them without an Executor runs on it too.
+ * Messages are encoded straight into the connection's buffer by whichever thread sends them, the caller's if a
+ * connection is free, otherwise one from the sender Executor once a connection has room, never a connection's own
+ * thread, so a write blocked on a receiver that isn't reading can't hold up the responses it's waiting to send. They
+ * must not be changed until their future is complete.
+ *
+ * Connections are only opened when every open one already has maxInFlight messages waiting on a response, if one
+ * can't be, no new one is tried until a backoff, doubling each failure up to a limit, has passed, and meanwhile
+ * messages fail straight away if there's no open connection to wait for. Anything in flight when a connection fails
+ * fails with it, nothing is resent.
+ */
+public class Client implements Closeable {
+
+    protected final InetSocketAddress address;
+    protected final Encoding enc;
+
+    protected int poolSize = 1, maxInFlight = 1, connectTimeout = 10000, readTimeout = 60000;
+    protected long minBackoff = 1000, maxBackoff = 60000;
+    protected Executor sender = ForkJoinPool.commonPool();
+
+    // everything below is guarded by this
+    private final List<Connection> connections = new ArrayList<>();
+    private final Queue<Pending> queued = new ArrayDeque<>();
+    private long backoff, retryAt;
+    private boolean closed;
+
+    public Client(final InetSocketAddress address, final Encoding enc) {
+        this.address = address;
+        this.enc = enc;
+        // so the first connection is tried straight away
+        this.retryAt = System.nanoTime();
+    }
+
+    public Client(final InetSocketAddress address) {
+        this(address, Message.DEFAULT_ENCODING);
+    }
+
+    public Client(final String host, final int port) {
+        this(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * @param poolSize    most connections open at once
+     * @param maxInFlight most messages sent on one connection still waiting on a response, more than 1 pipelines
+     *                    them, which not every receiver handles
+     */
+    public Client setPool(final int poolSize, final int maxInFlight) {
+        if(poolSize < 1 || maxInFlight < 1)
+            throw new IllegalArgumentException("poolSize and maxInFlight must be at least 1");
+        this.poolSize = poolSize;
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param connectTimeout milliseconds to wait for a connection, 0 for forever
+     * @param readTimeout    milliseconds to wait for a response once sent, 0 for forever, on timeout the connection is
+     *                       closed, failing everything in flight on it
+     */
+    public Client setTimeouts(final int connectTimeout, final int readTimeout) {
+        if(connectTimeout < 0 || readTimeout < 0)
+            throw new IllegalArgumentException("timeouts can't be negative");
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * @param minBackoff milliseconds to wait before connecting again after the first failure
+     * @param maxBackoff most milliseconds to wait, however many times it fails
+     */
+    public Client setBackoff(final long minBackoff, final long maxBackoff) {
+        if(minBackoff < 0 || maxBackoff < minBackoff)
+            throw new IllegalArgumentException("need 0 <= minBackoff <= maxBackoff");
+        this.minBackoff = minBackoff;
+        this.maxBackoff = maxBackoff;
+        return this;
+    }
+
+    /**
+     * @param sender runs the writes of messages that had to wait for a connection to have room
+     */
+    public Client setSender(final Executor sender) {
+        if(sender == null)
+            throw new NullPointerException("sender");
+        this.sender = sender;
+        return this;
+    }
+
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * @return completed with the response, or exceptionally if it couldn't be sent, no response came in time, or the
+     * response couldn't be parsed
+     */
+    public CompletableFuture<Message> send(final Message msg) {
+        final Pending p = new Pending(msg);
+        Connection free = null;
+        synchronized (this) {
+            if(closed) {
+                p.future.completeExceptionally(new IOException("client is closed"));
+                return p.future;
+            }
+            for(final Connection c : connections)
+                if(c.open && c.reserved < maxInFlight && (free == null || c.reserved < free.reserved))
+                    free = c;
+            if(free != null) {
+                ++free.reserved;
+            } else {
+                if(connections.size() < poolSize) {
+                    if(System.nanoTime() - retryAt < 0) {
+                        if(connections.isEmpty()) {
+                            p.future.completeExceptionally(new ConnectException("not connecting to " + address + " for another " +
+                                    TimeUnit.NANOSECONDS.toMillis(retryAt - System.nanoTime()) + "ms after failing to"));
+                            return p.future;
+                        }
+                    } else {
+                        final Connection c = new Connection();
+                        connections.add(c);
+                        c.start();
+                    }
+                }
+                queued.add(p);
+            }
+        }
+        if(free != null)
+            free.write(p);
+        return p.future;
+    }
+
+    // sends queued messages on c while it has room, only ever run by sender
+    private void dispatch(final Connection c) {
+        while(true) {
+            final Pending p;
+            synchronized (this) {
+                if(!c.open || c.reserved >= maxInFlight || (p = queued.poll()) == null) {
+                    c.dispatching = false;
+                    return;
+                }
+                ++c.reserved;
+            }
+            c.write(p);
+        }
+    }
+
+    // must be called holding this
+    private void scheduleDispatch(final Connection c) {
+        if(c.dispatching || !c.open || c.reserved >= maxInFlight || queued.isEmpty())
+            return;
+        c.dispatching = true;
+        try {
+            sender.execute(() -> dispatch(c));
+        } catch (RuntimeException e) {
+            // they'll go the next time c has room
+            c.dispatching = false;
+        }
+    }
+
+    private void connected(final Connection c) {
+        synchronized (this) {
+            backoff = 0;
+            c.open = true;
+            scheduleDispatch(c);
+        }
+    }
+
+    private void connectFailed(final Connection c, final IOException e) {
+        final List<Pending> failed = new ArrayList<>();
+        synchronized (this) {
+            connections.remove(c);
+            backoff = backoff == 0 ? minBackoff : Math.min(backoff * 2, maxBackoff);
+            retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+            // otherwise they just wait for the ones still there
+            if(connections.isEmpty()) {
+                failed.addAll(queued);
+                queued.clear();
+            }
+        }
+        for(final Pending p : failed)
+            p.future.completeExceptionally(e);
+    }
+
+    private void released(final Connection c) {
+        synchronized (this) {
+            --c.reserved;
+            scheduleDispatch(c);
+        }
+    }
+
+    private void closed(final Connection c) {
+        final Connection next;
+        synchronized (this) {
+            connections.remove(c);
+            if(closed || queued.isEmpty() || !connections.isEmpty())
+                return;
+            // queued messages were waiting on c, so go again for them
+            next = new Connection();
+            connections.add(next);
+        }
+        next.start();
+    }
+
+    /**
+     * Fails everything queued or in flight, and closes every connection
+     */
+    @Override
+    public void close() throws IOException {
+        final List<Connection> toClose;
+        final List<Pending> failed;
+        synchronized (this) {
+            closed = true;
+            toClose = new ArrayList<>(connections);
+            failed = new ArrayList<>(queued);
+            queued.clear();
+        }
+        final IOException e = new IOException("client is closed");
+        for(final Pending p : failed)
+            p.future.completeExceptionally(e);
+        for(final Connection c : toClose)
+            c.close(e);
+    }
+
+    private static final class Pending {
+
+        private final Message msg;
+        private final CompletableFuture<Message> future = new CompletableFuture<>();
+        private long sent;
+
+        private Pending(final Message msg) {
+            this.msg = msg;
+        }
+    }
+
+    private class Connection extends Thread {
+
+        private final Socket socket = new Socket();
+        // guarded by Client.this
+        private boolean open, dispatching;
+        private int reserved;
+
+        // only ever held briefly, so the reader never waits on a write
+        private final Object lock = new Object();
+        // guarded by lock
+        private final Queue<Pending> inFlight = new ArrayDeque<>();
+        private IOException closedBy;
+
+        // held while writing to the socket, before lock when both are needed
+        private final Object writeLock = new Object();
+        // guarded by writeLock
+        private ByteMessageWriter writer;
+
+        private Connection() {
+            super("Client-" + address);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final InputStream is;
+            try {
+                socket.connect(address, connectTimeout);
+                socket.setTcpNoDelay(true);
+                socket.setKeepAlive(true);
+                // wakes up often enough to notice a response taking too long
+                socket.setSoTimeout(readTimeout == 0 ? 0 : Math.min(readTimeout, 1000));
+                is = socket.getInputStream();
+                synchronized (writeLock) {
+                    writer = new ByteMessageWriter(socket.getOutputStream());
+                }
+            } catch (IOException e) {
+                closeQuietly();
+                connectFailed(this, e);
+                return;
+            }
+            connected(this);
+            try {
+                final FrameDecoder decoder = new FrameDecoder(enc);
+                while(true) {
+                    final ByteChars frame;
+                    try {
+                        frame = decoder.readFrame(is);
+                    } catch (SocketTimeoutException e) {
+                        checkTimeout();
+                        continue;
+                    }
+                    if(frame == null)
+                        throw new EOFException("connection closed by " + address);
+                    final Pending p;
+                    synchronized (lock) {
+                        p = inFlight.poll();
+                    }
+                    if(p == null)
+                        throw new IOException("response from " + address + " to nothing sent");
+                    try {
+                        p.future.complete(new Message(frame));
+                    } catch (ParseException e) {
+                        p.future.completeExceptionally(e);
+                    }
+                    released(this);
+                }
+            } catch (Throwable e) {
+                close(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+        }
+
+        private void checkTimeout() throws SocketTimeoutException {
+            final Pending oldest;
+            synchronized (lock) {
+                oldest = inFlight.peek();
+            }
+            if(oldest != null && System.nanoTime() - oldest.sent > TimeUnit.MILLISECONDS.toNanos(readTimeout))
+                throw new SocketTimeoutException("no response from " + address + " in " + readTimeout + "ms");
+        }
+
+        private void write(final Pending p) {
+            try {
+                // held across adding to inFlight and writing so they're in the same order
+                synchronized (writeLock) {
+                    synchronized (lock) {
+                        if(closedBy != null)
+                            throw closedBy;
+                        p.sent = System.nanoTime();
+                        inFlight.add(p);
+                    }
+                    writer.writeFrame(p.msg, enc).writeOut();
+                }
+            } catch (IOException e) {
+                p.future.completeExceptionally(e);
+                close(e);
+            } catch (UncheckedIOException e) {
+                p.future.completeExceptionally(e.getCause());
+                close(e.getCause());
+            } catch (RuntimeException e) {
+                // part of it may already be written, so nothing after it can be trusted
+                p.future.completeExceptionally(e);
+                close(new IOException("failed writing message", e));
+            }
+        }
+
+        private void close(final IOException e) {
+            final List<Pending> failed;
+            synchronized (lock) {
+                if(closedBy != null)
+                    return;
+                closedBy = e;
+                failed = new ArrayList<>(inFlight);
+                inFlight.clear();
+            }
+            closeQuietly();
+            for(final Pending p : failed)
+                p.future.completeExceptionally(e);
+            closed(this);
+        }
+
+        private void closeQuietly() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
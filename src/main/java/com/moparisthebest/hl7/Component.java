@@ -22,10 +22,19 @@ package com.moparisthebest.hl7;
 
 public class Component extends SubComponentContainer<SubComponent> {
 
+    /**
+     * Shared and read-only, returned by the get accessors for anything that doesn't exist, instead of creating it
+     */
+    public static final Component EMPTY = new Component(SubComponent.EMPTY);
+
     Component() {
         super();
     }
 
+    private Component(final SubComponent empty) {
+        super(empty);
+    }
+
     Component(final String s) {
         super(s);
     }
@@ -34,8 +43,12 @@ public class Component extends SubComponentContainer<SubComponent> {
         super(s);
     }
 
-    Component(final String s, final Encoding enc) {
-        super(s, enc, enc.subComponentDelimiter);
+    Component(final Component toShare, final Owner owner) {
+        super(toShare, owner);
+    }
+
+    Component(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc) {
+        super(owner, s, start, end, enc, false);
     }
 
     @Override
@@ -54,12 +67,22 @@ public class Component extends SubComponentContainer<SubComponent> {
     }
 
     @Override
-    SubComponent newSubComponent(final String s, final Encoding enc) {
-        return new SubComponentImpl(s, enc);
+    SubComponent newSubComponent(final SubComponent s, final Owner owner) {
+        return new SubComponentImpl(s, owner);
     }
 
-    public void encode(final StringBuilder sb, final Encoding enc) {
-        super.encode(sb, enc, enc.subComponentDelimiter, enc.componentDelimiter);
+    @Override
+    SubComponent newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc) {
+        return new SubComponentImpl(owner, s, start, end, enc);
+    }
+
+    @Override
+    char delimiter(final Encoding enc) {
+        return enc.subComponentDelimiter;
+    }
+
+    public void encode(final MessageWriter w, final Encoding enc) {
+        super.encode(w, enc, enc.subComponentDelimiter, enc.componentDelimiter);
     }
 
     public int numSubComponents() {
@@ -70,6 +93,13 @@ public class Component extends SubComponentContainer<SubComponent> {
         return super.subComponent1Based(index);
     }
 
+    /**
+     * Like subComponent, but never changes this
+     */
+    public SubComponent getSubComponent(final int index) {
+        return super.get1Based(index, SubComponent.EMPTY);
+    }
+
     // shorter aliases
 
     public SubComponent sc(final int index) {
@@ -0,0 +1,298 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.Month;
+import java.time.OffsetDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.temporal.TemporalAccessor;
+
+/**
+ * Parses and formats HL7 DTM values, YYYY[MM[DD[HH[MM[SS[.S[S[S[S]]]]]]]]][+/-ZZZZ], by hand instead of through
+ * DateTimeFormatter, the parse methods return null instead of throwing if the value isn't valid.
+ */
+public final class Dtm {
+
+    // precision of what was parsed
+    private static final int YEAR = 1, MONTH = 2, DAY = 3, HOUR = 4, MINUTE = 5, SECOND = 6;
+    // what to build out of it
+    private static final int ANY = 0, LOCAL_DATE = 1, LOCAL_DATE_TIME = 2, INSTANT = 3;
+
+    private static final char[] DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9'};
+
+    // yyyyMMddHHmmss.SSS+ZZZZ of the last second formatted, only the millis differ within a second
+    private static volatile Cached cached;
+
+    private Dtm() {
+    }
+
+    /**
+     * @return Year, YearMonth, LocalDate, LocalDateTime, or OffsetDateTime if an offset was given along with at least
+     * the hour, depending on how precise s is, or null if s isn't a valid DTM
+     */
+    public static TemporalAccessor parse(final CharSequence s) {
+        return parse(s, ANY);
+    }
+
+    /**
+     * @return the date part of s, or null if s isn't a valid DTM at least precise to the day
+     */
+    public static LocalDate parseLocalDate(final CharSequence s) {
+        return (LocalDate) parse(s, LOCAL_DATE);
+    }
+
+    /**
+     * @return s as written, ignoring any offset, with anything less precise than the day filled in with 0,
+     * or null if s isn't a valid DTM at least precise to the day
+     */
+    public static LocalDateTime parseLocalDateTime(final CharSequence s) {
+        return (LocalDateTime) parse(s, LOCAL_DATE_TIME);
+    }
+
+    /**
+     * @return s as an Instant, in the system default time zone if it has no offset, or null if s isn't a valid DTM
+     * at least precise to the day
+     */
+    public static Instant parseInstant(final CharSequence s) {
+        return (Instant) parse(s, INSTANT);
+    }
+
+    private static TemporalAccessor parse(final CharSequence s, final int kind) {
+        final int end = s.length();
+        if(end < 4)
+            return null;
+        int year = 0;
+        for(int i = 0; i < 4; ++i) {
+            final int d = digit(s.charAt(i));
+            if(d < 0)
+                return null;
+            year = year * 10 + d;
+        }
+        int i = 4, precision = YEAR;
+        int month = 1, day = 1, hour = 0, minute = 0, second = 0, nano = 0;
+        if(i < end && digit(s.charAt(i)) >= 0) {
+            if((month = twoDigits(s, i, end)) < 1 || month > 12)
+                return null;
+            i += 2;
+            precision = MONTH;
+            if(i < end && digit(s.charAt(i)) >= 0) {
+                if((day = twoDigits(s, i, end)) < 1 || day > Month.of(month).length(Year.isLeap(year)))
+                    return null;
+                i += 2;
+                precision = DAY;
+                if(i < end && digit(s.charAt(i)) >= 0) {
+                    if((hour = twoDigits(s, i, end)) < 0 || hour > 23)
+                        return null;
+                    i += 2;
+                    precision = HOUR;
+                    if(i < end && digit(s.charAt(i)) >= 0) {
+                        if((minute = twoDigits(s, i, end)) < 0 || minute > 59)
+                            return null;
+                        i += 2;
+                        precision = MINUTE;
+                        if(i < end && digit(s.charAt(i)) >= 0) {
+                            if((second = twoDigits(s, i, end)) < 0 || second > 59)
+                                return null;
+                            i += 2;
+                            precision = SECOND;
+                            if(i < end && s.charAt(i) == '.') {
+                                // HL7 only allows 4, but there is no harm in taking up to nanoseconds
+                                int digits = 0;
+                                for(++i; i < end && digits < 9; ++i, ++digits) {
+                                    final int d = digit(s.charAt(i));
+                                    if(d < 0)
+                                        break;
+                                    nano = nano * 10 + d;
+                                }
+                                if(digits == 0)
+                                    return null;
+                                for(; digits < 9; ++digits)
+                                    nano *= 10;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        boolean hasOffset = false;
+        int offsetSeconds = 0;
+        if(i < end) {
+            final char sign = s.charAt(i);
+            if((sign != '+' && sign != '-') || end - i != 5)
+                return null;
+            final int offsetHours = twoDigits(s, i + 1, end), offsetMinutes = twoDigits(s, i + 3, end);
+            if(offsetHours < 0 || offsetHours > 18 || offsetMinutes < 0 || offsetMinutes > 59 || (offsetHours == 18 && offsetMinutes != 0))
+                return null;
+            offsetSeconds = (offsetHours * 3600 + offsetMinutes * 60) * (sign == '-' ? -1 : 1);
+            hasOffset = true;
+        }
+        switch (kind) {
+            case ANY:
+                switch (precision) {
+                    case YEAR:
+                        return Year.of(year);
+                    case MONTH:
+                        return YearMonth.of(year, month);
+                    case DAY:
+                        return LocalDate.of(year, month, day);
+                }
+                final LocalDateTime ldt = LocalDateTime.of(year, month, day, hour, minute, second, nano);
+                return hasOffset ? OffsetDateTime.of(ldt, ZoneOffset.ofTotalSeconds(offsetSeconds)) : ldt;
+            case LOCAL_DATE:
+                return precision < DAY ? null : LocalDate.of(year, month, day);
+            case LOCAL_DATE_TIME:
+                return precision < DAY ? null : LocalDateTime.of(year, month, day, hour, minute, second, nano);
+            default:
+                if(precision < DAY)
+                    return null;
+                final LocalDateTime local = LocalDateTime.of(year, month, day, hour, minute, second, nano);
+                return hasOffset ? local.toInstant(ZoneOffset.ofTotalSeconds(offsetSeconds)) : local.atZone(ZoneId.systemDefault()).toInstant();
+        }
+    }
+
+    private static int digit(final char c) {
+        return c >= '0' && c <= '9' ? c - '0' : -1;
+    }
+
+    /**
+     * @return the 2 digit number at i, or -1 if there isn't one
+     */
+    private static int twoDigits(final CharSequence s, final int i, final int end) {
+        if(i + 2 > end)
+            return -1;
+        final int tens = digit(s.charAt(i)), ones = digit(s.charAt(i + 1));
+        return tens < 0 || ones < 0 ? -1 : tens * 10 + ones;
+    }
+
+    /**
+     * @return yyyyMMdd
+     */
+    public static String format(final LocalDate date) {
+        final int year = date.getYear();
+        if(year < 0 || year > 9999)
+            return SubComponent.LOCAL_DATE.format(date);
+        final char[] c = new char[8];
+        date(c, year, date.getMonthValue(), date.getDayOfMonth());
+        return new String(c);
+    }
+
+    /**
+     * @return yyyyMMddHHmm
+     */
+    public static String format(final LocalDateTime date) {
+        final int year = date.getYear();
+        if(year < 0 || year > 9999)
+            return SubComponent.LOCAL_DATE_TIME.format(date);
+        final char[] c = new char[12];
+        date(c, year, date.getMonthValue(), date.getDayOfMonth());
+        pad(c, 8, date.getHour());
+        pad(c, 10, date.getMinute());
+        return new String(c);
+    }
+
+    /**
+     * @return yyyyMMddHHmmss.SSS+ZZZZ in the system default time zone, everything but the milliseconds is only worked
+     * out once per second
+     */
+    public static String format(final Instant instant) {
+        final Cached c = cached(instant);
+        if(c == null)
+            return SubComponent.INSTANT.format(instant);
+        final char[] text = c.text.clone();
+        final int millis = instant.getNano() / 1_000_000;
+        text[15] = DIGITS[millis / 100];
+        pad(text, 16, millis % 100);
+        return new String(text);
+    }
+
+    /**
+     * Like format(Instant), but as US-ASCII bytes into dest at off, without allocating anything most of the time
+     *
+     * @return false if the year doesn't fit in 4 digits, then nothing is written
+     */
+    static boolean format(final Instant instant, final byte[] dest, final int off) {
+        final Cached c = cached(instant);
+        if(c == null)
+            return false;
+        final char[] text = c.text;
+        for(int i = 0; i < text.length; ++i)
+            dest[off + i] = (byte) text[i];
+        final int millis = instant.getNano() / 1_000_000;
+        dest[off + 15] = (byte) DIGITS[millis / 100];
+        dest[off + 16] = (byte) DIGITS[millis % 100 / 10];
+        dest[off + 17] = (byte) DIGITS[millis % 10];
+        return true;
+    }
+
+    /**
+     * @return text of instant with the milliseconds left out, or null if the year doesn't fit in 4 digits
+     */
+    private static Cached cached(final Instant instant) {
+        final long epochSecond = instant.getEpochSecond();
+        Cached c = cached;
+        if(c == null || c.epochSecond != epochSecond) {
+            final ZonedDateTime zdt = instant.atZone(ZoneId.systemDefault());
+            final int year = zdt.getYear();
+            if(year < 0 || year > 9999)
+                return null;
+            cached = c = new Cached(epochSecond, zdt);
+        }
+        return c;
+    }
+
+    private static void date(final char[] c, final int year, final int month, final int day) {
+        pad(c, 0, year / 100);
+        pad(c, 2, year % 100);
+        pad(c, 4, month);
+        pad(c, 6, day);
+    }
+
+    private static void pad(final char[] c, final int off, final int twoDigits) {
+        c[off] = DIGITS[twoDigits / 10];
+        c[off + 1] = DIGITS[twoDigits % 10];
+    }
+
+    private static final class Cached {
+        private final long epochSecond;
+        private final char[] text = new char[23];
+
+        private Cached(final long epochSecond, final ZonedDateTime zdt) {
+            this.epochSecond = epochSecond;
+            date(text, zdt.getYear(), zdt.getMonthValue(), zdt.getDayOfMonth());
+            pad(text, 8, zdt.getHour());
+            pad(text, 10, zdt.getMinute());
+            pad(text, 12, zdt.getSecond());
+            text[14] = '.';
+            int offsetMinutes = zdt.getOffset().getTotalSeconds() / 60;
+            text[18] = offsetMinutes < 0 ? '-' : '+';
+            offsetMinutes = Math.abs(offsetMinutes);
+            pad(text, 19, offsetMinutes / 60);
+            pad(text, 21, offsetMinutes % 60);
+        }
+    }
+}
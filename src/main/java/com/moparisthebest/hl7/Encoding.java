@@ -20,24 +20,39 @@
 
 package com.moparisthebest.hl7;
 
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.Objects;
 
 public class Encoding extends Field {
     public final char segmentDelimiter, repetitionDelimiter, fieldDelimiter, componentDelimiter, subComponentDelimiter, escapeCharacter, verticalTab, fileSeperator;
     public final String repetitionEscape, fieldEscape, componentEscape, subComponentEscape, escapeEscape;
 
-    private final String repetitionDelimiterString, fieldDelimiterString, componentDelimiterString, subComponentDelimiterString, escapeCharacterString, value;
+    private final String value;
 
     public final MSH1 msh1;
 
+    /**
+     * What bytes are read and written as, null if MSH-18 is empty and none was set, in which case bytes are read as
+     * ISO-8859-1 and written as US-ASCII
+     */
+    public final Charset charset;
+
     //                               '\r',                         '~',                          '|',                         '^',                             '&',                          '\\'
     public Encoding(final char segmentDelimiter, final char repetitionDelimiter, final char fieldDelimiter, final char componentDelimiter, final char subComponentDelimiter, final char escapeCharacter) {
         this(segmentDelimiter, repetitionDelimiter, fieldDelimiter, componentDelimiter, subComponentDelimiter, escapeCharacter, (char) 11, (char) 28);
     }
 
     public Encoding(final char segmentDelimiter, final char repetitionDelimiter, final char fieldDelimiter, final char componentDelimiter, final char subComponentDelimiter, final char escapeCharacter, final char verticalTab, final char fileSeperator) {
+        this(segmentDelimiter, repetitionDelimiter, fieldDelimiter, componentDelimiter, subComponentDelimiter, escapeCharacter, verticalTab, fileSeperator, null);
+    }
+
+    public Encoding(final char segmentDelimiter, final char repetitionDelimiter, final char fieldDelimiter, final char componentDelimiter, final char subComponentDelimiter, final char escapeCharacter, final char verticalTab, final char fileSeperator, final Charset charset) {
+        this.charset = charset;
         this.segmentDelimiter = segmentDelimiter;
         this.repetitionDelimiter = repetitionDelimiter;
         this.fieldDelimiter = fieldDelimiter;
@@ -53,30 +68,351 @@ public class Encoding extends Field {
         this.subComponentEscape = escapeCharacter + "T" + escapeCharacter;
         this.escapeEscape = escapeCharacter + "E" + escapeCharacter;
 
-        this.repetitionDelimiterString = "" + repetitionDelimiter;
-        this.fieldDelimiterString = "" + fieldDelimiter;
-        this.componentDelimiterString = "" + componentDelimiter;
-        this.subComponentDelimiterString = "" + subComponentDelimiter;
-        this.escapeCharacterString = "" + escapeCharacter;
+        this.value = "" + componentDelimiter + repetitionDelimiter + escapeCharacter + subComponentDelimiter;
+        this.msh1 = new MSH1("" + fieldDelimiter);
+    }
+
+    /**
+     * @return this encoding, reading and writing bytes as charset
+     */
+    public Encoding withCharset(final Charset charset) {
+        return charset == this.charset || (charset != null && charset.equals(this.charset)) ? this :
+                new Encoding(segmentDelimiter, repetitionDelimiter, fieldDelimiter, componentDelimiter, subComponentDelimiter, escapeCharacter, verticalTab, fileSeperator, charset);
+    }
+
+    /**
+     * Maps an HL7 character set name (table 0211, as found in MSH-18) to a Charset
+     *
+     * @return the Charset, or null if name is empty, unknown, or not a charset delimiters can be found in byte by byte
+     */
+    public static Charset charset(String name) {
+        name = name.trim().toUpperCase();
+        switch (name) {
+            case "ASCII":
+            case "ISO IR6":
+                return StandardCharsets.US_ASCII;
+            case "8859/1":
+            case "ISO IR100":
+                return StandardCharsets.ISO_8859_1;
+            case "UNICODE UTF-8":
+            case "UTF-8":
+                return StandardCharsets.UTF_8;
+            case "8859/15":
+                return supported("ISO-8859-15");
+            case "KS X 1001":
+                return supported("EUC-KR");
+        }
+        if(name.startsWith("8859/") && name.length() == 6 && name.charAt(5) >= '2' && name.charAt(5) <= '9')
+            return supported("ISO-8859-" + name.charAt(5));
+        return null;
+    }
+
+    private static Charset supported(final String name) {
+        return Charset.isSupported(name) ? Charset.forName(name) : null;
+    }
 
-        this.value = componentDelimiterString + repetitionDelimiter + escapeCharacter + subComponentDelimiter;
-        this.msh1 = new MSH1(this.fieldDelimiterString);
+    /**
+     * @return true if text written in other can be copied as-is into this encoding, which needs every delimiter the
+     * same, otherwise other's text may hold this one's segmentDelimiter unescaped
+     */
+    public boolean compatible(final Encoding other) {
+        return this == other || (other != null
+                && segmentDelimiter == other.segmentDelimiter
+                && repetitionDelimiter == other.repetitionDelimiter
+                && fieldDelimiter == other.fieldDelimiter
+                && componentDelimiter == other.componentDelimiter
+                && subComponentDelimiter == other.subComponentDelimiter
+                && escapeCharacter == other.escapeCharacter);
     }
 
     public String decode(final String s) {
-        return s.replace(repetitionEscape, repetitionDelimiterString)
-                .replace(fieldEscape, fieldDelimiterString)
-                .replace(componentEscape, componentDelimiterString)
-                .replace(subComponentEscape, subComponentDelimiterString)
-                .replace(escapeEscape, escapeCharacterString);
+        return decode(s, 0, s.length());
+    }
+
+    /**
+     * Decodes s from start (inclusive) to end (exclusive) in a single pass, returning it without copying
+     * anything but the String itself when it contains no escape sequences, which is nearly always.
+     *
+     * Delimiter escapes (\F\ \S\ \T\ \R\ \E\) and hex escapes (\Xhh...\) are replaced with the characters
+     * they represent, formatting escapes (\H\ \N\ \.br\ \.sp\ \Cxxyy\ etc) are left as-is for the application to
+     * interpret, encode will write them back out unchanged.
+     */
+    public String decode(final CharSequence s, final int start, final int end) {
+        int i = indexOf(s, escapeCharacter, start, end);
+        if(i == -1) {
+            if(s instanceof ByteChars)
+                return ((ByteChars) s).decode(start, end);
+            return s instanceof String && start == 0 && end == s.length() ? (String) s : s.subSequence(start, end).toString();
+        }
+        final StringBuilder sb = new StringBuilder(end - start);
+        sb.append(s, start, i);
+        while(i != -1) {
+            final int close = indexOf(s, escapeCharacter, i + 1, end);
+            if(close == -1) {
+                // unterminated, not an escape at all
+                break;
+            }
+            if(!unescape(s, i + 1, close, sb))
+                sb.append(s, i, close + 1); // formatting or unknown, leave it alone
+            i = close + 1;
+            final int next = indexOf(s, escapeCharacter, i, end);
+            sb.append(s, i, next == -1 ? end : next);
+            i = next;
+        }
+        if(i != -1)
+            sb.append(s, i, end);
+        // hex escapes are bytes too, so only now is everything in one charset
+        return s instanceof ByteChars ? ((ByteChars) s).decode(sb.toString()) : sb.toString();
+    }
+
+    private boolean unescape(final CharSequence s, final int start, final int end, final StringBuilder sb) {
+        final int len = end - start;
+        if(len == 1) {
+            final char c = s.charAt(start);
+            switch (c) {
+                case 'F':
+                    sb.append(fieldDelimiter);
+                    return true;
+                case 'S':
+                    sb.append(componentDelimiter);
+                    return true;
+                case 'T':
+                    sb.append(subComponentDelimiter);
+                    return true;
+                case 'R':
+                    sb.append(repetitionDelimiter);
+                    return true;
+                case 'E':
+                    sb.append(escapeCharacter);
+                    return true;
+            }
+            return false;
+        }
+        if(len > 1 && (len & 1) == 1 && s.charAt(start) == 'X') {
+            for(int i = start + 1; i < end; ++i)
+                if(Character.digit(s.charAt(i), 16) == -1)
+                    return false;
+            for(int i = start + 1; i < end; i += 2)
+                sb.append((char) ((Character.digit(s.charAt(i), 16) << 4) | Character.digit(s.charAt(i + 1), 16)));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if s from start (inclusive) to end (exclusive), the text between two escape characters,
+     * is a formatting escape that should be passed through unchanged
+     */
+    private static boolean isFormatting(final CharSequence s, final int start, final int end) {
+        final int len = end - start;
+        if(len < 1)
+            return false;
+        switch (s.charAt(start)) {
+            case 'H':
+            case 'N':
+                return len == 1;
+            case 'Z':
+                return len > 1;
+            case 'C':
+                return len == 5 && isHex(s, start + 1, end);
+            case 'M':
+                return (len == 5 || len == 7) && isHex(s, start + 1, end);
+            case '.':
+                if(len < 3)
+                    return false;
+                final char a = s.charAt(start + 1), b = s.charAt(start + 2);
+                if((a == 'b' && b == 'r') || (a == 'f' && b == 'i') || (a == 'n' && b == 'f') || (a == 'c' && b == 'e'))
+                    return len == 3;
+                if((a == 's' && (b == 'p' || b == 'k')) || (a == 'i' && b == 'n') || (a == 't' && b == 'i')) {
+                    int i = start + 3;
+                    if(i < end && (s.charAt(i) == '+' || s.charAt(i) == '-'))
+                        ++i;
+                    for(; i < end; ++i)
+                        if(!Character.isDigit(s.charAt(i)))
+                            return false;
+                    return true;
+                }
+                return false;
+        }
+        return false;
+    }
+
+    private static boolean isHex(final CharSequence s, int start, final int end) {
+        for(; start < end; ++start)
+            if(Character.digit(s.charAt(start), 16) == -1)
+                return false;
+        return true;
+    }
+
+    boolean isDelimiter(final char c) {
+        return c == segmentDelimiter || c == repetitionDelimiter || c == fieldDelimiter || c == componentDelimiter || c == subComponentDelimiter;
+    }
+
+    private boolean isSpecial(final char c) {
+        // control characters include segmentDelimiter (\r or \n) and the MLLP framing bytes, only a hex escape can hold them
+        return c < ' ' || c == escapeCharacter || c == repetitionDelimiter || c == fieldDelimiter || c == componentDelimiter || c == subComponentDelimiter;
+    }
+
+    public boolean needsEscaping(final CharSequence s) {
+        for(int i = 0; i < s.length(); ++i)
+            if(isSpecial(s.charAt(i)))
+                return true;
+        return false;
     }
 
     public String encode(final String s) {
-        return s.replace(escapeCharacterString, escapeEscape)
-                .replace(repetitionDelimiterString, repetitionEscape)
-                .replace(fieldDelimiterString, fieldEscape)
-                .replace(componentDelimiterString, componentEscape)
-                .replace(subComponentDelimiterString, subComponentEscape);
+        if(!needsEscaping(s))
+            return s;
+        final StringBuilder sb = new StringBuilder(s.length() + 16);
+        encode(s, 0, s.length(), sb);
+        return sb.toString();
+    }
+
+    /**
+     * Escapes s straight into sb in a single pass, formatting escapes (\H\ \.br\ etc) already in s are written as-is,
+     * control characters like segmentDelimiter are written as hex escapes (\X0D\)
+     */
+    public void encode(final CharSequence s, final StringBuilder sb) {
+        encode(s, 0, s.length(), sb);
+    }
+
+    public void encode(final CharSequence s, final int start, final int end, final StringBuilder sb) {
+        int off = start;
+        for(int i = start; i < end; ++i) {
+            final char c = s.charAt(i);
+            if(!isSpecial(c))
+                continue;
+            sb.append(s, off, i);
+            off = i + 1;
+            if(c == escapeCharacter) {
+                final int close = indexOf(s, escapeCharacter, i + 1, end);
+                if(close != -1 && isFormatting(s, i + 1, close)) {
+                    sb.append(s, i, close + 1);
+                    i = close;
+                    off = close + 1;
+                    continue;
+                }
+                sb.append(escapeEscape);
+            } else if(c == repetitionDelimiter) {
+                sb.append(repetitionEscape);
+            } else if(c == fieldDelimiter) {
+                sb.append(fieldEscape);
+            } else if(c == componentDelimiter) {
+                sb.append(componentEscape);
+            } else if(c == subComponentDelimiter) {
+                sb.append(subComponentEscape);
+            } else {
+                sb.append(escapeCharacter).append('X').append(HEX[c >> 4 & 0xF]).append(HEX[c & 0xF]).append(escapeCharacter);
+            }
+        }
+        sb.append(s, off, end);
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Reads the delimiters out of the MSH segment starting at mshIdx, the segmentDelimiter is guessed as the first
+     * character after the version in MSH-12 that isn't a digit or ., or the first line break if that's another field,
+     * and the charset is read from MSH-18
+     */
+    public static Encoding detect(final CharSequence s, final int mshIdx) throws ParseException {
+        return detect(s, mshIdx, null);
+    }
+
+    /**
+     * @param reuse returned instead of a new Encoding if it matches what was detected, may be null
+     */
+    public static Encoding detect(final CharSequence s, final int mshIdx, final Encoding reuse) throws ParseException {
+        if(mshIdx == -1 || s.length() < (mshIdx + 8))
+            throw new ParseException("HL7 messages must start with an MSH segment", 0);
+
+        char segmentDelimiter = Message.DEFAULT_ENCODING.segmentDelimiter;
+        final char fieldDelimiter = s.charAt(mshIdx + 3);
+        byte fieldDelimiterCount = 0;
+        // 11 fields in is the version, next non-number or . is segmentDelimiter
+        for(int i = mshIdx; i < s.length(); ++i) {
+            if(fieldDelimiterCount < 11) {
+                if(s.charAt(i) == fieldDelimiter)
+                    ++fieldDelimiterCount;
+            } else {
+                final char c = s.charAt(i);
+                if(c == fieldDelimiter) {
+                    // more fields after the version, take the first line break instead
+                    for(; i < s.length(); ++i) {
+                        final char lb = s.charAt(i);
+                        if(lb == '\r' || lb == '\n') {
+                            segmentDelimiter = lb;
+                            break;
+                        }
+                    }
+                    break;
+                }
+                if(c != '.' && !Character.isDigit(c)) {
+                    segmentDelimiter = c;
+                    break;
+                }
+            }
+        }
+        final char repetitionDelimiter = s.charAt(mshIdx + 5), componentDelimiter = s.charAt(mshIdx + 4),
+                subComponentDelimiter = s.charAt(mshIdx + 7), escapeCharacter = s.charAt(mshIdx + 6);
+        final Charset charset = charset(s, mshIdx, segmentDelimiter, fieldDelimiter, repetitionDelimiter);
+        if(reuse != null && reuse.segmentDelimiter == segmentDelimiter && reuse.repetitionDelimiter == repetitionDelimiter
+                && reuse.fieldDelimiter == fieldDelimiter && reuse.componentDelimiter == componentDelimiter
+                && reuse.subComponentDelimiter == subComponentDelimiter && reuse.escapeCharacter == escapeCharacter
+                && reuse.verticalTab == 11 && reuse.fileSeperator == 28 && Objects.equals(reuse.charset, charset))
+            return reuse;
+        return new Encoding(segmentDelimiter, repetitionDelimiter, fieldDelimiter, componentDelimiter, subComponentDelimiter, escapeCharacter,
+                (char) 11, (char) 28, charset);
+    }
+
+    /**
+     * @return the Charset named by the first repetition of MSH-18, if any
+     */
+    private static Charset charset(final CharSequence s, final int mshIdx, final char segmentDelimiter, final char fieldDelimiter, final char repetitionDelimiter) {
+        int segmentEnd = indexOf(s, segmentDelimiter, mshIdx + 8, s.length());
+        if(segmentEnd == -1)
+            segmentEnd = s.length();
+        // the fieldDelimiter right after MSH counts as MSH-1, so MSH-18 starts after the 17th
+        int start = mshIdx + 3;
+        for(int field = 1; field < 18; ++field) {
+            if((start = indexOf(s, fieldDelimiter, start, segmentEnd)) == -1)
+                return null;
+            ++start;
+        }
+        int end = start;
+        for(; end < segmentEnd; ++end) {
+            final char c = s.charAt(end);
+            if(c == fieldDelimiter || c == repetitionDelimiter)
+                break;
+        }
+        return start == end ? null : charset(s.subSequence(start, end).toString());
+    }
+
+    /**
+     * @return index of the first ch in s between from (inclusive) and to (exclusive), or -1 if there isn't one
+     */
+    public static int indexOf(final CharSequence s, final char ch, int from, final int to) {
+        for(; from < to; ++from)
+            if(s.charAt(from) == ch)
+                return from;
+        return -1;
+    }
+
+    public static int indexOf(final CharSequence s, final String str, final int from) {
+        if(s instanceof String)
+            return ((String) s).indexOf(str, from);
+        final char first = str.charAt(0);
+        final int max = s.length() - str.length();
+        outer:
+        for(int i = from; i <= max; ++i) {
+            if(s.charAt(i) != first)
+                continue;
+            for(int j = 1; j < str.length(); ++j)
+                if(s.charAt(i + j) != str.charAt(j))
+                    continue outer;
+            return i;
+        }
+        return -1;
     }
 
     public Collection<String> splitSegment(final String s) {
@@ -115,9 +451,14 @@ public class Encoding extends Field {
     }
 
     @Override
-    public void encode(final StringBuilder sb, final Encoding enc) {
-        sb.append(this.value);
-        sb.append(enc.fieldDelimiter);
+    boolean reset(final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        return false; // immutable
+    }
+
+    @Override
+    public void encode(final MessageWriter w, final Encoding enc) {
+        w.text(this.value);
+        w.delimiter(enc.fieldDelimiter);
     }
 
     @Override
@@ -150,10 +491,15 @@ public class Encoding extends Field {
         }
 
         @Override
-        public void encode(final StringBuilder sb, final Encoding enc) {
+        public void encode(final MessageWriter w, final Encoding enc) {
             // do nothing
         }
 
+        @Override
+        boolean reset(final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+            return false; // immutable
+        }
+
         @Override
         public String value() {
             return value;
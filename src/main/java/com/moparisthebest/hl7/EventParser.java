@@ -0,0 +1,129 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.text.ParseException;
+
+/**
+ * Walks a message firing MessageHandler events as it goes, nothing is allocated per segment or field, so this is
+ * the way to pull a handful of values out of a lot of messages without building a Message for each.
+ * <p>
+ * MSH-1 and MSH-2 are reported as fields but never split, like Message does.
+ */
+public final class EventParser {
+
+    private EventParser() {
+    }
+
+    /**
+     * Detects the Encoding from the MSH segment, then parses from there to the end of s
+     *
+     * @return the detected Encoding
+     */
+    public static Encoding parse(final CharSequence s, final MessageHandler handler) throws ParseException {
+        final int mshIdx = Encoding.indexOf(s, "MSH", 0);
+        final Encoding enc = Encoding.detect(s, mshIdx);
+        parse(s, mshIdx, s.length(), enc, handler);
+        return enc;
+    }
+
+    /**
+     * Parses s between start and end with a known Encoding, start must be the beginning of a segment
+     */
+    public static void parse(final CharSequence s, final int start, final int end, final Encoding enc, final MessageHandler handler) {
+        handler.startMessage(enc);
+        int segmentIndex = 0;
+        for(int off = start, next; off < end; off = next + 1) {
+            final boolean msh = isMsh(s, off, end, enc);
+            // MSH-2 is never split, even if it happens to contain segmentDelimiter
+            if((next = Encoding.indexOf(s, enc.segmentDelimiter, msh ? off + 8 : off, end)) == -1)
+                next = end;
+            if(next == off)
+                continue;
+            if(handler.startSegment(segmentIndex, s, off, next))
+                segment(s, off, next, msh, enc, handler);
+            handler.endSegment(segmentIndex++);
+        }
+        handler.endMessage();
+    }
+
+    private static boolean isMsh(final CharSequence s, final int off, final int end, final Encoding enc) {
+        return end - off >= 8 && s.charAt(off) == 'M' && s.charAt(off + 1) == 'S' && s.charAt(off + 2) == 'H'
+                && s.charAt(off + 3) == enc.fieldDelimiter;
+    }
+
+    private static void segment(final CharSequence s, int off, final int end, final boolean msh, final Encoding enc, final MessageHandler handler) {
+        int fieldIndex = 0;
+        if(msh) {
+            handler.field(0, s, off, off + 3);
+            handler.field(1, s, off + 3, off + 4);
+            // MSH-2 runs to the next field delimiter, normally exactly 4 characters
+            int next = Encoding.indexOf(s, enc.fieldDelimiter, off + 4, end);
+            if(next == -1)
+                next = end;
+            handler.field(2, s, off + 4, next);
+            if(next == end)
+                return;
+            off = next + 1;
+            fieldIndex = 3;
+        }
+        for(int next; ; off = next + 1, ++fieldIndex) {
+            if((next = Encoding.indexOf(s, enc.fieldDelimiter, off, end)) == -1)
+                next = end;
+            if(handler.field(fieldIndex, s, off, next) && fieldIndex != 0)
+                field(s, off, next, fieldIndex, enc, handler);
+            if(next == end)
+                return;
+        }
+    }
+
+    private static void field(final CharSequence s, int off, final int end, final int fieldIndex, final Encoding enc, final MessageHandler handler) {
+        for(int next, repetitionIndex = 1; ; off = next + 1, ++repetitionIndex) {
+            if((next = Encoding.indexOf(s, enc.repetitionDelimiter, off, end)) == -1)
+                next = end;
+            if(handler.repetition(fieldIndex, repetitionIndex, s, off, next))
+                repetition(s, off, next, fieldIndex, repetitionIndex, enc, handler);
+            if(next == end)
+                return;
+        }
+    }
+
+    private static void repetition(final CharSequence s, int off, final int end, final int fieldIndex, final int repetitionIndex, final Encoding enc, final MessageHandler handler) {
+        for(int next, componentIndex = 1; ; off = next + 1, ++componentIndex) {
+            if((next = Encoding.indexOf(s, enc.componentDelimiter, off, end)) == -1)
+                next = end;
+            if(handler.component(fieldIndex, repetitionIndex, componentIndex, s, off, next))
+                component(s, off, next, fieldIndex, repetitionIndex, componentIndex, enc, handler);
+            if(next == end)
+                return;
+        }
+    }
+
+    private static void component(final CharSequence s, int off, final int end, final int fieldIndex, final int repetitionIndex, final int componentIndex, final Encoding enc, final MessageHandler handler) {
+        for(int next, subComponentIndex = 1; ; off = next + 1, ++subComponentIndex) {
+            if((next = Encoding.indexOf(s, enc.subComponentDelimiter, off, end)) == -1)
+                next = end;
+            handler.subComponent(fieldIndex, repetitionIndex, componentIndex, subComponentIndex, s, off, next);
+            if(next == end)
+                return;
+        }
+    }
+}
@@ -22,10 +22,19 @@ package com.moparisthebest.hl7;
 
 public class Field extends SubComponentContainer<Repetition> {
 
+    /**
+     * Shared and read-only, returned by the get accessors for anything that doesn't exist, instead of creating it
+     */
+    public static final Field EMPTY = new Field(Repetition.EMPTY);
+
     Field() {
         super();
     }
 
+    private Field(final Repetition empty) {
+        super(empty);
+    }
+
     Field(final String s) {
         super(s);
     }
@@ -34,8 +43,16 @@ public class Field extends SubComponentContainer<Repetition> {
         super(s);
     }
 
-    Field(final String s, final Encoding enc) {
-        super(s, enc, enc.repetitionDelimiter);
+    Field(final Field toShare, final Owner owner) {
+        super(toShare, owner);
+    }
+
+    Field(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc) {
+        super(owner, s, start, end, enc, false);
+    }
+
+    Field(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        super(owner, s, start, end, enc, lazy);
     }
 
     @Override
@@ -49,8 +66,8 @@ public class Field extends SubComponentContainer<Repetition> {
     }
 
     @Override
-    Repetition newSubComponent(final String s, final Encoding enc) {
-        return new Repetition(s, enc);
+    Repetition newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc) {
+        return new Repetition(owner, s, start, end, enc);
     }
 
     @Override
@@ -58,8 +75,18 @@ public class Field extends SubComponentContainer<Repetition> {
         return new Repetition(s);
     }
 
-    public void encode(final StringBuilder sb, final Encoding enc) {
-        super.encode(sb, enc, enc.repetitionDelimiter, enc.fieldDelimiter);
+    @Override
+    Repetition newSubComponent(final Repetition s, final Owner owner) {
+        return new Repetition(s, owner);
+    }
+
+    @Override
+    char delimiter(final Encoding enc) {
+        return enc.repetitionDelimiter;
+    }
+
+    public void encode(final MessageWriter w, final Encoding enc) {
+        super.encode(w, enc, enc.repetitionDelimiter, enc.fieldDelimiter);
     }
 
     public RepetitionCounter repetitionCounter() {
@@ -75,6 +102,8 @@ public class Field extends SubComponentContainer<Repetition> {
     }
 
     public Repetition removeRepetition(final int index) {
+        super.expand();
+        super.checkOwned();
         return super.subComponents.remove(index - 1);
     }
 
@@ -98,6 +127,29 @@ public class Field extends SubComponentContainer<Repetition> {
         return this.component(componentIndex).subComponent(subComponentIndex);
     }
 
+    /**
+     * Like repetition, but never changes this
+     */
+    public Repetition getRepetition(final int index) {
+        return super.get1Based(index, Repetition.EMPTY);
+    }
+
+    public Component getComponent(final int repetitionIndex, final int componentIndex) {
+        return this.getRepetition(repetitionIndex).getComponent(componentIndex);
+    }
+
+    public Component getComponent(final int index) {
+        return this.getRepetition(1).getComponent(index);
+    }
+
+    public SubComponent getSubComponent(final int repetitionIndex, final int componentIndex, final int subComponentIndex) {
+        return this.getRepetition(repetitionIndex).getComponent(componentIndex).getSubComponent(subComponentIndex);
+    }
+
+    public SubComponent getSubComponent(final int componentIndex, final int subComponentIndex) {
+        return this.getComponent(componentIndex).getSubComponent(subComponentIndex);
+    }
+
     // shorter aliases
 
     public RepetitionCounter rc() {
@@ -0,0 +1,189 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.text.ParseException;
+import java.util.Arrays;
+
+/**
+ * Splits a stream of MLLP frames (&lt;VT&gt;message&lt;FS&gt;&lt;CR&gt;) into messages, reading as much as is available
+ * into one internal buffer at a time instead of a byte at a time.
+ *
+ * Frames are found byte by byte and never converted to chars here, see ByteChars.
+ *
+ * Keeps any partial frame (or following frames) buffered between calls, so one should be kept for the lifetime of
+ * a connection and only used by one thread at a time.
+ */
+public class FrameDecoder {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    private final Encoding enc;
+    private final int maxFrameSize;
+    private byte[] buf;
+    // unconsumed bytes are from start (inclusive) to end (exclusive), everything before scanned is known not to be a fileSeperator
+    private int start, end, scanned;
+
+    /**
+     * @param maxFrameSize largest frame accepted, not counting the start and end blocks, the buffer never grows past
+     *                     what that needs, so a sender that never ends a frame can't use up all the memory
+     */
+    public FrameDecoder(final Encoding enc, final int bufferSize, final int maxFrameSize) {
+        if(maxFrameSize < 1 || maxFrameSize > Integer.MAX_VALUE - 3)
+            throw new IllegalArgumentException("maxFrameSize must be between 1 and Integer.MAX_VALUE - 3");
+        this.enc = enc;
+        this.maxFrameSize = maxFrameSize;
+        this.buf = new byte[Math.min(bufferSize, maxFrameSize + 3)];
+    }
+
+    public FrameDecoder(final Encoding enc, final int bufferSize) {
+        this(enc, bufferSize, DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    public FrameDecoder(final Encoding enc) {
+        this(enc, DEFAULT_BUFFER_SIZE);
+    }
+
+    public FrameDecoder() {
+        this(Message.DEFAULT_ENCODING);
+    }
+
+    public Encoding getEncoding() {
+        return enc;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * @return the next complete frame already in the buffer without its start and end blocks, or null if more needs read first,
+     * copied out of the buffer but still bytes, in the charset of the Encoding this was created with
+     * @throws ParseException if a fileSeperator isn't directly followed by a segmentDelimiter, the bad frame is discarded
+     */
+    public ByteChars nextFrame() throws ParseException {
+        final byte fileSeperator = (byte) enc.fileSeperator;
+        for(int i = scanned; i < end; ++i) {
+            if(buf[i] != fileSeperator)
+                continue;
+            if(i + 1 == end) {
+                // need the segmentDelimiter after it
+                scanned = i;
+                return null;
+            }
+            final int frameStart = frameStart(i);
+            start = scanned = i + 2;
+            if(buf[i + 1] != (byte) enc.segmentDelimiter)
+                throw new ParseException("HL7 messages have a segmentDelimiter directly following a fileSeperator", i - frameStart);
+            return new ByteChars(Arrays.copyOfRange(buf, frameStart, i), enc.charset);
+        }
+        scanned = end;
+        return null;
+    }
+
+    private int frameStart(final int frameEnd) {
+        // skip anything before the verticalTab
+        final byte verticalTab = (byte) enc.verticalTab;
+        for(int i = start; i < frameEnd; ++i)
+            if(buf[i] == verticalTab)
+                return i + 1;
+        return start;
+    }
+
+    /**
+     * Reads whatever is available from is into the buffer, blocking only if nothing is
+     *
+     * @return number of bytes read, or -1 at end of stream
+     * @throws IOException if the frame being read is already bigger than maxFrameSize, nothing more can be read after
+     */
+    public int fill(final InputStream is) throws IOException {
+        makeRoom();
+        final int read = is.read(buf, end, buf.length - end);
+        if(read > 0)
+            end += read;
+        return read;
+    }
+
+    /**
+     * Reads whatever is available from ch into the buffer, for a non-blocking channel this may be nothing
+     *
+     * @return number of bytes read, or -1 at end of stream
+     * @throws IOException if the frame being read is already bigger than maxFrameSize, nothing more can be read after
+     */
+    public int fill(final ReadableByteChannel ch) throws IOException {
+        makeRoom();
+        final int read = ch.read(ByteBuffer.wrap(buf, end, buf.length - end));
+        if(read > 0)
+            end += read;
+        return read;
+    }
+
+    /**
+     * @return true if there are bytes buffered that aren't part of a complete frame yet
+     */
+    public boolean hasPartialFrame() {
+        return start != end;
+    }
+
+    private void makeRoom() throws IOException {
+        // only called once there's no complete frame buffered, so this is all one frame, start and end blocks included
+        if(end - start > maxFrameSize + 2)
+            throw new IOException("MLLP frame larger than maxFrameSize of " + maxFrameSize + " bytes");
+        if(start == end) {
+            start = end = scanned = 0;
+        } else if(end == buf.length) {
+            if(start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                scanned -= start;
+                start = 0;
+            } else {
+                final byte[] bigger = new byte[(int) Math.min(buf.length * 2L, maxFrameSize + 3L)];
+                System.arraycopy(buf, 0, bigger, 0, end);
+                buf = bigger;
+            }
+        }
+    }
+
+    /**
+     * @return next frame, reading from is as needed, or null if is ended before another complete frame
+     */
+    public ByteChars readFrame(final InputStream is) throws IOException, ParseException {
+        ByteChars frame;
+        while((frame = nextFrame()) == null)
+            if(fill(is) == -1)
+                return null; // no complete message received
+        return frame;
+    }
+
+    /**
+     * @return next message, reading from is as needed, or null if is ended before another complete message
+     */
+    public Message read(final InputStream is) throws IOException, ParseException {
+        final ByteChars frame = readFrame(is);
+        return frame == null ? null : new Message(frame);
+    }
+}
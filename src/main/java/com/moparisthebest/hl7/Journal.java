@@ -0,0 +1,503 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal of received frames, kept in a directory of fixed size memory mapped segments, each with an
+ * index of timestamp and offset for every frame so a time range can be found without reading everything before it.
+ *
+ * Appending only copies into the mapped segment, nothing hits the disk until sync, which forces everything appended
+ * so far, by anyone, so concurrent syncs share one fsync. Sequence numbers start at 0 and keep counting across
+ * segments and restarts, timestamps are milliseconds and never go backwards, even if the clock does.
+ *
+ * Frames appended but not synced may be lost in a crash, anything after the last complete frame in a segment is
+ * ignored when opened again. Old segments can be deleted, or moved elsewhere, while this isn't open.
+ */
+public final class Journal implements Closeable {
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final String SUFFIX = ".journal", INDEX_SUFFIX = ".index";
+    // record is length, crc, then the rest is covered by crc: timestamp, remote, control id, frame
+    private static final int HEADER = 8, INDEX_ENTRY = 12;
+    // index has room for one entry per this many bytes of segment, frames almost never average smaller
+    private static final int MIN_AVERAGE_RECORD = 64;
+
+    private final Path dir;
+    private final int segmentSize;
+    private final Charset charset;
+
+    // everything below is guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private final CRC32 crc = new CRC32();
+    private Segment current;
+    private long nextSequence, lastTimestamp;
+    private boolean closed;
+
+    // group commit, guarded by syncLock
+    private final Object syncLock = new Object();
+    private long synced;
+    private boolean syncing;
+
+    /**
+     * Opens the journal in dir, creating it if needed, and carries on after whatever is already in it
+     *
+     * @param segmentSize most bytes per segment file, one frame plus its metadata must fit in one
+     * @param charset     what frames read back are if MSH-18 doesn't say, null means ISO-8859-1
+     */
+    public Journal(final Path dir, final int segmentSize, final Charset charset) throws IOException {
+        if(segmentSize < 1024)
+            throw new IllegalArgumentException("segmentSize must be at least 1024");
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.charset = charset;
+        Files.createDirectories(dir);
+        final List<Long> firsts = new ArrayList<>();
+        try (DirectoryStream<Path> ds = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for(final Path p : ds) {
+                final String name = p.getFileName().toString();
+                try {
+                    firsts.add(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    // not ours
+                }
+            }
+        }
+        firsts.sort(null);
+        for(int x = 0; x < firsts.size() - 1; ++x)
+            segments.put(firsts.get(x), Segment.sealed(dir, firsts.get(x)));
+        final long last = firsts.isEmpty() ? 0 : firsts.get(firsts.size() - 1);
+        current = Segment.open(dir, last, segmentSize, crc);
+        segments.put(last, current);
+        nextSequence = last + current.count;
+        lastTimestamp = current.count == 0 ? 0 : current.timestamp(current.count - 1);
+        synced = nextSequence - 1;
+    }
+
+    public Journal(final Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, null);
+    }
+
+    /**
+     * Appends frame, with remote and its MSH-10, see append(ByteChars, String, String)
+     */
+    public long append(final ByteChars frame, final SocketAddress remote) throws IOException {
+        return append(frame, remote == null ? null : remote.toString(), controlId(frame));
+    }
+
+    /**
+     * @param remote    who sent it, or null
+     * @param controlId MSH-10 of frame, or null
+     * @return sequence number of frame, pass to sync to make sure it's on disk
+     */
+    public long append(final ByteChars frame, final String remote, final String controlId) throws IOException {
+        final byte[] r = bytes(remote), id = bytes(controlId);
+        final int length = 8 + 2 + r.length + 2 + id.length + frame.length();
+        if(HEADER + length > segmentSize)
+            throw new IOException("frame of " + frame.length() + " bytes doesn't fit in a " + segmentSize + " byte journal segment");
+        synchronized (this) {
+            if(closed)
+                throw new IOException("journal is closed");
+            if(!current.fits(HEADER + length)) {
+                // a sealed segment is always on disk, so sync only ever needs to force current
+                current.force();
+                current = Segment.open(dir, nextSequence, segmentSize, crc);
+                segments.put(nextSequence, current);
+            }
+            lastTimestamp = Math.max(lastTimestamp, System.currentTimeMillis());
+            current.append(lastTimestamp, r, id, frame, length, crc);
+            return nextSequence++;
+        }
+    }
+
+    private static byte[] bytes(final String s) {
+        if(s == null)
+            return new byte[0];
+        final byte[] ret = s.getBytes(StandardCharsets.UTF_8);
+        // length is stored in 2 bytes, and no real address or control id is anywhere near this
+        return ret.length > 0xFFFF ? new byte[0] : ret;
+    }
+
+    /**
+     * @return MSH-10 of frame as is, or null if frame doesn't start with MSH or is too short
+     */
+    static String controlId(final CharSequence frame) {
+        if(frame.length() < 4 || frame.charAt(0) != 'M' || frame.charAt(1) != 'S' || frame.charAt(2) != 'H')
+            return null;
+        final char sep = frame.charAt(3);
+        int field = 1, start = -1;
+        for(int i = 3; i < frame.length(); ++i) {
+            final char c = frame.charAt(i);
+            if(c == '\r' || c == '\n')
+                return start == -1 ? null : frame.subSequence(start, i).toString();
+            if(c == sep) {
+                if(start != -1)
+                    return frame.subSequence(start, i).toString();
+                if(++field == 10)
+                    start = i + 1;
+            }
+        }
+        return start == -1 ? null : frame.subSequence(start, frame.length()).toString();
+    }
+
+    /**
+     * Waits until sequence, and everything before it, is on disk, if nobody else is already syncing this does it
+     * for everyone waiting, otherwise waits for them and then goes again if that didn't cover sequence
+     */
+    public void sync(final long sequence) throws IOException {
+        synchronized (syncLock) {
+            while(synced < sequence && syncing) {
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted waiting for journal sync");
+                }
+            }
+            if(synced >= sequence)
+                return;
+            syncing = true;
+        }
+        long target = -1;
+        boolean done = false;
+        try {
+            final Segment seg;
+            synchronized (this) {
+                target = nextSequence - 1;
+                seg = current;
+            }
+            seg.force();
+            done = true;
+        } finally {
+            synchronized (syncLock) {
+                syncing = false;
+                if(done)
+                    synced = Math.max(synced, target);
+                // if it failed someone else waiting gets to try
+                syncLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Calls action with every frame received in [from, to), in order
+     *
+     * @return how many frames action was called with
+     */
+    public long read(final Instant from, final Instant to, final Consumer<Entry> action) {
+        final long fromMillis = from.toEpochMilli(), toMillis = to.toEpochMilli();
+        final List<Map.Entry<Long, Segment>> segs;
+        synchronized (this) {
+            segs = new ArrayList<>(segments.entrySet());
+        }
+        long ret = 0;
+        for(final Map.Entry<Long, Segment> e : segs) {
+            final Segment seg = e.getValue();
+            // anything appended from here on is just not read
+            final int count = seg.count;
+            if(count == 0 || seg.timestamp(count - 1) < fromMillis)
+                continue;
+            for(int i = seg.firstAtOrAfter(fromMillis, count); i < count; ++i) {
+                final Entry entry = seg.entry(e.getKey(), i, charset);
+                if(entry.timestamp >= toMillis)
+                    return ret;
+                action.accept(entry);
+                ++ret;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Parses every frame received in [from, to) and hands it to processor, in order, ignoring the responses,
+     * anything thrown while parsing or processing is passed to processor.handle with a null Server
+     *
+     * @return how many frames were processed without throwing
+     */
+    public long replay(final Instant from, final Instant to, final MessageProcessor processor) {
+        final long[] ret = new long[1];
+        read(from, to, e -> {
+            try {
+                processor.process(e.toMessage());
+                ++ret[0];
+            } catch (final Throwable t) {
+                processor.handle(t, null);
+            }
+        });
+        return ret[0];
+    }
+
+    /**
+     * @return sequence number the next frame appended will get
+     */
+    public synchronized long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Syncs everything and stops any more appends, this can still be read
+     */
+    @Override
+    public void close() throws IOException {
+        final long last;
+        synchronized (this) {
+            if(closed)
+                return;
+            closed = true;
+            last = nextSequence - 1;
+        }
+        sync(last);
+    }
+
+    /**
+     * One frame read back from the journal
+     */
+    public static final class Entry {
+
+        private final long sequence, timestamp;
+        private final String remote, controlId;
+        private final ByteChars frame;
+
+        private Entry(final long sequence, final long timestamp, final String remote, final String controlId, final ByteChars frame) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.remote = remote;
+            this.controlId = controlId;
+            this.frame = frame;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public Instant getTimestamp() {
+            return Instant.ofEpochMilli(timestamp);
+        }
+
+        /**
+         * @return who sent it, or null if not known
+         */
+        public String getRemote() {
+            return remote;
+        }
+
+        /**
+         * @return MSH-10, or null if not known
+         */
+        public String getControlId() {
+            return controlId;
+        }
+
+        /**
+         * @return the frame exactly as received, copied out of the journal
+         */
+        public ByteChars getFrame() {
+            return frame;
+        }
+
+        public Message toMessage() throws ParseException {
+            return new Message(frame);
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "sequence=" + sequence +
+                    ", timestamp=" + getTimestamp() +
+                    ", remote='" + remote + '\'' +
+                    ", controlId='" + controlId + '\'' +
+                    '}';
+        }
+    }
+
+    private static final class Segment {
+
+        private final MappedByteBuffer data, index;
+        // only set if this can be appended to, used under the Journal's lock
+        private final ByteBuffer writer, crcView;
+        // records in this, and bytes of data they take up, only change under the Journal's lock
+        private volatile int count;
+        private int end;
+
+        private Segment(final MappedByteBuffer data, final MappedByteBuffer index, final boolean writable) {
+            this.data = data;
+            this.index = index;
+            this.writer = writable ? data.duplicate() : null;
+            this.crcView = writable ? data.duplicate() : null;
+        }
+
+        private static Path path(final Path dir, final long first, final String suffix) {
+            return dir.resolve(String.format("%020d", first) + suffix);
+        }
+
+        private static MappedByteBuffer map(final Path p, final FileChannel.MapMode mode, final long size) throws IOException {
+            try (FileChannel ch = mode == FileChannel.MapMode.READ_ONLY ? FileChannel.open(p, StandardOpenOption.READ) :
+                    FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+                // mapping stays valid after the channel is closed
+                return ch.map(mode, 0, size < 0 ? ch.size() : size);
+            }
+        }
+
+        static Segment sealed(final Path dir, final long first) throws IOException {
+            final Segment ret = new Segment(map(path(dir, first, SUFFIX), FileChannel.MapMode.READ_ONLY, -1),
+                    map(path(dir, first, INDEX_SUFFIX), FileChannel.MapMode.READ_ONLY, -1), false);
+            // entries are only ever filled in order, so find the first one never written
+            int lo = 0, hi = ret.index.capacity() / INDEX_ENTRY;
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if(ret.end(mid) == 0)
+                    hi = mid;
+                else
+                    lo = mid + 1;
+            }
+            ret.count = lo;
+            return ret;
+        }
+
+        /**
+         * Opens, or creates, a segment to append to, rebuilding its index from whatever complete records it has
+         */
+        static Segment open(final Path dir, final long first, final int segmentSize, final CRC32 crc) throws IOException {
+            final Segment ret = new Segment(map(path(dir, first, SUFFIX), FileChannel.MapMode.READ_WRITE, segmentSize),
+                    map(path(dir, first, INDEX_SUFFIX), FileChannel.MapMode.READ_WRITE, (long) segmentSize / MIN_AVERAGE_RECORD * INDEX_ENTRY), true);
+            final ByteBuffer data = ret.data;
+            int pos = 0, n = 0;
+            while(pos + HEADER <= data.capacity() && n < ret.capacity()) {
+                final int length = data.getInt(pos);
+                if(length < 8 || length > data.capacity() - pos - HEADER || data.getInt(pos + 4) != ret.crc(crc, pos, length))
+                    break;
+                pos += HEADER + length;
+                ret.index(n++, data.getLong(pos - length), pos);
+            }
+            // forget anything past the last complete record, so nothing after it is ever mistaken for one
+            for(int x = n; x < ret.capacity() && ret.end(x) != 0; ++x)
+                ret.index(x, 0, 0);
+            if(pos + HEADER <= data.capacity())
+                data.putInt(pos, 0);
+            ret.count = n;
+            ret.end = pos;
+            return ret;
+        }
+
+        private int capacity() {
+            return index.capacity() / INDEX_ENTRY;
+        }
+
+        boolean fits(final int bytes) {
+            return count < capacity() && end + bytes <= data.capacity();
+        }
+
+        private int crc(final CRC32 crc, final int start, final int length) {
+            crcView.limit(start + HEADER + length);
+            crcView.position(start + HEADER);
+            crc.reset();
+            crc.update(crcView);
+            return (int) crc.getValue();
+        }
+
+        private void index(final int i, final long timestamp, final int end) {
+            index.putLong(i * INDEX_ENTRY, timestamp);
+            index.putInt(i * INDEX_ENTRY + 8, end);
+        }
+
+        long timestamp(final int i) {
+            return index.getLong(i * INDEX_ENTRY);
+        }
+
+        private int end(final int i) {
+            return index.getInt(i * INDEX_ENTRY + 8);
+        }
+
+        void append(final long timestamp, final byte[] remote, final byte[] controlId, final ByteChars frame, final int length, final CRC32 crc) {
+            final int start = end;
+            writer.position(start + HEADER);
+            writer.putLong(timestamp).putShort((short) remote.length).put(remote).putShort((short) controlId.length).put(controlId);
+            frame.copyTo(writer);
+            data.putInt(start + 4, crc(crc, start, length));
+            data.putInt(start, length);
+            end = start + HEADER + length;
+            index(count, timestamp, end);
+            // readers only look at records below count
+            count = count + 1;
+        }
+
+        void force() {
+            data.force();
+            index.force();
+        }
+
+        // first record with a timestamp of at least millis, or count
+        int firstAtOrAfter(final long millis, final int count) {
+            int lo = 0, hi = count;
+            while(lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if(timestamp(mid) < millis)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+
+        Entry entry(final long first, final int i, final Charset charset) {
+            final ByteBuffer bb = data.duplicate();
+            bb.limit(end(i));
+            bb.position(i == 0 ? 0 : end(i - 1));
+            bb.position(bb.position() + HEADER);
+            final long timestamp = bb.getLong();
+            final String remote = string(bb), controlId = string(bb);
+            final byte[] frame = new byte[bb.remaining()];
+            bb.get(frame);
+            return new Entry(first + i, timestamp, remote, controlId, new ByteChars(frame, charset));
+        }
+
+        private static String string(final ByteBuffer bb) {
+            final int length = bb.getShort() & 0xFFFF;
+            if(length == 0)
+                return null;
+            final byte[] ret = new byte[length];
+            bb.get(ret);
+            return new String(ret, StandardCharsets.UTF_8);
+        }
+    }
+}
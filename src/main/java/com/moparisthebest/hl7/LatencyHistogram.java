@@ -0,0 +1,125 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of nanosecond latencies, recorded into buckets that double in size every 8, so percentiles are
+ * within about 12% of the real value however large they get, in a fixed 4KB.
+ *
+ * The getters are in microseconds, and are what JMX sees.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 3, SUB = 1 << SUB_BITS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(index(Long.MAX_VALUE) + 1);
+    private final LongAdder count = new LongAdder(), sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long nanos) {
+        if(nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        max.accumulate(nanos);
+    }
+
+    // below SUB each value has its own bucket, above that SUB buckets per power of 2
+    private static int index(final long nanos) {
+        if(nanos < SUB)
+            return (int) nanos;
+        final int exp = 63 - Long.numberOfLeadingZeros(nanos);
+        return ((exp - SUB_BITS + 1) << SUB_BITS) | (int) ((nanos >>> (exp - SUB_BITS)) & (SUB - 1));
+    }
+
+    // largest value that lands in index
+    private static long highest(final int index) {
+        if(index < SUB)
+            return index;
+        final int shift = (index >>> SUB_BITS) - 1;
+        return ((long) (SUB | (index & (SUB - 1))) << shift) + (1L << shift) - 1;
+    }
+
+    /**
+     * @param fraction like 0.99
+     * @return nanos fraction of everything recorded was at or below, give or take a bucket, or 0 if nothing was
+     */
+    public long percentile(final double fraction) {
+        final long total = count.sum();
+        if(total == 0)
+            return 0;
+        final long wanted = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for(int i = 0; i < buckets.length(); ++i)
+            if((seen += buckets.get(i)) >= wanted)
+                return Math.min(highest(i), max.get());
+        // count got ahead of the buckets while reading
+        return max.get();
+    }
+
+    public void reset() {
+        for(int i = 0; i < buckets.length(); ++i)
+            buckets.set(i, 0);
+        count.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public double getMeanMicros() {
+        final long n = count.sum();
+        return n == 0 ? 0 : sum.sum() / (double) n / 1000;
+    }
+
+    public double getMaxMicros() {
+        return max.get() / 1000.0;
+    }
+
+    public double getP50Micros() {
+        return percentile(0.5) / 1000.0;
+    }
+
+    public double getP90Micros() {
+        return percentile(0.9) / 1000.0;
+    }
+
+    public double getP99Micros() {
+        return percentile(0.99) / 1000.0;
+    }
+
+    public double getP999Micros() {
+        return percentile(0.999) / 1000.0;
+    }
+
+    @Override
+    public String toString() {
+        return "LatencyHistogram{count=" + getCount() + ", meanMicros=" + getMeanMicros() + ", p50Micros=" + getP50Micros() +
+                ", p99Micros=" + getP99Micros() + ", maxMicros=" + getMaxMicros() + '}';
+    }
+}
@@ -20,8 +20,19 @@
 
 package com.moparisthebest.hl7;
 
+import java.util.BitSet;
+
 public class Line extends SubComponentContainer<Field> {
 
+    /**
+     * Shared and read-only, returned by the get accessors for anything that doesn't exist, instead of creating it
+     */
+    public static final Line EMPTY = new Line(Field.EMPTY);
+
+    private Line(final Field empty) {
+        super(empty);
+    }
+
     public Line(final String s) {
         super(s);
     }
@@ -30,8 +41,33 @@ public class Line extends SubComponentContainer<Field> {
         super(toClone);
     }
 
-    Line(final String s, final Encoding enc) {
-        super(s, enc, enc.fieldDelimiter);
+    /**
+     * Shares the fields of toShare, see Message(Message)
+     */
+    Line(final Line toShare, final Owner owner) {
+        super(toShare, owner);
+    }
+
+    Line(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        super(owner, s, start, end, enc, lazy);
+    }
+
+    /**
+     * Only the fields set in eager are split, the rest stay unparsed until something reads or writes them
+     */
+    Line(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc, final BitSet eager) {
+        super(owner, s, start, end, enc, eager);
+    }
+
+    /**
+     * Checks the segment type without parsing the rest of this line
+     */
+    String type() {
+        return super.firstValue();
+    }
+
+    boolean isType(final String type) {
+        return super.firstEquals(type);
     }
 
     @Override
@@ -45,8 +81,13 @@ public class Line extends SubComponentContainer<Field> {
     }
 
     @Override
-    Field newSubComponent(final String s, final Encoding enc) {
-        return new Field(s, enc);
+    Field newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc) {
+        return new Field(owner, s, start, end, enc);
+    }
+
+    @Override
+    Field newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        return new Field(owner, s, start, end, enc, lazy);
     }
 
     @Override
@@ -55,8 +96,18 @@ public class Line extends SubComponentContainer<Field> {
         return s instanceof Encoding || s instanceof Encoding.MSH1 ? s : new Field(s);
     }
 
-    public void encode(final StringBuilder sb, final Encoding enc) {
-        super.encode(sb, enc, enc.fieldDelimiter, enc.segmentDelimiter);
+    @Override
+    Field newSubComponent(final Field s, final Owner owner) {
+        return s instanceof Encoding || s instanceof Encoding.MSH1 ? s : new Field(s, owner);
+    }
+
+    @Override
+    char delimiter(final Encoding enc) {
+        return enc.fieldDelimiter;
+    }
+
+    public void encode(final MessageWriter w, final Encoding enc) {
+        super.encode(w, enc, enc.fieldDelimiter, enc.segmentDelimiter);
     }
 
     public Field field(final int index) {
@@ -83,6 +134,34 @@ public class Line extends SubComponentContainer<Field> {
         return this.field(fieldIndex).component(componentIndex).subComponent(subComponentIndex);
     }
 
+    /**
+     * The get accessors are like the others, but never change this or anything in it, if something doesn't exist
+     * a shared read-only EMPTY instance is returned instead of it being created
+     */
+    public Field getField(final int index) {
+        return super.get0Based(index, Field.EMPTY);
+    }
+
+    public Repetition getRepetition(final int fieldIndex, final int repetitionIndex) {
+        return this.getField(fieldIndex).getRepetition(repetitionIndex);
+    }
+
+    public Component getComponent(final int fieldIndex, final int repetitionIndex, final int componentIndex) {
+        return this.getField(fieldIndex).getRepetition(repetitionIndex).getComponent(componentIndex);
+    }
+
+    public Component getComponent(final int fieldIndex, final int componentIndex) {
+        return this.getField(fieldIndex).getComponent(componentIndex);
+    }
+
+    public SubComponent getSubComponent(final int fieldIndex, final int repetitionIndex, final int componentIndex, final int subComponentIndex) {
+        return this.getField(fieldIndex).getRepetition(repetitionIndex).getComponent(componentIndex).getSubComponent(subComponentIndex);
+    }
+
+    public SubComponent getSubComponent(final int fieldIndex, final int componentIndex, final int subComponentIndex) {
+        return this.getField(fieldIndex).getComponent(componentIndex).getSubComponent(subComponentIndex);
+    }
+
     // shorter aliases
 
     public Field f(final int index) {
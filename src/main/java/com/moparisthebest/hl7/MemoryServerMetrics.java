@@ -0,0 +1,305 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ServerMetrics kept in memory with lock-free counters and LatencyHistograms, overall, by MSH-9 type, and per open
+ * connection, so slow senders and slow message types stand out, read it directly or through JMX:
+ * <pre>
+ * final MemoryServerMetrics metrics = new MemoryServerMetrics();
+ * metrics.register("inbound");
+ * server.setMetrics(metrics);
+ * </pre>
+ */
+public class MemoryServerMetrics implements ServerMetrics, MemoryServerMetricsMXBean {
+
+    // MSH-9 comes from whoever connects, so only this many distinct types are kept apart, the rest are lumped together
+    private static final int MAX_TYPES = 256;
+    private static final String OTHER_TYPES = "other";
+
+    private final LongAdder connectionsOpened = new LongAdder(), connectionsRejected = new LongAdder(),
+            messages = new LongAdder(), bytesRead = new LongAdder(), bytesWritten = new LongAdder(), errors = new LongAdder();
+    private final LatencyHistogram parseLatency = new LatencyHistogram(), processLatency = new LatencyHistogram(),
+            writeLatency = new LatencyHistogram();
+
+    // message code -> trigger event -> stats, two levels so looking one up never builds a String
+    private final ConcurrentMap<String, ConcurrentMap<String, TypeStats>> byType = new ConcurrentHashMap<>();
+    private final AtomicInteger numTypes = new AtomicInteger();
+    private final TypeStats otherTypes = new TypeStats();
+
+    private final Set<ConnectionStats> connections = ConcurrentHashMap.newKeySet();
+    private volatile String lastError;
+
+    @Override
+    public ServerMetrics.Connection connectionOpened(final SocketAddress remote) {
+        connectionsOpened.increment();
+        final ConnectionStats ret = new ConnectionStats(remote);
+        connections.add(ret);
+        return ret;
+    }
+
+    @Override
+    public void connectionRejected(final SocketAddress remote) {
+        connectionsRejected.increment();
+    }
+
+    /**
+     * Registers this with the platform MBeanServer as com.moparisthebest.hl7:type=ServerMetrics,name=name
+     *
+     * @return name it was registered under, to unregister it with
+     */
+    public ObjectName register(final String name) throws JMException {
+        final ObjectName on = new ObjectName("com.moparisthebest.hl7:type=ServerMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+        return on;
+    }
+
+    private TypeStats type(final Message msg) {
+        final List<Line> lines = msg.lineList();
+        final Field type = lines.isEmpty() ? Field.EMPTY : lines.get(0).getField(9);
+        final String code = type.getComponent(1).value(), trigger = type.getComponent(2).value();
+        ConcurrentMap<String, TypeStats> triggers = byType.get(code);
+        TypeStats ret = triggers == null ? null : triggers.get(trigger);
+        if(ret != null)
+            return ret;
+        if(numTypes.get() >= MAX_TYPES)
+            return otherTypes;
+        if(triggers == null)
+            triggers = byType.computeIfAbsent(code, k -> new ConcurrentHashMap<>());
+        ret = triggers.computeIfAbsent(trigger, k -> {
+            numTypes.incrementAndGet();
+            return new TypeStats();
+        });
+        return ret;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getConnectionsRejected() {
+        return connectionsRejected.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return connections.size();
+    }
+
+    @Override
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    @Override
+    public String getLastError() {
+        return lastError;
+    }
+
+    @Override
+    public LatencyHistogram getParseLatency() {
+        return parseLatency;
+    }
+
+    @Override
+    public LatencyHistogram getProcessLatency() {
+        return processLatency;
+    }
+
+    @Override
+    public LatencyHistogram getWriteLatency() {
+        return writeLatency;
+    }
+
+    @Override
+    public Map<String, TypeStats> getLatencyByType() {
+        final Map<String, TypeStats> ret = new TreeMap<>();
+        for(final Map.Entry<String, ConcurrentMap<String, TypeStats>> code : byType.entrySet())
+            for(final Map.Entry<String, TypeStats> trigger : code.getValue().entrySet())
+                ret.put(trigger.getKey().isEmpty() ? code.getKey() : code.getKey() + '^' + trigger.getKey(), trigger.getValue());
+        if(otherTypes.parseLatency.getCount() > 0)
+            ret.put(OTHER_TYPES, otherTypes);
+        return ret;
+    }
+
+    @Override
+    public List<ConnectionStats> getConnections() {
+        return new ArrayList<>(connections);
+    }
+
+    @Override
+    public void reset() {
+        for(final LongAdder a : new LongAdder[]{connectionsOpened, connectionsRejected, messages, bytesRead, bytesWritten, errors})
+            a.reset();
+        parseLatency.reset();
+        processLatency.reset();
+        writeLatency.reset();
+        byType.clear();
+        numTypes.set(0);
+        lastError = null;
+        otherTypes.parseLatency.reset();
+        otherTypes.processLatency.reset();
+    }
+
+    public static final class TypeStats {
+
+        private final LatencyHistogram parseLatency = new LatencyHistogram(), processLatency = new LatencyHistogram();
+
+        public LatencyHistogram getParseLatency() {
+            return parseLatency;
+        }
+
+        public LatencyHistogram getProcessLatency() {
+            return processLatency;
+        }
+    }
+
+    /**
+     * Totals for one open connection, the averages are what point out a slow sender
+     */
+    public final class ConnectionStats implements ServerMetrics.Connection {
+
+        private final String remoteAddress;
+        private final long openedAt = System.currentTimeMillis();
+        private final LongAdder messages = new LongAdder(), bytesRead = new LongAdder(), bytesWritten = new LongAdder(),
+                parseNanos = new LongAdder(), processNanos = new LongAdder(), writeNanos = new LongAdder();
+
+        private ConnectionStats(final SocketAddress remote) {
+            this.remoteAddress = String.valueOf(remote);
+        }
+
+        @Override
+        public void frameRead(final int bytes) {
+            messages.increment();
+            bytesRead.add(bytes);
+            MemoryServerMetrics.this.messages.increment();
+            MemoryServerMetrics.this.bytesRead.add(bytes);
+        }
+
+        @Override
+        public void parsed(final Message msg, final long nanos) {
+            parseNanos.add(nanos);
+            parseLatency.record(nanos);
+            type(msg).parseLatency.record(nanos);
+        }
+
+        @Override
+        public void processed(final Message msg, final long nanos) {
+            processNanos.add(nanos);
+            processLatency.record(nanos);
+            type(msg).processLatency.record(nanos);
+        }
+
+        @Override
+        public void written(final long bytes, final long nanos) {
+            bytesWritten.add(bytes);
+            writeNanos.add(nanos);
+            MemoryServerMetrics.this.bytesWritten.add(bytes);
+            writeLatency.record(nanos);
+        }
+
+        @Override
+        public void failed(final Throwable e) {
+            lastError = remoteAddress + ": " + e;
+            errors.increment();
+        }
+
+        @Override
+        public void closed() {
+            connections.remove(this);
+        }
+
+        public String getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        public Date getOpenedAt() {
+            return new Date(openedAt);
+        }
+
+        public long getMessages() {
+            return messages.sum();
+        }
+
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        public long getBytesWritten() {
+            return bytesWritten.sum();
+        }
+
+        public double getMeanParseMicros() {
+            return mean(parseNanos);
+        }
+
+        public double getMeanProcessMicros() {
+            return mean(processNanos);
+        }
+
+        public double getMeanWriteMicros() {
+            return mean(writeNanos);
+        }
+
+        private double mean(final LongAdder nanos) {
+            final long n = messages.sum();
+            return n == 0 ? 0 : nanos.sum() / (double) n / 1000;
+        }
+
+        @Override
+        public String toString() {
+            return "ConnectionStats{remoteAddress='" + remoteAddress + "', messages=" + getMessages() +
+                    ", meanParseMicros=" + getMeanParseMicros() + ", meanProcessMicros=" + getMeanProcessMicros() + '}';
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What MemoryServerMetrics shows over JMX, see MemoryServerMetrics.register
+ */
+public interface MemoryServerMetricsMXBean {
+
+    long getConnectionsOpened();
+
+    long getConnectionsRejected();
+
+    int getActiveConnections();
+
+    long getMessages();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getErrors();
+
+    /**
+     * @return remote address and whatever ended the last connection that failed, or null
+     */
+    String getLastError();
+
+    LatencyHistogram getParseLatency();
+
+    LatencyHistogram getProcessLatency();
+
+    LatencyHistogram getWriteLatency();
+
+    /**
+     * @return parse and process latency by MSH-9 message code and trigger event, like ADT^A01
+     */
+    Map<String, MemoryServerMetrics.TypeStats> getLatencyByType();
+
+    /**
+     * @return every connection still open
+     */
+    List<MemoryServerMetrics.ConnectionStats> getConnections();
+
+    /**
+     * Zeroes every counter and histogram, open connections are kept
+     */
+    void reset();
+}
@@ -23,20 +23,33 @@ package com.moparisthebest.hl7;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.time.Instant;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Map;
+import java.util.RandomAccess;
 
 public class Message {
 
     public static final Encoding DEFAULT_ENCODING = new Encoding('\r', '~', '|', '^', '&', '\\'); // http://healthstandards.com/blog/2006/11/02/hl7-escape-sequences/
     public static final Encoding NEWLINE_ENCODING = new Encoding('\n', '~', '|', '^', '&', '\\');
 
-    private final List<Line> lines = new ArrayList<>();
+    private final Lines lines = new Lines();
+    // segment type -> every line of that type in order, only built on first lookup, thrown away if lines is changed other than appended to
+    private Map<String, List<Line>> index;
+    // lines left over from reset(), reused by the next reparse
+    private List<Line> spare;
+    // stamped on every line and everything under them this creates, only what carries it is changed in place
+    private Owner owner = new Owner();
 
     private Message(boolean doNothing) {
         // do nothing, only to be used from msa()
@@ -46,9 +59,17 @@ public class Message {
         line("MSH");
     }
 
+    /**
+     * Shares every line with toClone instead of copying them, whichever of the two changes something afterwards first
+     * copies just the line, field, and so on down to it, so copying a message to change a field or two costs little
+     * more than copying the list of lines. Anything taken out of toClone before this can still be read, but changing it
+     * throws IllegalStateException, take it out of toClone again to change it.
+     */
     public Message(final Message toClone) {
-        for(final Line line : toClone.lines)
-            this.lines.add(new Line(line));
+        final Owner shared = toClone.owner;
+        shared.shared = true;
+        toClone.owner = new Owner();
+        this.lines.list.addAll(toClone.lines.list);
     }
 
     public Message(final String sendingApplication, final String sendingFacility, final String receivingApplication, final String receivingFacility, final String messageCode, final String messageTriggerEvent, final String messageControlId, final String processingId, final String version) {
@@ -69,45 +90,155 @@ public class Message {
         msh.field(12).value(version);
     }
 
+    /**
+     * Parses everything right away, see Message(CharSequence, boolean) to only parse what is read
+     */
+    public Message(final CharSequence s) throws ParseException {
+        this(s, false);
+    }
+
+    // kept so code compiled against the String only version still links
     public Message(final String s) throws ParseException {
-        final int mshIdx = s.indexOf("MSH");
-        if(mshIdx == -1 || s.length() < (mshIdx + 8))
-            throw new ParseException("HL7 messages must start with an MSH segment", 0);
-
-        // detect segmentDelimiter
-        char segmentDelimiter = DEFAULT_ENCODING.segmentDelimiter;
-        final char fieldDelimiter = s.charAt(mshIdx + 3);
-        byte fieldDelimiterCount = 0;
-        // 11 fields in is the version, next non-number or . is segmentDelimiter
-        for(int i = mshIdx; i < s.length(); ++i) {
-            if(fieldDelimiterCount < 11) {
-                if(s.charAt(i) == fieldDelimiter)
-                    ++fieldDelimiterCount;
-            } else {
-                final char c = s.charAt(i);
-                if(c != '.' && !Character.isDigit(c)) {
-                    segmentDelimiter = c;
-                    break;
+        this((CharSequence) s);
+    }
+
+    /**
+     * Parses bytes in place, without converting the whole message to chars first, see ByteChars
+     *
+     * @param charset what the bytes are if MSH-18 doesn't say, null means ISO-8859-1
+     */
+    public Message(final byte[] bytes, final int offset, final int length, final Charset charset) throws ParseException {
+        this(new ByteChars(bytes, offset, length, charset));
+    }
+
+    public Message(final byte[] bytes, final Charset charset) throws ParseException {
+        this(bytes, 0, bytes.length, charset);
+    }
+
+    /**
+     * Parses the remaining bytes in bb without changing its position, array backed buffers are not copied
+     */
+    public Message(final ByteBuffer bb, final Charset charset) throws ParseException {
+        this(bb.hasArray() ? new ByteChars(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining(), charset) : copy(bb, charset));
+    }
+
+    private static ByteChars copy(final ByteBuffer bb, final Charset charset) {
+        final byte[] bytes = new byte[bb.remaining()];
+        bb.duplicate().get(bytes);
+        return new ByteChars(bytes, charset);
+    }
+
+    /**
+     * @param lazy if true, segments other than MSH are only split into fields the first time they are accessed,
+     *             segments never accessed are written back out by encode() exactly as they came in, either way this
+     *             can be read from several threads at once, as long as none of them change it
+     */
+    public Message(final CharSequence s, final boolean lazy) throws ParseException {
+        this(s, lazy ? Projection.NONE : Projection.ALL);
+    }
+
+    /**
+     * @param projection which segments and fields to parse right away, the rest are only parsed the first time they are
+     *                   accessed, and written back out by encode() exactly as they came in if they never are
+     */
+    public Message(final CharSequence s, final Projection projection) throws ParseException {
+        this.parse(s, projection);
+    }
+
+    /**
+     * Empties this, keeping its lines around to be reused by the next reparse
+     */
+    public Message reset() {
+        if(spare == null)
+            spare = new ArrayList<>();
+        // a stack, so the next reparse gets these back in the same order
+        for(int i = lines.list.size() - 1; i >= 0; --i) {
+            final Line line = lines.list.get(i);
+            // a copy of this may still be using it
+            if(line.owner != owner)
+                continue;
+            // undo the MSH shift so fields line back up with what they held
+            if(line.isExpanded() && line.subComponents.size() > 1 && line.subComponents.get(1) instanceof Encoding.MSH1)
+                line.subComponents.remove(1);
+            spare.add(line);
+        }
+        lines.list.clear();
+        index = null;
+        return this;
+    }
+
+    /**
+     * Parses s into this, reusing the lines, fields, and everything else this already had wherever the shape matches,
+     * so nothing read out of this before may be used afterwards, if s can't be parsed this is left unchanged
+     */
+    public Message reparse(final CharSequence s) throws ParseException {
+        return reparse(s, Projection.NONE);
+    }
+
+    public Message reparse(final CharSequence s, final Projection projection) throws ParseException {
+        return parse(s, projection);
+    }
+
+    private Message parse(CharSequence s, final Projection projection) throws ParseException {
+        final int mshIdx = Encoding.indexOf(s, "MSH", 0);
+        // same as last time is the usual case when reparsing
+        Encoding enc = Encoding.detect(s, mshIdx, previousEncoding());
+        if(s instanceof ByteChars) {
+            // MSH-18 wins over whatever the bytes were assumed to be
+            if(enc.charset == null)
+                enc = enc.withCharset(((ByteChars) s).charset());
+            else
+                s = ((ByteChars) s).withCharset(enc.charset);
+        }
+        if(!lines.isEmpty())
+            reset();
+        final char segmentDelimiter = enc.segmentDelimiter;
+        final int end = s.length();
+        int off = mshIdx;
+        Line msh = null;
+        for(int next; off < end; off = next + 1) {
+            // MSH-2 is never split, even if it happens to contain segmentDelimiter
+            if((next = Encoding.indexOf(s, segmentDelimiter, off == mshIdx ? mshIdx + 8 : off, end)) == -1)
+                next = end;
+            if(next != off) {
+                Line reuse = spare == null || spare.isEmpty() ? null : spare.remove(spare.size() - 1);
+                // left over from before this was copied
+                if(reuse != null && reuse.owner != owner)
+                    reuse = null;
+                if(off == mshIdx) {
+                    // MSH is always needed right away for the encoding
+                    lines.add(msh = Projection.ALL.line(reuse, owner, s, off, next, enc));
+                } else {
+                    lines.add(projection.line(reuse, owner, s, off, next, enc));
                 }
             }
         }
-
-        final Encoding enc = new Encoding(segmentDelimiter, s.charAt(mshIdx + 5), fieldDelimiter, s.charAt(mshIdx + 4), s.charAt(mshIdx + 7), s.charAt(mshIdx + 6));
-        for(final String line : enc.splitSegment("MSH" + fieldDelimiter + s.substring(mshIdx + 8)))
-            if(!line.isEmpty())
-                lines.add(new Line(line, enc));
         // shift MSH one to account for brain-dead 1st field while setting encoding
-        final Line msh = this.line("MSH");
         msh.field(2); // expand array sufficiently
         msh.subComponents.add(1, enc.msh1);
         msh.subComponents.set(2, enc);
+        return this;
+    }
+
+    /**
+     * @return Encoding of the first line if it's a parsed MSH, without building the index like getEncoding() would
+     */
+    private Encoding previousEncoding() {
+        if(lines.isEmpty())
+            return null;
+        final Line first = lines.list.get(0);
+        return first.isExpanded() && first.subComponents.size() > 2 && first.subComponents.get(2) instanceof Encoding ?
+                (Encoding) first.subComponents.get(2) : null;
     }
 
     public Encoding getEncoding() {
-        final Line msh = this.line("MSH");
-        final Field enc = msh.field(2);
+        // read without taking MSH for changing, which would copy it if it is shared with a copy of this
+        final Line first = firstLine("MSH");
+        final Field enc = first == null ? Field.EMPTY : first.getField(2);
         if(enc instanceof Encoding)
             return (Encoding)enc;
+        final Line msh = this.line("MSH");
+        msh.field(2); // expand array sufficiently
         msh.subComponents.set(1, DEFAULT_ENCODING.msh1);
         msh.subComponents.set(2, DEFAULT_ENCODING);
         return DEFAULT_ENCODING;
@@ -126,25 +257,34 @@ public class Message {
     }
 
     public String encode(final Encoding enc) {
-        // set encoding
-        setEncoding(enc);
-
         final StringBuilder sb = new StringBuilder();
-        for(final Line line : lines)
-            line.encode(sb, enc);
-        if(!lines.isEmpty()){
-            int index = 1;
-            while (index > 0 && sb.charAt(index = sb.length() - 1) == enc.segmentDelimiter)
-                sb.setLength(index);
-        }
+        MessageWriter.of(sb).write(this, enc);
         return sb.toString();
     }
 
     public Line optionalLine(final String type) {
-        for(final Line line : lines)
-            if(line.field(0).equals(type))
-                return line;
-        return null;
+        final Line line = firstLine(type);
+        return line == null ? null : owned(line);
+    }
+
+    private Line firstLine(final String type) {
+        List<Line> ofType = index().get(type);
+        if(ofType != null && !ofType.get(0).isType(type)) {
+            // type was changed in place, can't trust anything in the index
+            index = null;
+            ofType = index().get(type);
+        }
+        return ofType == null ? null : ofType.get(0);
+    }
+
+    /**
+     * Like line(type), but never adds it
+     *
+     * @return the first line of type, or the shared read-only Line.EMPTY if there isn't one
+     */
+    public Line getLine(final String type) {
+        final Line line = optionalLine(type);
+        return line == null ? Line.EMPTY : line;
     }
 
     public Line line(final String type) {
@@ -154,6 +294,22 @@ public class Message {
         return line;
     }
 
+    /**
+     * @param path like PID-3[2].1, see MessagePath
+     * @return value of the first thing path points to, or "" if it doesn't exist, never changes this
+     */
+    public String value(final String path) {
+        return MessagePath.compile(path).value(this);
+    }
+
+    /**
+     * @param path like PID-3[2].1, see MessagePath
+     */
+    public Message value(final String path, final String value) {
+        MessagePath.compile(path).set(this, value);
+        return this;
+    }
+
     public Line line(final int index) {
         return lines.get(index);
     }
@@ -162,8 +318,119 @@ public class Message {
         return lines;
     }
 
+    /**
+     * @return a new list of every line of type, in order, changing the list doesn't change this
+     */
     public List<Line> lines(final String type) {
-        return lines.stream().filter(l -> l.field(0).equals(type)).collect(Collectors.toList());
+        final List<Line> ofType = index().get(type);
+        if(ofType == null)
+            return new ArrayList<>();
+        final List<Line> ret = new ArrayList<>(ofType.size());
+        for(final Line line : ofType)
+            ret.add(owned(line));
+        return ret;
+    }
+
+    /**
+     * Like lines(type), but without copying the list, so it must not be changed
+     */
+    List<Line> linesOf(final String type) {
+        final List<Line> ofType = index().get(type);
+        return ofType == null ? Collections.emptyList() : ofType;
+    }
+
+    /**
+     * Like getLines(), but the list itself, so it must not be changed
+     */
+    List<Line> lineList() {
+        return lines.list;
+    }
+
+    /**
+     * Lookups by type are indexed, and the index kept up to date through anything that adds or removes lines,
+     * but a line's type changed in place with field(0) can only be noticed if this is called afterwards.
+     */
+    public Message reindex() {
+        index = null;
+        return this;
+    }
+
+    private Map<String, List<Line>> index() {
+        if(index == null) {
+            final Map<String, List<Line>> index = new HashMap<>();
+            for(final Line line : lines.list)
+                index.computeIfAbsent(line.type(), k -> new ArrayList<>(1)).add(line);
+            this.index = index;
+        }
+        return index;
+    }
+
+    private Line owned(final Line line) {
+        return line.owner == owner ? line : owned(lines.list.indexOf(line));
+    }
+
+    /**
+     * @return the line at index, first replaced with a copy stamped with this message's owner if it is shared with
+     * a copy of this, so changing it can't change the copy
+     */
+    private Line owned(final int i) {
+        final Line line = lines.list.get(i);
+        if(line.owner == owner)
+            return line;
+        final Line copy = new Line(line, owner);
+        lines.list.set(i, copy);
+        if(index != null) {
+            final List<Line> ofType = index.get(copy.type());
+            final int at = ofType == null ? -1 : ofType.indexOf(line);
+            if(at == -1)
+                index = null;
+            else
+                ofType.set(at, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * Keeps index up to date however lines is changed, including through getLines(), and hands out lines that can be
+     * changed, see owned(index)
+     */
+    private final class Lines extends AbstractList<Line> implements RandomAccess {
+
+        private final List<Line> list = new ArrayList<>();
+
+        @Override
+        public Line get(final int index) {
+            return owned(index);
+        }
+
+        @Override
+        public int size() {
+            return list.size();
+        }
+
+        @Override
+        public Line set(final int index, final Line line) {
+            SubComponentContainer.adopt(line, owner);
+            Message.this.index = null;
+            return list.set(index, line);
+        }
+
+        @Override
+        public void add(final int index, final Line line) {
+            SubComponentContainer.adopt(line, owner);
+            if(index == list.size() && Message.this.index != null)
+                // appending is by far the most common, no need to rebuild for it
+                Message.this.index.computeIfAbsent(line.type(), k -> new ArrayList<>(1)).add(line);
+            else
+                Message.this.index = null;
+            list.add(index, line);
+        }
+
+        @Override
+        public Line remove(final int index) {
+            Message.this.index = null;
+            return list.remove(index);
+        }
     }
 
     public Line add(final String line) {
@@ -178,17 +445,17 @@ public class Message {
     }
 
     public Message msa(final String ackCode) {
-        final Line origMsh = this.line("MSH");
+        final Line origMsh = this.getLine("MSH");
         final Line newMsh = new Line(origMsh);
 
         final Message msaMsg = new Message(true);
         msaMsg.add(newMsh);
 
         // swap send/recieve
-        newMsh.field(3).value(origMsh.field(5).value());
-        newMsh.field(4).value(origMsh.field(6).value());
-        newMsh.field(5).value(origMsh.field(3).value());
-        newMsh.field(6).value(origMsh.field(4).value());
+        newMsh.field(3).value(origMsh.getField(5).value());
+        newMsh.field(4).value(origMsh.getField(6).value());
+        newMsh.field(5).value(origMsh.getField(3).value());
+        newMsh.field(6).value(origMsh.getField(4).value());
         // set time
         newMsh.field(7).date(Instant.now());
 
@@ -201,7 +468,7 @@ public class Message {
         // add MSA
         final Line msa = msaMsg.add("MSA");
         msa.field(1).value(ackCode);
-        msa.field(2).value(origMsh.field(10).value());
+        msa.field(2).value(origMsh.getField(10).value());
 
         return msaMsg;
     }
@@ -217,27 +484,38 @@ public class Message {
     }
 
     public void writeTo(final OutputStream os, final Encoding enc) throws IOException {
-        os.write(enc.verticalTab);
-        // todo: this can be made dramatically faster by writing to this directly instead of a StringBuilder
-        os.write(this.encode(enc).getBytes(StandardCharsets.US_ASCII));
-        os.write(enc.fileSeperator);
-        os.write(enc.segmentDelimiter);
+        this.writeTo(new ByteMessageWriter(os), enc);
     }
 
+    /**
+     * Encodes straight into w's buffer and writes it to its OutputStream, w can be reused for the next message
+     */
+    public void writeTo(final ByteMessageWriter w, final Encoding enc) throws IOException {
+        try {
+            w.writeFrame(this, enc).writeOut();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Reads one byte at a time so as to never read past the end of this message, use a FrameDecoder instead
+     * to read more than one message from the same stream
+     */
     public static Message readFrom(final InputStream is, final Encoding enc) throws IOException, ParseException {
-        final StringBuilder sb = new StringBuilder();
+        byte[] buf = new byte[512];
+        int len = 0;
         for (int i = -1; (i = is.read()) != -1; ) {
-            //System.out.println("i: "+i);
-            final char c = (char) i;
-            //System.out.println("c: "+c);
-            if (c == enc.fileSeperator) { // end of line/message
+            if (i == enc.fileSeperator) { // end of line/message
                 // next char should be segmentDelimiter
                 i = is.read();
-                if (((char) i) != enc.segmentDelimiter)
-                    throw new ParseException("HL7 messages have a segmentDelimiter directly following a fileSeperator", sb.length());
-                return new Message(sb.toString());
+                if (i != enc.segmentDelimiter)
+                    throw new ParseException("HL7 messages have a segmentDelimiter directly following a fileSeperator", len);
+                return new Message(new ByteChars(buf, 0, len, enc.charset));
             } else {
-                sb.append(c);
+                if (len == buf.length)
+                    buf = Arrays.copyOf(buf, len * 2);
+                buf[len++] = (byte) i;
             }
         }
         return null; // no complete message received
@@ -261,6 +539,6 @@ public class Message {
 
     @Override
     public String toString() {
-        return "Message" + lines;
+        return "Message" + lines.list;
     }
 }
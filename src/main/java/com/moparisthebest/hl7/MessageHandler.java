@@ -0,0 +1,61 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+/**
+ * Callbacks for EventParser, every position is a start (inclusive) and end (exclusive) into the CharSequence being
+ * parsed, which is still escaped, use Encoding.decode(s, start, end) to get the actual value.
+ * <p>
+ * Indices are numbered the same as Line: fieldIndex 0 is the segment type, for MSH fieldIndex 1 is the field
+ * delimiter and 2 the encoding characters, repetition, component and subComponent indices start at 1.
+ * <p>
+ * The boolean returns say whether to descend into that level, returning false skips splitting it any further.
+ */
+public interface MessageHandler {
+
+    default void startMessage(final Encoding enc) {
+    }
+
+    default boolean startSegment(final int segmentIndex, final CharSequence s, final int start, final int end) {
+        return true;
+    }
+
+    default boolean field(final int fieldIndex, final CharSequence s, final int start, final int end) {
+        return true;
+    }
+
+    default boolean repetition(final int fieldIndex, final int repetitionIndex, final CharSequence s, final int start, final int end) {
+        return true;
+    }
+
+    default boolean component(final int fieldIndex, final int repetitionIndex, final int componentIndex, final CharSequence s, final int start, final int end) {
+        return true;
+    }
+
+    default void subComponent(final int fieldIndex, final int repetitionIndex, final int componentIndex, final int subComponentIndex, final CharSequence s, final int start, final int end) {
+    }
+
+    default void endSegment(final int segmentIndex) {
+    }
+
+    default void endMessage() {
+    }
+}
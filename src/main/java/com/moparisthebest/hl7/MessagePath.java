@@ -0,0 +1,252 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * A compiled path to somewhere in a message, like PID-3[2].1.2, so it only needs parsed once no matter how many
+ * messages it's used against.
+ *
+ * Format is SEG[segmentRepetition]-field[repetition].component.subComponent, everything past the field is optional,
+ * repetitions default to the first and can be * to mean all of them, which get/set iterate over:
+ * <pre>
+ * PID-5          first PID, field 5
+ * PID-3[2].1     first PID, field 3, 2nd repetition, component 1
+ * OBX[*]-5[*].1  component 1 of every repetition of field 5 in every OBX
+ * </pre>
+ *
+ * Getting never changes the message, setting creates whatever is missing, except through a *, which only visits what
+ * already exists.
+ */
+public final class MessagePath {
+
+    private static final int ALL = -1, UNSET = 0;
+
+    // paths usually come from config, so there's a small fixed number of them, but Message.value(path) will take anything,
+    // so once this many are cached the rest are compiled every time instead of growing forever
+    private static final int MAX_CACHED = 1024;
+    private static final ConcurrentMap<String, MessagePath> cache = new ConcurrentHashMap<>();
+
+    private final String path, segment;
+    private final int segmentRepetition, field, repetition, component, subComponent;
+
+    private MessagePath(final String path) {
+        this.path = path;
+        final int dash = path.indexOf('-');
+        if(dash < 1)
+            throw new IllegalArgumentException("path must start with a segment type and field number like PID-3: " + path);
+        int bracket = path.indexOf('[');
+        if(bracket != -1 && bracket < dash) {
+            this.segment = path.substring(0, bracket);
+            this.segmentRepetition = repetition(path, path, bracket, dash);
+        } else {
+            this.segment = path.substring(0, dash);
+            this.segmentRepetition = 1;
+        }
+        final String[] parts = path.substring(dash + 1).split("\\.", -1);
+        if(parts.length > 3)
+            throw new IllegalArgumentException("path can't go deeper than subComponent: " + path);
+        bracket = parts[0].indexOf('[');
+        if(bracket != -1) {
+            this.field = number(path, parts[0].substring(0, bracket));
+            this.repetition = repetition(path, parts[0], bracket, parts[0].length());
+        } else {
+            this.field = number(path, parts[0]);
+            this.repetition = parts.length > 1 ? 1 : UNSET;
+        }
+        this.component = parts.length > 1 ? oneBased(path, parts[1]) : UNSET;
+        this.subComponent = parts.length > 2 ? oneBased(path, parts[2]) : UNSET;
+    }
+
+    private static int repetition(final String path, final String s, final int bracket, final int end) {
+        if(s.charAt(end - 1) != ']')
+            throw new IllegalArgumentException("unclosed [ in path: " + path);
+        final String rep = s.substring(bracket + 1, end - 1);
+        return "*".equals(rep) ? ALL : oneBased(path, rep);
+    }
+
+    private static int oneBased(final String path, final String s) {
+        final int ret = number(path, s);
+        if(ret < 1)
+            throw new IllegalArgumentException("repetitions, components and subComponents start at 1: " + path);
+        return ret;
+    }
+
+    private static int number(final String path, final String s) {
+        try {
+            final int ret = Integer.parseInt(s);
+            if(ret < 0)
+                throw new IllegalArgumentException("negative number in path: " + path);
+            return ret;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("expected a number or * but got '" + s + "' in path: " + path, e);
+        }
+    }
+
+    /**
+     * @return the compiled path, only actually compiled the first time any given path is used, unless a great many
+     * different paths have been, hold on to the result to be sure
+     * @throws IllegalArgumentException if path isn't valid
+     */
+    public static MessagePath compile(final String path) {
+        final MessagePath ret = cache.get(path);
+        if(ret != null)
+            return ret;
+        if(cache.size() >= MAX_CACHED)
+            return new MessagePath(path);
+        return cache.computeIfAbsent(path, MessagePath::new);
+    }
+
+    /**
+     * @return the first thing this points to in msg, or an EMPTY instance if it doesn't exist
+     */
+    public SubComponent get(final Message msg) {
+        final List<Line> lines = msg.linesOf(segment);
+        final int index = segmentRepetition == ALL ? 0 : segmentRepetition - 1;
+        return get(index < lines.size() ? lines.get(index) : Line.EMPTY);
+    }
+
+    private SubComponent get(final Line line) {
+        final Field f = line.getField(field);
+        if(repetition == UNSET)
+            return f;
+        final Repetition r = f.getRepetition(repetition == ALL ? 1 : repetition);
+        if(component == UNSET)
+            return r;
+        final Component c = r.getComponent(component);
+        return subComponent == UNSET ? c : c.getSubComponent(subComponent);
+    }
+
+    /**
+     * @return value of the first thing this points to in msg, or "" if it doesn't exist
+     */
+    public String value(final Message msg) {
+        return get(msg).value();
+    }
+
+    /**
+     * @return values of everything this points to in msg, in order, only more than one if this contains a *
+     */
+    public List<String> values(final Message msg) {
+        final List<String> ret = new ArrayList<>();
+        forEach(msg, sc -> ret.add(sc.value()));
+        return ret;
+    }
+
+    /**
+     * Calls action with everything this points to in msg, in order, never changes msg or calls action with EMPTY
+     */
+    public void forEach(final Message msg, final Consumer<SubComponent> action) {
+        final List<Line> lines = msg.linesOf(segment);
+        if(segmentRepetition == ALL) {
+            for(final Line line : lines)
+                forEach(line, action);
+        } else if(segmentRepetition <= lines.size()) {
+            forEach(lines.get(segmentRepetition - 1), action);
+        }
+    }
+
+    private void forEach(final Line line, final Consumer<SubComponent> action) {
+        final Field f = line.getField(field);
+        if(f == Field.EMPTY)
+            return;
+        if(repetition == UNSET) {
+            action.accept(f);
+        } else if(repetition == ALL) {
+            for(final Repetition r : f)
+                forEach(r, action);
+        } else {
+            forEach(f.getRepetition(repetition), action);
+        }
+    }
+
+    private void forEach(final Repetition r, final Consumer<SubComponent> action) {
+        if(r == Repetition.EMPTY)
+            return;
+        if(component == UNSET) {
+            action.accept(r);
+            return;
+        }
+        final Component c = r.getComponent(component);
+        if(c == Component.EMPTY)
+            return;
+        if(subComponent == UNSET) {
+            action.accept(c);
+            return;
+        }
+        final SubComponent sc = c.getSubComponent(subComponent);
+        if(sc != SubComponent.EMPTY)
+            action.accept(sc);
+    }
+
+    /**
+     * Sets everything this points to in msg to value, creating it if there isn't a * in this
+     */
+    public MessagePath set(final Message msg, final String value) {
+        if(segmentRepetition == ALL) {
+            for(final Line line : msg.lines(segment))
+                set(line, value);
+        } else {
+            Line line = msg.optionalLine(segment);
+            if(segmentRepetition > 1) {
+                final List<Line> lines = msg.lines(segment);
+                for(int x = lines.size(); x < segmentRepetition; ++x)
+                    msg.add(segment);
+                line = msg.lines(segment).get(segmentRepetition - 1);
+            } else if(line == null) {
+                line = msg.line(segment);
+            }
+            set(line, value);
+        }
+        return this;
+    }
+
+    private void set(final Line line, final String value) {
+        final Field f = line.field(field);
+        if(repetition == UNSET) {
+            f.value(value);
+        } else if(repetition == ALL) {
+            for(final Repetition r : f)
+                set(r, value);
+        } else {
+            set(f.repetition(repetition), value);
+        }
+    }
+
+    private void set(final Repetition r, final String value) {
+        if(component == UNSET)
+            r.value(value);
+        else if(subComponent == UNSET)
+            r.component(component).value(value);
+        else
+            r.component(component).subComponent(subComponent).value(value);
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.text.ParseException;
+import java.util.ArrayDeque;
+
+/**
+ * A few Messages per thread to reparse new text into instead of creating new ones, so the same lines, fields and
+ * everything under them are reused message after message.
+ * <p>
+ * A Message taken from here must not be used by anything once it is released.
+ */
+public final class MessagePool {
+
+    /**
+     * Most released Messages kept per thread, any more are left for the garbage collector
+     */
+    public static final int MAX_PER_THREAD = 4;
+
+    private static final ThreadLocal<ArrayDeque<Message>> POOL = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private MessagePool() {
+    }
+
+    /**
+     * @return s parsed into a Message from this thread's pool, or a new one if the pool is empty
+     */
+    public static Message parse(final CharSequence s) throws ParseException {
+        final ArrayDeque<Message> pool = POOL.get();
+        final Message msg = pool.pollLast();
+        if(msg == null)
+            return new Message(s, true);
+        try {
+            return msg.reparse(s);
+        } catch (ParseException e) {
+            // reparse leaves it unchanged, so still fine to reuse
+            pool.addLast(msg);
+            throw e;
+        }
+    }
+
+    /**
+     * Gives msg back to this thread's pool
+     */
+    public static void release(final Message msg) {
+        final ArrayDeque<Message> pool = POOL.get();
+        if(pool.size() < MAX_PER_THREAD)
+            pool.addLast(msg);
+    }
+}
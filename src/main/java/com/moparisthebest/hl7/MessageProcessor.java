@@ -43,4 +43,12 @@ public interface MessageProcessor {
     default boolean shouldShutdown() {
         return false;
     }
+
+    /**
+     * Return false only if process never holds on to the Message it is given, or anything in it, once it returns,
+     * including by returning it, then the server may reparse the next message into the same instance
+     */
+    default boolean keepsMessages() {
+        return true;
+    }
 }
@@ -0,0 +1,174 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+/**
+ * Target encode writes to, so the same code can encode straight into a StringBuilder, byte buffer, or OutputStream.
+ *
+ * Delimiters are held back until some text follows them, which is how trailing empty fields/repetitions/components
+ * get trimmed without ever writing them out and then taking them back.
+ */
+public abstract class MessageWriter {
+
+    private char[] pending = new char[16];
+    private int numPending;
+
+    // scratch space for values that actually need escaped
+    private StringBuilder escaped;
+
+    public static MessageWriter of(final StringBuilder sb) {
+        return new Chars(sb);
+    }
+
+    protected abstract void append(final char c);
+
+    protected abstract void append(final CharSequence s, final int start, final int end);
+
+    /**
+     * Writes already encoded text exactly as-is
+     */
+    public MessageWriter text(final CharSequence s, final int start, final int end) {
+        if(start == end)
+            return this;
+        writePending();
+        if(s instanceof ByteChars)
+            append((ByteChars) s, start, end);
+        else
+            append(s, start, end);
+        return this;
+    }
+
+    /**
+     * Appends bytes still in their original charset, by default by decoding them
+     */
+    protected void append(final ByteChars s, final int start, final int end) {
+        final String decoded = s.decode(start, end);
+        append(decoded, 0, decoded.length());
+    }
+
+    public MessageWriter text(final CharSequence s) {
+        return text(s, 0, s.length());
+    }
+
+    /**
+     * Writes value escaped per enc
+     */
+    public MessageWriter escaped(final String value, final Encoding enc) {
+        if(value.isEmpty())
+            return this;
+        writePending();
+        if(!enc.needsEscaping(value)) {
+            append(value, 0, value.length());
+        } else {
+            if(escaped == null)
+                escaped = new StringBuilder(value.length() + 16);
+            else
+                escaped.setLength(0);
+            enc.encode(value, escaped);
+            append(escaped, 0, escaped.length());
+        }
+        return this;
+    }
+
+    /**
+     * Writes c only once something else is written after it
+     */
+    public MessageWriter delimiter(final char c) {
+        if(numPending == pending.length) {
+            final char[] bigger = new char[pending.length * 2];
+            System.arraycopy(pending, 0, bigger, 0, numPending);
+            pending = bigger;
+        }
+        pending[numPending++] = c;
+        return this;
+    }
+
+    /**
+     * Drops up to max trailing c's that haven't been written yet
+     */
+    public MessageWriter trim(final char c, int max) {
+        while(max-- > 0 && numPending > 0 && pending[numPending - 1] == c)
+            --numPending;
+        return this;
+    }
+
+    private void writePending() {
+        for(int i = 0; i < numPending; ++i)
+            append(pending[i]);
+        numPending = 0;
+    }
+
+    /**
+     * Writes out any delimiters still being held back
+     */
+    public MessageWriter flush() {
+        writePending();
+        return this;
+    }
+
+    /**
+     * Writes msg in enc, without trailing segmentDelimiters
+     */
+    public MessageWriter write(final Message msg, final Encoding enc) {
+        // set encoding
+        msg.setEncoding(enc);
+        for(final Line line : msg.lineList())
+            line.encode(this, enc);
+        trim(enc.segmentDelimiter, Integer.MAX_VALUE);
+        return flush();
+    }
+
+    /**
+     * Drops anything written so far that hasn't made it to the underlying target
+     */
+    protected void reset() {
+        numPending = 0;
+    }
+
+    static class Chars extends MessageWriter {
+
+        private final StringBuilder sb;
+
+        Chars(final StringBuilder sb) {
+            this.sb = sb;
+        }
+
+        @Override
+        protected void append(final char c) {
+            sb.append(c);
+        }
+
+        @Override
+        protected void append(final CharSequence s, final int start, final int end) {
+            sb.append(s, start, end);
+        }
+
+        @Override
+        public MessageWriter escaped(final String value, final Encoding enc) {
+            if(value.isEmpty())
+                return this;
+            super.flush();
+            // escape straight into sb
+            enc.encode(value, sb);
+            return this;
+        }
+    }
+}
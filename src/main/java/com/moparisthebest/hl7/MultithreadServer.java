@@ -23,25 +23,126 @@ package com.moparisthebest.hl7;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by mopar on 6/30/16.
  */
 public class MultithreadServer extends Server {
-    public MultithreadServer(final ServerSocket ss, final MessageProcessor msgProcessor, final Encoding enc) {
+
+    protected final ExecutorService executor;
+    // only shut down executor on close if we created it
+    private final boolean ownsExecutor;
+    private final AtomicInteger active = new AtomicInteger(), queued = new AtomicInteger();
+
+    /**
+     * @param executor runs each connection, if it rejects one that connection is closed and passed to MessageProcessor.handle,
+     *                 it is never changed, so a discard policy on it drops connections without closing them, use
+     *                 newBoundedExecutor for one that closes them
+     */
+    public MultithreadServer(final ServerSocket ss, final MessageProcessor msgProcessor, final Encoding enc, final ExecutorService executor) {
+        this(ss, msgProcessor, enc, executor, false);
+    }
+
+    private MultithreadServer(final ServerSocket ss, final MessageProcessor msgProcessor, final Encoding enc, final ExecutorService executor, final boolean ownsExecutor) {
         super(ss, msgProcessor, enc);
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    public MultithreadServer(final ServerSocket ss, final MessageProcessor msgProcessor, final Encoding enc) {
+        this(ss, msgProcessor, enc, Executors.newCachedThreadPool(), true);
     }
 
     public MultithreadServer(final ServerSocket ss, final MessageProcessor msgProcessor) {
-        super(ss, msgProcessor);
+        this(ss, msgProcessor, Message.DEFAULT_ENCODING);
+    }
+
+    public MultithreadServer(final int port, final MessageProcessor msgProcessor, final Encoding enc, final ExecutorService executor) throws IOException {
+        this(new ServerSocket(port), msgProcessor, enc, executor);
     }
 
     public MultithreadServer(final int port, final MessageProcessor msgProcessor, final Encoding enc) throws IOException {
-        super(port, msgProcessor, enc);
+        this(new ServerSocket(port), msgProcessor, enc);
     }
 
     public MultithreadServer(final int port, final MessageProcessor msgProcessor) throws IOException {
-        super(port, msgProcessor);
+        this(port, msgProcessor, Message.DEFAULT_ENCODING);
+    }
+
+    /**
+     * @param maxThreads     most connections handled at once
+     * @param maxQueued      most accepted connections waiting for a thread, 0 to never wait
+     * @param whenSaturated  what to do with a connection when both are full, ThreadPoolExecutor.AbortPolicy or
+     *                       DiscardPolicy closes it, DiscardOldestPolicy closes the one that has waited longest instead,
+     *                       ThreadPoolExecutor.CallerRunsPolicy handles it on the accepting thread, which stops accepting
+     *                       anything else until it's done, any other handler must run it or throw RejectedExecutionException
+     */
+    public static ExecutorService newBoundedExecutor(final int maxThreads, final int maxQueued, final RejectedExecutionHandler whenSaturated) {
+        return new ThreadPoolExecutor(maxThreads, maxThreads, 60L, TimeUnit.SECONDS,
+                maxQueued > 0 ? new ArrayBlockingQueue<>(maxQueued) : new SynchronousQueue<>(), closeDiscarded(whenSaturated));
+    }
+
+    public static ExecutorService newBoundedExecutor(final int maxThreads, final int maxQueued) {
+        return newBoundedExecutor(maxThreads, maxQueued, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * The discard policies just drop a task, which would leave its connection open and counted as queued forever, so
+     * DiscardPolicy throws instead, which run() closes the connection for, and DiscardOldestPolicy closes the one it drops
+     */
+    private static RejectedExecutionHandler closeDiscarded(final RejectedExecutionHandler whenSaturated) {
+        if(whenSaturated instanceof ThreadPoolExecutor.DiscardPolicy)
+            return new ThreadPoolExecutor.AbortPolicy();
+        if(whenSaturated instanceof ThreadPoolExecutor.DiscardOldestPolicy)
+            return (r, executor) -> {
+                final Runnable oldest = executor.isShutdown() ? null : executor.getQueue().poll();
+                if(oldest == null)
+                    // nothing waiting to make room for, like with maxQueued 0
+                    throw new RejectedExecutionException("no room for connection in " + executor);
+                discard(oldest);
+                executor.execute(r);
+            };
+        return whenSaturated;
+    }
+
+    private static void discard(final Runnable r) {
+        if(r instanceof Connection)
+            ((Connection) r).discard();
+    }
+
+    /**
+     * @return a new virtual thread per connection
+     * @throws UnsupportedOperationException if not running on JDK 21+
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (final ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("virtual threads require JDK 21+", e);
+        }
+    }
+
+    /**
+     * @return number of connections currently being handled
+     */
+    public int getActiveConnections() {
+        return active.get();
+    }
+
+    /**
+     * @return number of connections accepted but still waiting for the executor to start handling them
+     */
+    public int getQueuedConnections() {
+        return queued.get();
     }
 
     @Override
@@ -49,20 +150,14 @@ public class MultithreadServer extends Server {
         boolean shouldShutdown = false;
         try {
             while (!ss.isClosed() && !(shouldShutdown = msgProcessor.shouldShutdown())) {
-                final Socket s = ss.accept();
-                new Thread(() -> {
-                    try {
-                        handleConnection(s);
-                    } catch (final Throwable e) {
-                        msgProcessor.handle(e, this);
-                    } finally {
-                        try {
-                            s.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }).start();
+                final Connection c = new Connection(ss.accept());
+                queued.incrementAndGet();
+                try {
+                    executor.execute(c);
+                } catch (final RejectedExecutionException e) {
+                    c.discard();
+                    msgProcessor.handle(e, this);
+                }
             }
         } catch (final Throwable e) {
             try {
@@ -79,4 +174,54 @@ public class MultithreadServer extends Server {
                 // ignore
             }
     }
+
+    private class Connection implements Runnable {
+
+        private final Socket s;
+
+        private Connection(final Socket s) {
+            this.s = s;
+        }
+
+        @Override
+        public void run() {
+            queued.decrementAndGet();
+            active.incrementAndGet();
+            try {
+                handleConnection(s);
+            } catch (final Throwable e) {
+                msgProcessor.handle(e, MultithreadServer.this);
+            } finally {
+                active.decrementAndGet();
+                try {
+                    s.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Closes s without it ever being handled
+         */
+        private void discard() {
+            queued.decrementAndGet();
+            metrics.connectionRejected(s.getRemoteSocketAddress());
+            try {
+                s.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if(ownsExecutor)
+                executor.shutdown();
+        }
+    }
 }
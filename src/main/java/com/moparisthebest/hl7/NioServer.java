@@ -0,0 +1,411 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves any number of connections from a few selector threads instead of a thread per connection.
+ *
+ * Accepting happens on the thread calling run() exactly like Server, each accepted connection is then handed to one of
+ * the I/O threads which decodes frames as bytes arrive. Complete messages are processed on a worker Executor, each
+ * connection still only processes one message at a time, in order, or on the I/O thread itself if INLINE is given.
+ */
+public class NioServer extends Server {
+
+    // stop reading from a connection with this many messages waiting to be processed
+    private static final int MAX_QUEUED = 64;
+
+    /**
+     * Pass as workers to process messages right on the I/O threads, which is only a good idea if MessageProcessor.process
+     * never blocks, including on a journal sync, see setJournal, otherwise every connection on that thread waits too
+     */
+    public static final Executor INLINE = Runnable::run;
+
+    protected final ServerSocketChannel ssc;
+    protected final Executor workers;
+    // only shut down workers on close if we created them
+    private final boolean ownsWorkers;
+    private final IoThread[] ioThreads;
+    private int nextIoThread;
+
+    /**
+     * @param ioThreads number of selector threads
+     * @param workers   where to run MessageProcessor.process, or INLINE to run it on the I/O threads
+     */
+    public NioServer(final ServerSocketChannel ssc, final MessageProcessor msgProcessor, final Encoding enc, final int ioThreads, final Executor workers) {
+        this(ssc, msgProcessor, enc, ioThreads, workers, false);
+    }
+
+    private NioServer(final ServerSocketChannel ssc, final MessageProcessor msgProcessor, final Encoding enc, final int ioThreads, final Executor workers, final boolean ownsWorkers) {
+        super(ssc.socket(), msgProcessor, enc);
+        if(workers == null)
+            throw new IllegalArgumentException("workers must not be null, use NioServer.INLINE to process on the I/O threads");
+        this.ssc = ssc;
+        this.workers = workers;
+        this.ownsWorkers = ownsWorkers;
+        this.ioThreads = new IoThread[ioThreads];
+    }
+
+    /**
+     * Processes messages on a pool of twice as many worker threads as there are processors, shut down on close
+     */
+    public NioServer(final ServerSocketChannel ssc, final MessageProcessor msgProcessor, final Encoding enc) {
+        this(ssc, msgProcessor, enc, Runtime.getRuntime().availableProcessors(),
+                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2), true);
+    }
+
+    public NioServer(final ServerSocketChannel ssc, final MessageProcessor msgProcessor) {
+        this(ssc, msgProcessor, Message.DEFAULT_ENCODING);
+    }
+
+    public NioServer(final int port, final MessageProcessor msgProcessor, final Encoding enc, final int ioThreads, final Executor workers) throws IOException {
+        this(open(port), msgProcessor, enc, ioThreads, workers);
+    }
+
+    public NioServer(final int port, final MessageProcessor msgProcessor, final Encoding enc) throws IOException {
+        this(open(port), msgProcessor, enc);
+    }
+
+    public NioServer(final int port, final MessageProcessor msgProcessor) throws IOException {
+        this(open(port), msgProcessor);
+    }
+
+    private static ServerSocketChannel open(final int port) throws IOException {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress(port));
+        return ssc;
+    }
+
+    @Override
+    public void run() {
+        boolean shouldShutdown = false;
+        try {
+            for(int x = 0; x < ioThreads.length; ++x) {
+                ioThreads[x] = new IoThread(x);
+                ioThreads[x].start();
+            }
+            while (ssc.isOpen() && !(shouldShutdown = msgProcessor.shouldShutdown())) {
+                try {
+                    accept(ssc.accept());
+                } catch (final Throwable e) {
+                    msgProcessor.handle(e, this);
+                }
+            }
+        } catch (final Throwable e) {
+            try {
+                this.close();
+            } catch (Throwable e2) {
+                // ignore
+            }
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        if(shouldShutdown)
+            try {
+                this.close();
+            } catch (Throwable e2) {
+                // ignore
+            }
+    }
+
+    protected void accept(final SocketChannel ch) throws IOException {
+        if (!msgProcessor.allowConnection(ch.socket())) {
+            metrics.connectionRejected(ch.socket().getRemoteSocketAddress());
+            ch.close();
+            return;
+        }
+        ch.configureBlocking(false);
+        ioThreads[nextIoThread].register(ch);
+        // wrapped here rather than taken % length, which goes negative once it overflows
+        if (++nextIoThread == ioThreads.length)
+            nextIoThread = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ssc.close();
+        } finally {
+            try {
+                for(final IoThread t : ioThreads)
+                    if(t != null)
+                        t.shutdown();
+            } finally {
+                if(ownsWorkers)
+                    ((ExecutorService) workers).shutdown();
+            }
+        }
+    }
+
+    private class IoThread extends Thread {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> accepted = new ConcurrentLinkedQueue<>();
+        // connections whose interest ops need recalculated, or that may need closed, by this thread
+        private final Queue<Connection> updates = new ConcurrentLinkedQueue<>();
+        private volatile boolean shutdown;
+
+        private IoThread(final int index) throws IOException {
+            super("NioServer-io-" + index);
+            this.setDaemon(true);
+            this.selector = Selector.open();
+        }
+
+        private void register(final SocketChannel ch) {
+            accepted.add(ch);
+            selector.wakeup();
+        }
+
+        private void update(final Connection conn) {
+            updates.add(conn);
+            selector.wakeup();
+        }
+
+        private void shutdown() {
+            shutdown = true;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!shutdown) {
+                    selector.select();
+                    SocketChannel ch;
+                    while ((ch = accepted.poll()) != null) {
+                        Connection added = null;
+                        try {
+                            added = new Connection(this, ch);
+                            added.key = ch.register(selector, SelectionKey.OP_READ, added);
+                        } catch (final Throwable e) {
+                            if (added != null) {
+                                added.close(e);
+                            } else {
+                                handle(e);
+                                closeQuietly(ch);
+                            }
+                        }
+                    }
+                    Connection conn;
+                    while ((conn = updates.poll()) != null)
+                        conn.update();
+                    final Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        final SelectionKey key = it.next();
+                        it.remove();
+                        conn = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable())
+                                conn.read();
+                            if (key.isValid() && key.isWritable())
+                                conn.flush();
+                            conn.update();
+                        } catch (final Throwable e) {
+                            conn.close(e);
+                        }
+                    }
+                }
+            } catch (final ClosedSelectorException e) {
+                // shutting down
+            } catch (final Throwable e) {
+                handle(e);
+            } finally {
+                try {
+                    for (final SelectionKey key : selector.keys())
+                        ((Connection) key.attachment()).closeChannel();
+                    selector.close();
+                } catch (final Throwable e) {
+                    // ignore
+                }
+                SocketChannel ch;
+                while ((ch = accepted.poll()) != null)
+                    closeQuietly(ch);
+            }
+        }
+    }
+
+    private class Connection {
+
+        private final IoThread io;
+        private final SocketChannel ch;
+        private final FrameDecoder decoder;
+        private final ByteMessageWriter writer = new ByteMessageWriter();
+        private final SocketAddress remote;
+        private final ServerMetrics.Connection stats;
+        private SelectionKey key;
+
+        // everything below is guarded by this
+        private final Queue<ByteBuffer> outbound = new ArrayDeque<>();
+        private final Queue<ByteChars> inbound = new ArrayDeque<>();
+        private boolean processing, paused, eof, closed;
+
+        private Connection(final IoThread io, final SocketChannel ch) {
+            this.io = io;
+            this.ch = ch;
+            this.decoder = new FrameDecoder(enc, FrameDecoder.DEFAULT_BUFFER_SIZE, maxFrameSize);
+            this.remote = ch.socket().getRemoteSocketAddress();
+            this.stats = metrics.connectionOpened(remote);
+        }
+
+        // only called from io
+        private void read() throws Exception {
+            if (decoder.fill(ch) == -1) {
+                synchronized (this) {
+                    eof = true;
+                }
+            }
+            ByteChars frame;
+            while ((frame = decoder.nextFrame()) != null) {
+                if (workers == INLINE) {
+                    process(frame);
+                } else {
+                    synchronized (this) {
+                        inbound.add(frame);
+                        if (inbound.size() >= MAX_QUEUED)
+                            paused = true;
+                        if (processing)
+                            continue;
+                        processing = true;
+                    }
+                    workers.execute(this::drain);
+                }
+            }
+        }
+
+        // only called from workers, one at a time
+        private void drain() {
+            try {
+                while (true) {
+                    final ByteChars frame;
+                    synchronized (this) {
+                        frame = inbound.poll();
+                        if (frame == null) {
+                            processing = false;
+                            break;
+                        }
+                        if (paused && inbound.size() < MAX_QUEUED / 2) {
+                            paused = false;
+                            io.update(this);
+                        }
+                    }
+                    process(frame);
+                }
+            } catch (final Throwable e) {
+                close(e);
+            }
+            io.update(this);
+        }
+
+        private void process(final ByteChars frame) throws Exception {
+            // only one frame is processed at a time, so writer needs no lock
+            writer.reset();
+            if (!acknowledge(frame, writer, stats, remote))
+                return;
+            final ByteBuffer buf = writer.toByteBuffer();
+            synchronized (this) {
+                if (outbound.isEmpty()) {
+                    ch.write(buf);
+                    if (!buf.hasRemaining())
+                        return;
+                }
+                // writer's buffer is reused for the next message, so keep a copy of what's left
+                outbound.add(ByteBuffer.wrap(Arrays.copyOfRange(buf.array(), buf.position(), buf.limit())));
+            }
+            if (workers != INLINE)
+                io.update(this);
+        }
+
+        // only called from io
+        private synchronized void flush() throws IOException {
+            ByteBuffer buf;
+            while ((buf = outbound.peek()) != null) {
+                ch.write(buf);
+                if (buf.hasRemaining())
+                    return;
+                outbound.remove();
+            }
+        }
+
+        // only called from io
+        private void update() {
+            if (!key.isValid())
+                return;
+            final int ops;
+            synchronized (this) {
+                if (eof && !processing && inbound.isEmpty() && outbound.isEmpty()) {
+                    closeChannel();
+                    return;
+                }
+                ops = (eof || paused ? 0 : SelectionKey.OP_READ) | (outbound.isEmpty() ? 0 : SelectionKey.OP_WRITE);
+            }
+            key.interestOps(ops);
+        }
+
+        private void close(final Throwable e) {
+            stats.failed(e);
+            handle(e);
+            closeChannel();
+        }
+
+        private void closeChannel() {
+            closeQuietly(ch);
+            synchronized (this) {
+                if (closed)
+                    return;
+                closed = true;
+            }
+            stats.closed();
+        }
+    }
+
+    private void handle(final Throwable e) {
+        try {
+            msgProcessor.handle(e, this);
+        } catch (final Throwable e2) {
+            // only this connection is affected, not the whole server
+        }
+    }
+
+    private static void closeQuietly(final Closeable c) {
+        try {
+            c.close();
+        } catch (final IOException e) {
+            // ignore
+        }
+    }
+}
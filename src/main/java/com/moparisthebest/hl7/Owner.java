@@ -0,0 +1,39 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+/**
+ * Stamped on the lines, fields, and everything else under them as a Message creates them, a Message only changes
+ * what carries its own Owner in place, anything else is shared with a copy of it and copied first, see Message(Message)
+ */
+final class Owner {
+
+    // set once a copy of the message shares everything stamped with this, after which none of it may change in place
+    volatile boolean shared;
+
+    /**
+     * @throws IllegalStateException if owner is shared
+     */
+    static void checkNotShared(final Owner owner) {
+        if(owner != null && owner.shared)
+            throw new IllegalStateException("shared with a copy of its message, get it from the message again to change it");
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Which segments and fields a Message should parse up front, everything else is kept unparsed until something reads
+ * or writes it, so parsing a large message costs about what is actually read out of it.
+ * <p>
+ * Written like "MSH, PID-3, PID-5, OBX-5", a segment type alone parses all of that segment, SEG-n only field n of it.
+ * The MSH segment is always parsed completely, it is needed for the encoding.
+ */
+public final class Projection {
+
+    /**
+     * Parse everything right away
+     */
+    public static final Projection ALL = new Projection(null, null);
+    /**
+     * Parse nothing but MSH right away
+     */
+    public static final Projection NONE = new Projection(new String[0], new BitSet[0]);
+
+    private final String[] types;
+    // null means the whole segment
+    private final BitSet[] fields;
+
+    private Projection(final String[] types, final BitSet[] fields) {
+        this.types = types;
+        this.fields = fields;
+    }
+
+    /**
+     * @param projection comma separated list like "MSH, PID-3, PID-5, OBX-5"
+     * @throws IllegalArgumentException if projection can't be parsed
+     */
+    public static Projection of(final String projection) {
+        return of(projection.split(","));
+    }
+
+    public static Projection of(final String... projection) {
+        final List<String> types = new ArrayList<>();
+        final List<BitSet> fields = new ArrayList<>();
+        for(String p : projection) {
+            p = p.trim();
+            if(p.isEmpty())
+                continue;
+            final int dash = p.indexOf('-');
+            final String type = dash == -1 ? p : p.substring(0, dash);
+            if(type.length() != 3)
+                throw new IllegalArgumentException("invalid segment type '" + type + "' in projection '" + p + "'");
+            int i = types.indexOf(type);
+            if(i == -1) {
+                i = types.size();
+                types.add(type);
+                fields.add(new BitSet());
+            }
+            if(dash == -1) {
+                fields.set(i, null);
+                continue;
+            }
+            final int field;
+            try {
+                field = Integer.parseInt(p.substring(dash + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("invalid field number in projection '" + p + "'", e);
+            }
+            if(field < 1)
+                throw new IllegalArgumentException("field numbers start at 1 in projection '" + p + "'");
+            final BitSet bits = fields.get(i);
+            if(bits != null)
+                bits.set(field);
+        }
+        final BitSet[] bits = fields.toArray(new BitSet[fields.size()]);
+        for(final BitSet b : bits)
+            if(b != null)
+                b.set(0); // segment type, always wanted
+        return new Projection(types.toArray(new String[types.size()]), bits);
+    }
+
+    /**
+     * Creates the Line for the segment in s from start to end, parsed as much as this projection says
+     *
+     * @param reuse Line to reset instead of creating a new one, may be null
+     * @param owner stamped on a new Line, see Owner
+     */
+    Line line(final Line reuse, final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc) {
+        boolean lazy = false;
+        BitSet eager = null;
+        if(types != null) {
+            lazy = true;
+            for(int i = 0; i < types.length; ++i)
+                if(isType(s, start, end, enc, types[i])) {
+                    lazy = false;
+                    eager = fields[i];
+                    break;
+                }
+        }
+        if(reuse == null)
+            return eager == null ? new Line(owner, s, start, end, enc, lazy) : new Line(owner, s, start, end, enc, eager);
+        if(eager == null)
+            reuse.reset(s, start, end, enc, lazy);
+        else
+            reuse.reset(s, start, end, enc, eager);
+        return reuse;
+    }
+
+    private static boolean isType(final CharSequence s, final int start, final int end, final Encoding enc, final String type) {
+        final int len = type.length();
+        if(end - start < len)
+            return false;
+        for(int i = 0; i < len; ++i)
+            if(s.charAt(start + i) != type.charAt(i))
+                return false;
+        return end - start == len || s.charAt(start + len) == enc.fieldDelimiter;
+    }
+
+    @Override
+    public String toString() {
+        if(types == null)
+            return "ALL";
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < types.length; ++i) {
+            if(fields[i] == null) {
+                if(sb.length() != 0)
+                    sb.append(", ");
+                sb.append(types[i]);
+                continue;
+            }
+            for(int f = fields[i].nextSetBit(1); f != -1; f = fields[i].nextSetBit(f + 1)) {
+                if(sb.length() != 0)
+                    sb.append(", ");
+                sb.append(types[i]).append('-').append(f);
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -22,10 +22,19 @@ package com.moparisthebest.hl7;
 
 public class Repetition extends SubComponentContainer<Component> {
 
+    /**
+     * Shared and read-only, returned by the get accessors for anything that doesn't exist, instead of creating it
+     */
+    public static final Repetition EMPTY = new Repetition(Component.EMPTY);
+
     Repetition() {
         super();
     }
 
+    private Repetition(final Component empty) {
+        super(empty);
+    }
+
     Repetition(final String s) {
         super(s);
     }
@@ -34,8 +43,12 @@ public class Repetition extends SubComponentContainer<Component> {
         super(s);
     }
 
-    Repetition(final String s, final Encoding enc) {
-        super(s, enc, enc.componentDelimiter);
+    Repetition(final Repetition toShare, final Owner owner) {
+        super(toShare, owner);
+    }
+
+    Repetition(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc) {
+        super(owner, s, start, end, enc, false);
     }
 
     @Override
@@ -54,12 +67,22 @@ public class Repetition extends SubComponentContainer<Component> {
     }
 
     @Override
-    Component newSubComponent(final String s, final Encoding enc) {
-        return new Component(s, enc);
+    Component newSubComponent(final Component s, final Owner owner) {
+        return new Component(s, owner);
     }
 
-    public void encode(final StringBuilder sb, final Encoding enc) {
-        super.encode(sb, enc, enc.componentDelimiter, enc.repetitionDelimiter);
+    @Override
+    Component newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc) {
+        return new Component(owner, s, start, end, enc);
+    }
+
+    @Override
+    char delimiter(final Encoding enc) {
+        return enc.componentDelimiter;
+    }
+
+    public void encode(final MessageWriter w, final Encoding enc) {
+        super.encode(w, enc, enc.componentDelimiter, enc.repetitionDelimiter);
     }
 
     public int numComponents() {
@@ -74,6 +97,17 @@ public class Repetition extends SubComponentContainer<Component> {
         return this.component(componentIndex).subComponent(subComponentIndex);
     }
 
+    /**
+     * Like component, but never changes this
+     */
+    public Component getComponent(final int index) {
+        return super.get1Based(index, Component.EMPTY);
+    }
+
+    public SubComponent getSubComponent(final int componentIndex, final int subComponentIndex) {
+        return this.getComponent(componentIndex).getSubComponent(subComponentIndex);
+    }
+
     // shorter aliases
 
     public Component c(final int componentIndex) {
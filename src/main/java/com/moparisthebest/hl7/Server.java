@@ -24,9 +24,20 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by mopar on 6/30/16.
@@ -37,10 +48,51 @@ public class Server implements Runnable, Closeable {
     protected final Encoding enc;
     protected final MessageProcessor msgProcessor;
 
+    // only set if pipelining, see setPipelined
+    protected ExecutorService pipelineWorkers;
+    protected int maxInFlight;
+
+    protected ServerMetrics metrics = ServerMetrics.NONE;
+
+    protected int maxFrameSize = FrameDecoder.DEFAULT_MAX_FRAME_SIZE;
+
+    // only set if journaling, see setJournal
+    protected Journal journal;
+
+    // only set if ACKs are written with an AckTemplate, one per thread, see acknowledge
+    private final ThreadLocal<AckTemplate> ackTemplates;
+
     public Server(final ServerSocket ss, final MessageProcessor msgProcessor, final Encoding enc) {
         this.ss = ss;
         this.msgProcessor = msgProcessor;
         this.enc = enc;
+        this.ackTemplates = templateAcks() ? ThreadLocal.withInitial(() -> new AckTemplate(enc)) : null;
+    }
+
+    /**
+     * @return true if msgProcessor is an AckProcessor and neither its process nor ours is overridden, otherwise
+     * whatever overrides them needs to be called
+     */
+    private boolean templateAcks() {
+        return msgProcessor instanceof AckProcessor
+                && declaredBy(msgProcessor.getClass(), "process", Message.class) == AckProcessor.class
+                && declaredBy(getClass(), "process", ByteChars.class, ServerMetrics.Connection.class, SocketAddress.class) == Server.class;
+    }
+
+    private static Class<?> declaredBy(final Class<?> c, final String name, final Class<?>... parameterTypes) {
+        for(Class<?> k = c; k != null; k = k.getSuperclass()) {
+            try {
+                return k.getDeclaredMethod(name, parameterTypes).getDeclaringClass();
+            } catch (NoSuchMethodException e) {
+                // keep looking
+            }
+        }
+        try {
+            // only left is a default method
+            return c.getMethod(name, parameterTypes).getDeclaringClass();
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
     }
 
     public Server(final ServerSocket ss, final MessageProcessor msgProcessor) {
@@ -65,6 +117,66 @@ public class Server implements Runnable, Closeable {
         this(port, msgProcessor, Message.DEFAULT_ENCODING);
     }
 
+    /**
+     * Opts in to pipelining, where each connection keeps reading messages while earlier ones are still being processed,
+     * instead of strictly read, process, write, read...
+     *
+     * Messages from one connection are processed concurrently on workers, so MessageProcessor.process must be thread
+     * safe, responses are still written in the order the messages arrived in, by one extra thread per connection.
+     *
+     * @param workers     where messages are processed, shared by all connections, null turns pipelining back off
+     * @param maxInFlight most messages per connection read but not yet responded to, reading stops until one is
+     */
+    public Server setPipelined(final ExecutorService workers, final int maxInFlight) {
+        if(workers != null && maxInFlight < 1)
+            throw new IllegalArgumentException("maxInFlight must be at least 1");
+        this.pipelineWorkers = workers;
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * @param maxFrameSize largest message accepted in bytes, a connection sending a bigger one is closed, only applies
+     *                     to connections accepted after this is set
+     */
+    public Server setMaxFrameSize(final int maxFrameSize) {
+        if(maxFrameSize < 1)
+            throw new IllegalArgumentException("maxFrameSize must be at least 1");
+        this.maxFrameSize = maxFrameSize;
+        return this;
+    }
+
+    public int getMaxFrameSize() {
+        return maxFrameSize;
+    }
+
+    /**
+     * @param metrics told about every connection and message from now on, null for none
+     */
+    public Server setMetrics(final ServerMetrics metrics) {
+        this.metrics = metrics == null ? ServerMetrics.NONE : metrics;
+        return this;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Every frame received is appended to journal before it's processed, and synced before any response to it is
+     * written, so anything responded to is on disk, syncs from all connections are shared, see Journal.sync
+     *
+     * @param journal not closed by this, null for none
+     */
+    public Server setJournal(final Journal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public Journal getJournal() {
+        return journal;
+    }
+
     @Override
     public void run() {
         boolean shouldShutdown = false;
@@ -93,16 +205,216 @@ public class Server implements Runnable, Closeable {
     }
 
     protected void handleConnection(final Socket s) throws IOException, ParseException {
-        if (msgProcessor.allowConnection(s))
-            try (InputStream is = s.getInputStream();
-                 OutputStream os = s.getOutputStream()) {
-                Message in;
-                while((in = Message.readFrom(is, enc)) != null) {
-                    final Message out = msgProcessor.process(in);
-                    if (out != null)
-                        out.writeTo(os, enc);
+        if (!msgProcessor.allowConnection(s)) {
+            metrics.connectionRejected(s.getRemoteSocketAddress());
+            return;
+        }
+        final SocketAddress remote = s.getRemoteSocketAddress();
+        final ServerMetrics.Connection conn = metrics.connectionOpened(remote);
+        try (InputStream is = s.getInputStream();
+             OutputStream os = s.getOutputStream()) {
+            final FrameDecoder decoder = new FrameDecoder(enc, FrameDecoder.DEFAULT_BUFFER_SIZE, maxFrameSize);
+            final ByteMessageWriter writer = new ByteMessageWriter(os);
+            final ExecutorService workers = this.pipelineWorkers;
+            if (workers != null) {
+                handlePipelined(s, decoder, is, writer, workers, conn, remote);
+                return;
+            }
+            ByteChars frame;
+            while((frame = decoder.readFrame(is)) != null)
+                if (acknowledge(frame, writer, conn, remote))
+                    writer.writeOut();
+        } catch (final Throwable e) {
+            conn.failed(e);
+            throw e;
+        } finally {
+            conn.closed();
+        }
+    }
+
+    /**
+     * @return System.nanoTime(), or 0 if conn isn't going to record it anyway
+     */
+    protected static long nanoTime(final ServerMetrics.Connection conn) {
+        return conn == ServerMetrics.Connection.NONE ? 0 : System.nanoTime();
+    }
+
+    protected Message process(final ByteChars frame) throws IOException, ParseException {
+        return process(frame, ServerMetrics.Connection.NONE, null);
+    }
+
+    /**
+     * Parses frame and hands it to msgProcessor, reusing a Message from the calling thread's MessagePool if
+     * msgProcessor doesn't keep them
+     *
+     * @param remote who sent frame, for the journal, or null
+     */
+    protected Message process(final ByteChars frame, final ServerMetrics.Connection conn, final SocketAddress remote) throws IOException, ParseException {
+        return process(frame, conn, journal(frame, remote));
+    }
+
+    /**
+     * @param sequence what the journal returned for frame, or -1 if there is no journal
+     */
+    protected Message process(final ByteChars frame, final ServerMetrics.Connection conn, final long sequence) throws IOException, ParseException {
+        conn.frameRead(frame.length());
+        final long start = nanoTime(conn);
+        final boolean pooled = !msgProcessor.keepsMessages();
+        final Message in = pooled ? MessagePool.parse(frame) : new Message(frame, true);
+        try {
+            final long parsed = nanoTime(conn);
+            conn.parsed(in, parsed - start);
+            final Message out = msgProcessor.process(in);
+            conn.processed(in, nanoTime(conn) - parsed);
+            if(out != null && sequence != -1)
+                journal.sync(sequence);
+            return out;
+        } finally {
+            if (pooled)
+                MessagePool.release(in);
+        }
+    }
+
+    /**
+     * Appends frame to the journal, if there is one, which has to happen in the order frames arrived, so before frame
+     * is handed to another thread
+     *
+     * @return the sequence to sync before responding to frame, or -1 if there is no journal
+     */
+    protected long journal(final ByteChars frame, final SocketAddress remote) throws IOException {
+        return journal == null ? -1 : journal.append(frame, remote);
+    }
+
+    protected boolean acknowledge(final ByteChars frame, final ByteMessageWriter w, final ServerMetrics.Connection conn, final SocketAddress remote) throws IOException, ParseException {
+        return acknowledge(frame, w, conn, journal(frame, remote));
+    }
+
+    /**
+     * The one way every mode responds to a frame: processes it and encodes the response, if there is one, into w as an
+     * MLLP frame without writing it out. If msgProcessor is an AckProcessor the ACK is written with an AckTemplate
+     * without building a Message, unless process is overridden, in either it or here, in which case that's called.
+     *
+     * @param sequence what the journal returned for frame, or -1 if there is no journal
+     * @return true if there is a response in w
+     */
+    protected boolean acknowledge(final ByteChars frame, final ByteMessageWriter w, final ServerMetrics.Connection conn, final long sequence) throws IOException, ParseException {
+        try {
+            if (ackTemplates == null) {
+                final Message out = process(frame, conn, sequence);
+                if (out == null)
+                    return false;
+                final long start = nanoTime(conn);
+                final long before = w.getBytesWritten() + w.size();
+                w.writeFrame(out, enc);
+                conn.written(w.getBytesWritten() + w.size() - before, nanoTime(conn) - start);
+                return true;
+            }
+            conn.frameRead(frame.length());
+            final long start = nanoTime(conn);
+            final AckProcessor processor = (AckProcessor) msgProcessor;
+            final boolean pooled = !processor.keepsMessages();
+            final Message in = pooled ? MessagePool.parse(frame) : new Message(frame, true);
+            try {
+                final long parsed = nanoTime(conn);
+                conn.parsed(in, parsed - start);
+                final AckTemplate.Code code = processor.acknowledge(in);
+                final long processed = nanoTime(conn);
+                conn.processed(in, processed - parsed);
+                if (sequence != -1)
+                    journal.sync(sequence);
+                final long before = w.getBytesWritten() + w.size();
+                ackTemplates.get().writeFrame(w, in, code);
+                conn.written(w.getBytesWritten() + w.size() - before, nanoTime(conn) - processed);
+                return true;
+            } finally {
+                if (pooled)
+                    MessagePool.release(in);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    protected void handlePipelined(final Socket s, final FrameDecoder decoder, final InputStream is, final ByteMessageWriter writer, final ExecutorService workers, final ServerMetrics.Connection conn, final SocketAddress remote) throws IOException, ParseException {
+        // in arrival order, bounded so a fast sender can't get too far ahead
+        final BlockingQueue<Future<ByteBuffer>> inFlight = new ArrayBlockingQueue<>(maxInFlight);
+        final FutureTask<ByteBuffer> end = new FutureTask<>(() -> null);
+        final Throwable[] writeError = new Throwable[1];
+        final Thread writerThread = new Thread(() -> {
+            try {
+                Future<ByteBuffer> next;
+                while ((next = inFlight.take()) != end) {
+                    if (writeError[0] != null) {
+                        // just draining until the reader notices
+                        next.cancel(false);
+                        continue;
+                    }
+                    try {
+                        final ByteBuffer out = next.get();
+                        if (out != null) {
+                            writer.bytes(out.array(), out.position(), out.remaining());
+                            writer.writeOut();
+                        }
+                    } catch (final Throwable e) {
+                        writeError[0] = e instanceof ExecutionException ? e.getCause() : e;
+                        try {
+                            // unblocks the reader
+                            s.close();
+                        } catch (IOException e2) {
+                            // ignore
+                        }
+                    }
                 }
+            } catch (final InterruptedException e) {
+                writeError[0] = e;
             }
+        }, "Server-pipeline-writer");
+        writerThread.start();
+        Throwable readError = null;
+        try {
+            ByteChars frame;
+            while ((frame = decoder.readFrame(is)) != null) {
+                final ByteChars in = frame;
+                // here rather than in the task, the workers would journal frames in whatever order they got to them
+                final long sequence = journal(in, remote);
+                final FutureTask<ByteBuffer> task = new FutureTask<>(() -> {
+                    // encoded here so the writer thread only copies bytes
+                    final ByteMessageWriter w = new ByteMessageWriter();
+                    return acknowledge(in, w, conn, sequence) ? w.toByteBuffer() : null;
+                });
+                inFlight.put(task);
+                try {
+                    workers.execute(task);
+                } catch (final RejectedExecutionException e) {
+                    // so the writer doesn't wait on it forever
+                    task.cancel(false);
+                    throw e;
+                }
+            }
+        } catch (final Throwable e) {
+            readError = e;
+        } finally {
+            try {
+                inFlight.put(end);
+                writerThread.join();
+            } catch (final InterruptedException e) {
+                writerThread.interrupt();
+                Thread.currentThread().interrupt();
+            }
+        }
+        // a failed write is what made reading fail, so that's the interesting one, unless it failed on a task we cancelled
+        final Throwable e = writeError[0] != null && !(writeError[0] instanceof CancellationException) ? writeError[0] : readError;
+        if (e == null)
+            return;
+        if (e instanceof IOException)
+            throw (IOException) e;
+        if (e instanceof ParseException)
+            throw (ParseException) e;
+        if (e instanceof RuntimeException)
+            throw (RuntimeException) e;
+        if (e instanceof Error)
+            throw (Error) e;
+        throw new RuntimeException(e);
     }
 
     @Override
@@ -0,0 +1,87 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import java.net.SocketAddress;
+
+/**
+ * What a Server reports about its connections and messages as it runs, every method is called on the hot path, from
+ * whichever thread is doing the work, so implementations must be thread safe and cheap, see MemoryServerMetrics.
+ *
+ * Times are in nanoseconds, and are never even measured if this is NONE.
+ */
+public interface ServerMetrics {
+
+    ServerMetrics NONE = remote -> Connection.NONE;
+
+    /**
+     * @return where everything about this connection is reported until Connection.closed(), never null
+     */
+    Connection connectionOpened(final SocketAddress remote);
+
+    /**
+     * Called when MessageProcessor.allowConnection refuses a connection, or there's no thread to handle it
+     */
+    default void connectionRejected(final SocketAddress remote) {
+    }
+
+    /**
+     * Everything about one connection, calls for different messages can overlap when pipelining
+     */
+    interface Connection {
+
+        Connection NONE = new Connection() {
+        };
+
+        /**
+         * @param bytes length of the message, not counting MLLP framing
+         */
+        default void frameRead(final int bytes) {
+        }
+
+        /**
+         * @param msg only valid until this returns
+         */
+        default void parsed(final Message msg, final long nanos) {
+        }
+
+        /**
+         * @param msg what was processed, only valid until this returns
+         */
+        default void processed(final Message msg, final long nanos) {
+        }
+
+        /**
+         * @param bytes response length, including MLLP framing
+         */
+        default void written(final long bytes, final long nanos) {
+        }
+
+        /**
+         * Called with whatever ended this connection early, before closed()
+         */
+        default void failed(final Throwable e) {
+        }
+
+        default void closed() {
+        }
+    }
+}
@@ -32,6 +32,11 @@ import static java.time.temporal.ChronoField.*;
 
 public interface SubComponent {
 
+    /**
+     * Shared and read-only, returned by the get accessors for anything that doesn't exist, instead of creating it
+     */
+    SubComponent EMPTY = SubComponentImpl.EMPTY;
+
     /*
     For dates, I have seen:
     20160722
@@ -40,6 +45,7 @@ public interface SubComponent {
     20160722153849.854-0400
      */
 
+    // date() and friends go through Dtm, these are only used for years Dtm doesn't handle
     DateTimeFormatter LOCAL_DATE = new DateTimeFormatterBuilder()
             .appendValue(YEAR, 4, 10, SignStyle.EXCEEDS_PAD)
             .appendValue(MONTH_OF_YEAR, 2)
@@ -82,49 +88,87 @@ public interface SubComponent {
 
     boolean equals(final String s);
 
+    /**
+     * Appends this encoded in enc, followed by the delimiter that ends it
+     */
     void encode(final StringBuilder sb, final Encoding enc);
 
+    /**
+     * Writes this encoded in enc, followed by the delimiter that ends it, which w holds back so it can be trimmed.
+     * By default goes through encode(StringBuilder, Encoding), so implementations written before MessageWriter work
+     * unchanged, the ones here override it to write straight to w.
+     */
+    default void encode(final MessageWriter w, final Encoding enc) {
+        final StringBuilder sb = new StringBuilder();
+        this.encode(sb, enc);
+        final int last = sb.length() - 1;
+        if(last >= 0 && enc.isDelimiter(sb.charAt(last)))
+            w.text(sb, 0, last).delimiter(sb.charAt(last));
+        else
+            w.text(sb);
+    }
+
     default boolean isEmpty() {
         return this.equals("");
     }
 
     default void date(final LocalDate date) {
-        this.value(date == null ? "" : LOCAL_DATE.format(date));
+        this.value(date == null ? "" : Dtm.format(date));
     }
 
     default void date(final LocalDateTime date) {
-        this.value(date == null ? "" : LOCAL_DATE_TIME.format(date));
+        this.value(date == null ? "" : Dtm.format(date));
     }
 
     default void date(final Instant date) {
-        this.value(date == null ? "" : INSTANT.format(date));
+        this.value(date == null ? "" : Dtm.format(date));
     }
 
+    /**
+     * @return Year, YearMonth, LocalDate, LocalDateTime, or OffsetDateTime, depending on how precise this is, see Dtm
+     * @throws DateTimeParseException if this isn't a valid HL7 DTM
+     */
     default TemporalAccessor date() {
-        // try each in succession from most detail to least until one doesn't crash
         if(isEmpty())
             return null;
-        try {
-            return INSTANT.parse(this.value());
-        } catch (DateTimeParseException e) {
-            try {
-                return LOCAL_DATE_TIME.parse(this.value());
-            } catch (DateTimeParseException e2) {
-                return LOCAL_DATE.parse(this.value());
-            }
-        }
+        final String value = this.value();
+        final TemporalAccessor ret = Dtm.parse(value);
+        if(ret == null)
+            throw new DateTimeParseException("Text '" + value + "' is not a valid HL7 DTM", value, 0);
+        return ret;
     }
 
     default LocalDate localDate() {
-        return isEmpty() ? null : LOCAL_DATE.parse(this.value(), LocalDate::from);
+        if(isEmpty())
+            return null;
+        final String value = this.value();
+        final LocalDate ret = Dtm.parseLocalDate(value);
+        if(ret == null)
+            throw new DateTimeParseException("Text '" + value + "' is not a valid HL7 DTM precise to the day", value, 0);
+        return ret;
     }
 
     default LocalDateTime localDateTime() {
-        return isEmpty() ? null : LOCAL_DATE_TIME.parse(this.value(), LocalDateTime::from);
+        if(isEmpty())
+            return null;
+        final String value = this.value();
+        final LocalDateTime ret = Dtm.parseLocalDateTime(value);
+        if(ret == null)
+            throw new DateTimeParseException("Text '" + value + "' is not a valid HL7 DTM precise to the day", value, 0);
+        return ret;
     }
 
+    /**
+     * @return this as an Instant, in the system default time zone if it has no offset
+     */
     default Instant instant() {
-        return isEmpty() ? null : INSTANT.parse(this.value(), Instant::from);
+        if(isEmpty())
+            return null;
+        final String value = this.value();
+        final Instant ret = Dtm.parseInstant(value);
+        if(ret == null)
+            throw new DateTimeParseException("Text '" + value + "' is not a valid HL7 DTM precise to the day", value, 0);
+        return ret;
     }
 
     // shorter aliases
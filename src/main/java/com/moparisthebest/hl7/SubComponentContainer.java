@@ -21,77 +21,453 @@
 package com.moparisthebest.hl7;
 
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 
 abstract class SubComponentContainer<T extends SubComponent> implements SubComponent, Iterable<T> {
     
-    protected final List<T> subComponents = new ArrayList<>();
+    protected final List<T> subComponents;
+
+    // unparsed text and the encoding it is written in, only set until the first time this is accessed, raw is only
+    // cleared once the children are complete, so another thread reading this can never see them half built
+    private volatile CharSequence raw;
+    private int rawStart, rawEnd;
+    private Encoding rawEnc;
+    // while raw is set, the only children that have been split out of it, in subComponents at their index, anywhere
+    // else subComponents holds null or something left over from before a reset, null if none have been
+    private BitSet projected;
+    // the Message this was created by, which only changes this in place while it is still stamped with that Message's
+    // Owner, null if this was created on its own
+    Owner owner;
 
     protected SubComponentContainer() {
+        this.subComponents = new ArrayList<>();
         subComponents.add(newSubComponent());
     }
 
     protected SubComponentContainer(final String s) {
+        this.subComponents = new ArrayList<>();
         subComponents.add(newSubComponent(s));
     }
 
-    protected SubComponentContainer(final String s, final Encoding enc, final char thisDelimiter) {
-        for(final String line : enc.split(s, thisDelimiter))
-            subComponents.add(newSubComponent(line, enc));
-        if(subComponents.isEmpty())
-            subComponents.add(newSubComponent());
+    /**
+     * Only for the shared, read-only, EMPTY instances, anything that would change them throws UnsupportedOperationException
+     */
+    protected SubComponentContainer(final T emptyChild) {
+        this.subComponents = Collections.singletonList(emptyChild);
+    }
+
+    /**
+     * Reads s from start (inclusive) to end (exclusive) without ever copying it, children just point into s
+     *
+     * @param lazy if true, s is not split until something actually reads or writes this
+     */
+    protected SubComponentContainer(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        this.subComponents = new ArrayList<>();
+        this.owner = owner;
+        if(lazy) {
+            this.raw = s;
+            this.rawStart = start;
+            this.rawEnd = end;
+            this.rawEnc = enc;
+        } else {
+            parse(s, start, end, enc, null);
+        }
     }
 
+    /**
+     * Like the lazy constructor, but the children whose index is set in eager are split out right away, and can be read
+     * without splitting the rest, which aren't even created until something else is accessed
+     */
+    protected SubComponentContainer(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc, final BitSet eager) {
+        this.subComponents = new ArrayList<>();
+        this.owner = owner;
+        project(s, start, end, enc, eager);
+    }
+
+    /**
+     * Copies everything but unparsed text, which is never changed, so both can point at it and only split it if they
+     * are accessed, nothing else is shared, so nothing read out of either can change the other
+     */
     protected SubComponentContainer(final SubComponentContainer<T> toClone) {
+        this.subComponents = new ArrayList<>();
+        final CharSequence s = toClone.raw;
+        if(s != null) {
+            // still unparsed, no need to parse just to copy it
+            final BitSet p = toClone.projected;
+            if(p != null)
+                for(int i = 0; i < toClone.subComponents.size(); ++i) {
+                    final T sc = p.get(i) ? toClone.subComponents.get(i) : null;
+                    this.subComponents.add(sc == null ? null : newSubComponent(sc));
+                }
+            this.projected = p;
+            this.rawStart = toClone.rawStart;
+            this.rawEnd = toClone.rawEnd;
+            this.rawEnc = toClone.rawEnc;
+            this.raw = s;
+            return;
+        }
         for(final T sc : toClone.subComponents)
             this.subComponents.add(newSubComponent(sc));
     }
+
+    /**
+     * Copies only this, the children are shared with toShare until something changes them through either, see owned(index)
+     */
+    protected SubComponentContainer(final SubComponentContainer<T> toShare, final Owner owner) {
+        this.owner = owner;
+        // locked so toShare can't be half expanded by another thread reading it
+        synchronized (toShare) {
+            final CharSequence s = toShare.raw;
+            // anything in an unprojected raw container is just left over from before a reset
+            this.subComponents = s == null || toShare.projected != null ? new ArrayList<>(toShare.subComponents) : new ArrayList<>();
+            this.projected = toShare.projected;
+            this.rawStart = toShare.rawStart;
+            this.rawEnd = toShare.rawEnd;
+            this.rawEnc = toShare.rawEnc;
+            this.raw = s;
+        }
+    }
+
+    /**
+     * @param keep null to split every child, otherwise the children whose index is set are already split out of s,
+     *             and may have been changed since, so are left as they are
+     */
+    private void parse(final CharSequence s, final int start, final int end, final Encoding enc, final BitSet keep) {
+        final char thisDelimiter = delimiter(enc);
+        int off = start, index = 0;
+        for(int next; ; off = next + 1, ++index) {
+            if((next = Encoding.indexOf(s, thisDelimiter, off, end)) == -1)
+                next = end;
+            if(keep == null || !keep.get(index) || index >= subComponents.size() || subComponents.get(index) == null)
+                child(index, s, off, next, enc, false);
+            if(next == end)
+                break;
+        }
+        // and drop any left over from before a reset
+        if(++index < subComponents.size())
+            subComponents.subList(index, subComponents.size()).clear();
+    }
+
+    /**
+     * Keeps s unparsed, except for the children whose index is set in eager, nothing past the last of them is even looked at
+     */
+    private void project(final CharSequence s, final int start, final int end, final Encoding enc, final BitSet eager) {
+        final char thisDelimiter = delimiter(enc);
+        final int last = eager.length() - 1;
+        int off = start, index = 0;
+        for(int next; index <= last; off = next + 1, ++index) {
+            if((next = Encoding.indexOf(s, thisDelimiter, off, end)) == -1)
+                next = end;
+            if(eager.get(index)) {
+                while(subComponents.size() < index)
+                    subComponents.add(null);
+                child(index, s, off, next, enc, false);
+            }
+            if(next == end)
+                break;
+        }
+        // anything asked for past the end of s doesn't exist, so mustn't be left over from before a reset either
+        for(int i = eager.nextSetBit(index + 1); i != -1 && i < subComponents.size(); i = eager.nextSetBit(i + 1))
+            subComponents.set(i, null);
+        this.projected = eager;
+        this.rawStart = start;
+        this.rawEnd = end;
+        this.rawEnc = enc;
+        this.raw = s;
+    }
+
+    private void child(final int index, final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        if(index == subComponents.size()) {
+            subComponents.add(newSubComponent(s, start, end, enc, lazy));
+        } else {
+            final T sc = subComponents.get(index);
+            // a copy of the message may still be using it
+            if(ownerOf(sc) != owner || !reset(sc, s, start, end, enc, lazy))
+                subComponents.set(index, newSubComponent(s, start, end, enc, lazy));
+        }
+    }
+
+    private static Owner ownerOf(final SubComponent sc) {
+        if(sc instanceof SubComponentContainer)
+            return ((SubComponentContainer<?>) sc).owner;
+        return sc instanceof SubComponentImpl ? ((SubComponentImpl) sc).owner : null;
+    }
+
+    /**
+     * Stamps owner on sc and everything under it that was created on its own, Encoding is immutable and never stamped
+     */
+    static void adopt(final SubComponent sc, final Owner owner) {
+        if(owner == null)
+            return;
+        if(sc instanceof SubComponentContainer) {
+            final SubComponentContainer<?> c = (SubComponentContainer<?>) sc;
+            if(c.owner != null || c instanceof Encoding || c instanceof Encoding.MSH1)
+                return;
+            c.owner = owner;
+            // nothing to stamp in raw text, anything split out of it later is stamped when it is
+            for(final SubComponent child : c.subComponents)
+                adopt(child, owner);
+        } else if(sc instanceof SubComponentImpl && ((SubComponentImpl) sc).owner == null) {
+            ((SubComponentImpl) sc).owner = owner;
+        }
+    }
+
+    private T adopt(final T sc) {
+        adopt(sc, owner);
+        return sc;
+    }
+
+    /**
+     * @return the child at index, first replaced with a copy stamped with this one's owner if it is stamped with some
+     * other, so changing it can't change a copy of the message it is shared with
+     */
+    private T owned(final int index) {
+        final T sc = subComponents.get(index);
+        if(ownerOf(sc) == owner)
+            return sc;
+        final T copy = newSubComponent(sc, owner);
+        if(copy != sc) {
+            checkOwned();
+            subComponents.set(index, copy);
+        }
+        return copy;
+    }
+
+    /**
+     * @throws IllegalStateException if this is shared with a copy of its message, so can't be changed
+     */
+    protected final void checkOwned() {
+        Owner.checkNotShared(owner);
+    }
+
+    private static boolean reset(final SubComponent sc, final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        if(sc instanceof SubComponentContainer)
+            return ((SubComponentContainer<?>) sc).reset(s, start, end, enc, lazy);
+        return sc instanceof SubComponentImpl && ((SubComponentImpl) sc).reset(s, start, end, enc);
+    }
+
+    /**
+     * Points this at new text, reusing the children it already has wherever it can, anything previously read out of
+     * this is no longer valid afterwards
+     *
+     * @return false if this can't be reused, in which case it is unchanged
+     */
+    boolean reset(final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        this.projected = null;
+        if(lazy) {
+            // children stay around to be reused when this is expanded
+            this.raw = s;
+            this.rawStart = start;
+            this.rawEnd = end;
+            this.rawEnc = enc;
+        } else {
+            this.raw = null;
+            this.rawEnc = null;
+            parse(s, start, end, enc, null);
+        }
+        return true;
+    }
+
+    /**
+     * Like reset, but parsed like the constructor taking eager
+     */
+    boolean reset(final CharSequence s, final int start, final int end, final Encoding enc, final BitSet eager) {
+        this.raw = null;
+        project(s, start, end, enc, eager);
+        return true;
+    }
+
+    /**
+     * Reading a parsed message from several threads at once is fine, so the first of them to get here parses and
+     * the rest wait for it
+     */
+    protected final void expand() {
+        if(raw != null) {
+            synchronized (this) {
+                final CharSequence s = raw;
+                if(s != null) {
+                    // rawEnc is kept, anyone who already read raw may still need it
+                    parse(s, rawStart, rawEnd, rawEnc, projected);
+                    raw = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Without parsing this if it hasn't been yet
+     *
+     * @return true if the first child equals prefix
+     */
+    protected final boolean firstEquals(final String prefix) {
+        final CharSequence s = raw;
+        if(s == null || projected(0) != null)
+            return !subComponents.isEmpty() && subComponents.get(0).equals(prefix);
+        final int len = prefix.length();
+        if(rawEnd - rawStart < len)
+            return false;
+        for(int i = 0; i < len; ++i)
+            if(s.charAt(rawStart + i) != prefix.charAt(i))
+                return false;
+        return rawEnd - rawStart == len || s.charAt(rawStart + len) == delimiter(rawEnc);
+    }
+
+    /**
+     * Without parsing this if it hasn't been yet
+     *
+     * @return value of the first child
+     */
+    protected final String firstValue() {
+        final CharSequence s = raw;
+        if(s == null || projected(0) != null)
+            return subComponents.isEmpty() ? "" : subComponents.get(0).value();
+        final int next = Encoding.indexOf(s, delimiter(rawEnc), rawStart, rawEnd);
+        return s.subSequence(rawStart, next == -1 ? rawEnd : next).toString();
+    }
+
+    protected final boolean isExpanded() {
+        return raw == null;
+    }
+
+    /**
+     * @return the child at index if this hasn't been expanded yet but that child has already been split out, otherwise null
+     */
+    private T projected(final int index) {
+        final BitSet p = projected;
+        return raw != null && p != null && p.get(index) && index < subComponents.size() ? subComponents.get(index) : null;
+    }
+
+    /**
+     * @return true if this hasn't been expanded yet and is in an encoding compatible with enc, so can be copied as-is
+     */
+    protected final boolean isRaw(final Encoding enc) {
+        final CharSequence s = raw;
+        return s != null && rawEnc.compatible(enc);
+    }
     
     abstract T newSubComponent();
     abstract T newSubComponent(final String s);
-    abstract T newSubComponent(final String s, final Encoding enc);
+    abstract T newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc);
     abstract T newSubComponent(final T s);
+    /**
+     * @return a copy of s stamped with owner, sharing whatever is under it, or s itself if it is immutable
+     */
+    abstract T newSubComponent(final T s, final Owner owner);
 
-    protected final void encode(final StringBuilder sb, final Encoding enc, final char thisDelimiter, final char parentDelimiter) {
-        for(final SubComponent e : subComponents)
-            e.encode(sb, enc);
-        if(!subComponents.isEmpty()){
-            int index = 1, count = -1;
-            while (++count < subComponents.size() && index > 0 && sb.charAt(index = sb.length() - 1) == thisDelimiter)
-                sb.setLength(index);
+    T newSubComponent(final CharSequence s, final int start, final int end, final Encoding enc, final boolean lazy) {
+        return newSubComponent(s, start, end, enc);
+    }
+
+    abstract char delimiter(final Encoding enc);
+
+    protected final void encode(final MessageWriter w, final Encoding enc, final char thisDelimiter, final char parentDelimiter) {
+        final CharSequence s = raw;
+        if(s != null && rawEnc.compatible(enc)) {
+            final BitSet p = projected;
+            if(p == null) {
+                // never read, so write it back out exactly as it came in
+                w.text(s, rawStart, rawEnd);
+            } else {
+                // the same, except for the children split out, which may have been changed
+                int off = rawStart, index = 0;
+                for(int next; ; off = next + 1, ++index) {
+                    if((next = Encoding.indexOf(s, thisDelimiter, off, rawEnd)) == -1)
+                        next = rawEnd;
+                    final T sc = p.get(index) && index < subComponents.size() ? subComponents.get(index) : null;
+                    if(sc == null) {
+                        w.text(s, off, next);
+                        w.delimiter(thisDelimiter);
+                    } else {
+                        sc.encode(w, enc);
+                    }
+                    if(next == rawEnd)
+                        break;
+                }
+                w.trim(thisDelimiter, index + 1);
+            }
+            w.delimiter(parentDelimiter);
+            return;
         }
-        sb.append(parentDelimiter);
+        expand();
+        // no Iterator, this runs for every container in every message written
+        for(int i = 0, n = subComponents.size(); i < n; ++i)
+            subComponents.get(i).encode(w, enc);
+        w.trim(thisDelimiter, subComponents.size());
+        w.delimiter(parentDelimiter);
+    }
+
+    @Override
+    public final void encode(final StringBuilder sb, final Encoding enc) {
+        final MessageWriter w = MessageWriter.of(sb);
+        this.encode(w, enc);
+        w.flush();
     }
 
     protected T subComponent0Based(final int index) {
-        while(subComponents.size() <= index)
-            subComponents.add(newSubComponent());
-        return subComponents.get(index);
+        if(projected(index) != null)
+            return owned(index);
+        expand();
+        if(subComponents.size() <= index) {
+            checkOwned();
+            while(subComponents.size() <= index)
+                subComponents.add(adopt(newSubComponent()));
+        }
+        return owned(index);
     }
 
     protected T subComponent1Based(final int index) {
-        while(subComponents.size() < index)
-            subComponents.add(newSubComponent());
-        return subComponents.get(index - 1);
+        return subComponent0Based(index - 1);
+    }
+
+    /**
+     * Never changes this, unlike subComponent0Based
+     *
+     * @return the existing child at index, or empty if there isn't one
+     */
+    protected T get0Based(final int index, final T empty) {
+        final T p = projected(index);
+        if(p != null)
+            return p;
+        expand();
+        return index < subComponents.size() ? subComponents.get(index) : empty;
+    }
+
+    protected T get1Based(final int index, final T empty) {
+        return get0Based(index - 1, empty);
     }
 
+    /**
+     * Like the accessors that create what doesn't exist, everything returned can be changed, unless this is shared with
+     * a copy of its message, in which case it can only be read
+     */
     @Override
     public Iterator<T> iterator() {
+        expand();
+        final Owner o = owner;
+        if(o != null && o.shared)
+            return Collections.unmodifiableList(subComponents).iterator();
+        for(int i = 0; i < subComponents.size(); ++i)
+            owned(i);
         return subComponents.iterator();
     }
 
     protected int numSubComponents() {
+        expand();
         return subComponents.size();
     }
 
     @Override
     public SubComponent value(final String value) {
+        checkOwned();
+        expand();
         if(subComponents.size() == 1) {
-            subComponents.get(0).value(value);
+            owned(0).value(value);
         } else {
             subComponents.clear();
-            subComponents.add(newSubComponent(value));
+            subComponents.add(adopt(newSubComponent(value)));
         }
         return this;
     }
@@ -99,12 +475,14 @@ abstract class SubComponentContainer<T extends SubComponent> implements SubCompo
     @Override
     public String value() {
         // todo: this isn't ALWAYS correct, it just returns the first, ignoring any other field/repetition/component/subcomponent/whatever
+        expand();
         return subComponents.isEmpty() ? "" : subComponents.get(0).value();
     }
 
     @Override
     public boolean equals(final String s) {
         // more complicated than you'd think
+        expand();
         if("".equals(s)) {
             // special case for empty string
             if(subComponents.isEmpty())
@@ -128,6 +506,7 @@ abstract class SubComponentContainer<T extends SubComponent> implements SubCompo
     }
 
     protected final String toString(final String name) {
+        expand();
         return subComponents.size() == 1 ? subComponents.get(0).toString() : name + subComponents;
     }
 }
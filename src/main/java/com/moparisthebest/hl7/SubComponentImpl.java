@@ -24,8 +24,47 @@ import java.util.Objects;
 
 class SubComponentImpl implements SubComponent {
 
+    static final SubComponent EMPTY = new SubComponent() {
+        @Override
+        public SubComponent value(final String value) {
+            throw new UnsupportedOperationException("EMPTY is shared and read-only");
+        }
+
+        @Override
+        public String value() {
+            return "";
+        }
+
+        @Override
+        public boolean equals(final String s) {
+            return "".equals(s);
+        }
+
+        @Override
+        public void encode(final StringBuilder sb, final Encoding enc) {
+            sb.append(enc.subComponentDelimiter);
+        }
+
+        @Override
+        public void encode(final MessageWriter w, final Encoding enc) {
+            w.delimiter(enc.subComponentDelimiter);
+        }
+
+        @Override
+        public String toString() {
+            return "";
+        }
+    };
+
     protected String value;
 
+    // still encoded text this was read from, kept until value is changed so it can be written back out without re-encoding
+    private CharSequence raw;
+    private int rawStart, rawEnd;
+    private Encoding rawEnc;
+    // see SubComponentContainer.owner
+    Owner owner;
+
     SubComponentImpl() {
         this("");
     }
@@ -35,40 +74,91 @@ class SubComponentImpl implements SubComponent {
     }
 
     SubComponentImpl(final SubComponent value) {
-        this.value = value.value();
+        if(value instanceof SubComponentImpl) {
+            final SubComponentImpl sci = (SubComponentImpl) value;
+            this.value = sci.value;
+            this.raw = sci.raw;
+            this.rawStart = sci.rawStart;
+            this.rawEnd = sci.rawEnd;
+            this.rawEnc = sci.rawEnc;
+        } else {
+            this.value = value.value();
+        }
+    }
+
+    SubComponentImpl(final SubComponent value, final Owner owner) {
+        this(value);
+        this.owner = owner;
     }
 
-    SubComponentImpl(final String s, final Encoding enc) {
-        this.value = enc.decode(s);
+    SubComponentImpl(final Owner owner, final CharSequence s, final int start, final int end, final Encoding enc) {
+        this.owner = owner;
+        // decoded only when someone asks for value()
+        this.raw = s;
+        this.rawStart = start;
+        this.rawEnd = end;
+        this.rawEnc = enc;
     }
 
+    /**
+     * Points this at new text, like the constructor does
+     */
+    boolean reset(final CharSequence s, final int start, final int end, final Encoding enc) {
+        this.value = null;
+        this.raw = s;
+        this.rawStart = start;
+        this.rawEnd = end;
+        this.rawEnc = enc;
+        return true;
+    }
+
+    public void encode(final MessageWriter w, final Encoding enc) {
+        if(raw != null && rawEnc.compatible(enc))
+            w.text(raw, rawStart, rawEnd);
+        else
+            w.escaped(this.value(), enc);
+        w.delimiter(enc.subComponentDelimiter);
+    }
+
+    @Override
     public void encode(final StringBuilder sb, final Encoding enc) {
-        sb.append(enc.encode(this.value));
-        sb.append(enc.subComponentDelimiter);
+        final MessageWriter w = MessageWriter.of(sb);
+        this.encode(w, enc);
+        w.flush();
     }
 
     String encode(final Encoding enc) {
-        return enc.encode(this.value);
+        return enc.encode(this.value());
     }
 
     @Override
     public SubComponent value(final String value) {
+        Owner.checkNotShared(owner);
         this.value = value == null ? "" : value;
+        this.raw = null;
+        this.rawEnc = null;
         return this;
     }
 
     @Override
     public boolean equals(final String s) {
-        return Objects.equals(value, s);
+        return Objects.equals(value(), s);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return (raw != null && rawStart == rawEnd) || value().isEmpty();
     }
 
     @Override
     public String value() {
+        if(value == null)
+            value = rawEnc.decode(raw, rawStart, rawEnd);
         return value;
     }
 
     @Override
     public String toString() {
-        return value;
+        return value();
     }
 }
@@ -0,0 +1,135 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.moparisthebest.hl7.ArchiveIndex.Hit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ArchiveIndexTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String message(final String time, final String controlId, final String patientIds) {
+        return "MSH|^~\\&|SEND|FAC|RECV|FAC2|" + time + "||ADT^A01|" + controlId + "|P|2.5\r\n" +
+                "PID|1||" + patientIds + "||DOE^JOHN\r\n";
+    }
+
+    private Path archive() throws IOException {
+        final Path file = tmp.newFile("archive.hl7").toPath();
+        Files.write(file, ("FHS|^~\\&|SEND\r\n" +
+                message("20160101120000+0000", "C1", "P1^^^MRN~P2^^^SSN") +
+                message("20160102120000+0000", "C2", "P1^^^MRN") +
+                message("20160103120000+0000", "C3", "P3^^^MRN") +
+                "FTS|3\r\n").getBytes(StandardCharsets.ISO_8859_1));
+        return file;
+    }
+
+    private static ArchiveIndex build(final Path file) throws IOException {
+        final ExecutorService executor = Executors.newFixedThreadPool(2, r -> {
+            final Thread t = new Thread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            return ArchiveIndex.build(Arrays.asList(file), null, executor);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static Instant day(final int day) {
+        return Instant.parse("2016-01-0" + day + "T12:00:00Z");
+    }
+
+    @Test
+    public void crlfArchive() throws IOException, ParseException {
+        final Path file = archive();
+        try (ArchiveIndex index = build(file)) {
+            assertTrue(Files.exists(file.resolveSibling(file.getFileName() + ArchiveIndex.SUFFIX)));
+
+            final List<Hit> c2 = index.byControlId("C2");
+            assertEquals(1, c2.size());
+            final Message msg = index.read(c2.get(0));
+            assertEquals("C2", msg.value("MSH-10"));
+            assertEquals("P1", msg.value("PID-3.1"));
+            assertEquals(2, msg.getLines().size());
+
+            final List<Hit> p1 = index.byPatientId("P1", null, null);
+            assertEquals(2, p1.size());
+            assertEquals("C1", index.read(p1.get(0)).value("MSH-10"));
+            assertEquals("C2", index.read(p1.get(1)).value("MSH-10"));
+            // only in the second repetition
+            assertEquals(1, index.byPatientId("P2", null, null).size());
+            assertEquals(1, index.byPatientId("P1", day(2), null).size());
+            assertEquals(0, index.byPatientId("P3", null, day(3)).size());
+            assertEquals(0, index.byPatientId("P4", null, null).size());
+
+            final List<Hit> byTime = index.byTime(day(1), day(3));
+            assertEquals(2, byTime.size());
+            assertEquals("C1", index.read(byTime.get(0)).value("MSH-10"));
+            assertEquals("C2", index.read(byTime.get(1)).value("MSH-10"));
+        }
+    }
+
+    @Test
+    public void reopen() throws IOException, ParseException {
+        final Path file = archive();
+        build(file).close();
+        try (ArchiveIndex index = ArchiveIndex.open(Arrays.asList(file), null)) {
+            final List<Hit> p3 = index.byPatientId("P3", null, null);
+            assertEquals(1, p3.size());
+            assertEquals(day(3), p3.get(0).getTimestamp());
+            assertEquals("C3", index.read(p3.get(0)).value("MSH-10"));
+        }
+    }
+
+    @Test
+    public void lfInValueOfCrlfArchive() throws IOException, ParseException {
+        final Path file = tmp.newFile("notes.hl7").toPath();
+        Files.write(file, (message("20160101120000+0000", "C1", "P1^^^MRN") +
+                "OBX|1|TX|NOTE||first line\nsecond line\r\n" +
+                message("20160102120000+0000", "C2", "P2^^^MRN")).getBytes(StandardCharsets.ISO_8859_1));
+        try (ArchiveIndex index = build(file)) {
+            final Message msg = index.read(index.byPatientId("P1", null, null).get(0));
+            assertEquals(3, msg.getLines().size());
+            assertEquals("first line\nsecond line", msg.value("OBX-5"));
+            assertEquals("C2", index.read(index.byPatientId("P2", null, null).get(0)).value("MSH-10"));
+        }
+    }
+}
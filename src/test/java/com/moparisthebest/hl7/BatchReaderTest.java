@@ -0,0 +1,171 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.ParseException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class BatchReaderTest {
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static String message(final int i, final String eol) {
+        return "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL" + i + "|P|2.5" + eol +
+                "PID|1||MRN" + i + "^^^MRN||DOE^JOHN" + eol +
+                "PV1|1|I" + eol;
+    }
+
+    private Path write(final String s) throws IOException {
+        final Path file = tmp.newFile().toPath();
+        Files.write(file, s.getBytes(StandardCharsets.ISO_8859_1));
+        return file;
+    }
+
+    private static void assertMessage(final int i, final Message msg) {
+        assertEquals(3, msg.getLines().size());
+        assertEquals("CTRL" + i, msg.value("MSH-10"));
+        assertEquals("MRN" + i, msg.value("PID-3.1"));
+        assertEquals("I", msg.value("PV1-2"));
+        assertEquals('\r', msg.getEncoding().segmentDelimiter);
+    }
+
+    @Test
+    public void crlfBatch() throws IOException, ParseException {
+        final String header = "FHS|^~\\&|SEND\r\nBHS|^~\\&|SEND\r\n";
+        try (BatchReader reader = new BatchReader(write(header + message(1, "\r\n") + "\r\n" + message(2, "\r\n") +
+                "BTS|2\r\nFTS|1\r\n"))) {
+            assertMessage(1, reader.next());
+            assertEquals("FHS|^~\\&|SEND", reader.getFileHeader());
+            assertEquals("BHS|^~\\&|SEND", reader.getBatchHeader());
+            assertEquals(header.length(), reader.getOffset());
+            assertEquals(message(1, "\r\n").length() + 2, reader.getLength());
+            assertMessage(2, reader.next());
+            assertNull(reader.next());
+            assertEquals("BTS|2", reader.getBatchTrailer());
+            assertEquals("FTS|1", reader.getFileTrailer());
+        }
+    }
+
+    @Test
+    public void lfBatchKeepsLf() throws IOException, ParseException {
+        try (BatchReader reader = new BatchReader(write(message(1, "\n")))) {
+            final Message msg = reader.next();
+            assertEquals("CTRL1", msg.value("MSH-10"));
+            assertEquals("MRN1", msg.value("PID-3.1"));
+            assertEquals('\n', msg.getEncoding().segmentDelimiter);
+            assertNull(reader.next());
+        }
+    }
+
+    private static String segments(final String s) {
+        return BatchReader.segments(s.getBytes(StandardCharsets.ISO_8859_1), null).toString();
+    }
+
+    @Test
+    public void segmentsCollapsesLineEndings() {
+        final String msh = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL1|P|2.5";
+        assertEquals(msh + "\rB\rC", segments(msh + "\r\nB\r\n\r\n\r\rC\r\n\r\n"));
+        assertEquals(msh + "\nB\nC", segments(msh + "\nB\n\n\nC\n\r\n"));
+        // no MSH to go by, so the first line break
+        assertEquals("A\rB", segments("A\r\nB\r\n"));
+    }
+
+    @Test
+    public void segmentsKeepsLineBreaksInValues() {
+        final String msh = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL1|P|2.5";
+        // LF in a CR or CRLF file, and CR in an LF file, are part of the value
+        assertEquals(msh + "\rOBX|1|TX|NOTE||one\ntwo\rC", segments(msh + "\r\nOBX|1|TX|NOTE||one\ntwo\r\nC\r\n"));
+        assertEquals(msh + "\rOBX|1|TX|NOTE||one\n\ntwo\rC", segments(msh + "\rOBX|1|TX|NOTE||one\n\ntwo\rC\r"));
+        assertEquals(msh + "\nOBX|1|TX|NOTE||one\rtwo\nC", segments(msh + "\nOBX|1|TX|NOTE||one\rtwo\nC"));
+        // MSH-18 and on after the version, the first line break decides
+        assertEquals(msh + "||||||UNICODE UTF-8\rOBX|1|TX|NOTE||one\ntwo",
+                segments(msh + "||||||UNICODE UTF-8\r\nOBX|1|TX|NOTE||one\ntwo\r\n"));
+    }
+
+    @Test
+    public void lfInValueOfCrlfBatch() throws IOException, ParseException {
+        final String obx = "OBX|1|TX|NOTE||first line\nsecond line\nMSH is mentioned here\r\n";
+        try (BatchReader reader = new BatchReader(write(message(1, "\r\n") + obx + message(2, "\r\n")))) {
+            final Message msg = reader.next();
+            assertEquals(4, msg.getLines().size());
+            assertEquals("first line\nsecond line\nMSH is mentioned here", msg.value("OBX-5"));
+            assertEquals("MRN1", msg.value("PID-3.1"));
+            assertMessage(2, reader.next());
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    public void parallelCrlf() throws IOException {
+        // enough to be split several times
+        final int count = (int) (BatchReader.MIN_SPLIT * 8 / message(0, "\r\n").length());
+        final StringBuilder sb = new StringBuilder();
+        for(int i = 0; i < count; ++i)
+            sb.append(message(i, "\r\n"));
+        final Path file = write(sb.toString());
+        final List<Message> messages;
+        try (Stream<Message> stream = new BatchReader(file).parallelStream(true)) {
+            messages = stream.collect(Collectors.toList());
+        }
+        assertEquals(count, messages.size());
+        for(int i = 0; i < count; ++i)
+            assertMessage(i, messages.get(i));
+    }
+
+    @Test
+    public void parallelUnorderedSeesEachOnce() throws IOException {
+        final int count = (int) (BatchReader.MIN_SPLIT * 8 / message(0, "\r").length());
+        final StringBuilder sb = new StringBuilder("FHS|^~\\&|SEND\rBHS|^~\\&|SEND\r");
+        for(int i = 0; i < count; ++i) {
+            sb.append(message(i, "\r"));
+            // blank lines here and there, wherever a split lands
+            if(i % 7 == 0)
+                sb.append("\r\r");
+        }
+        sb.append("BTS|").append(count).append("\rFTS|1\r");
+        final Path file = write(sb.toString());
+        final AtomicIntegerArray seen = new AtomicIntegerArray(count);
+        try (Stream<Message> stream = new BatchReader(file).parallelStream(false)) {
+            stream.forEach(msg -> {
+                final int i = Integer.parseInt(msg.value("MSH-10").substring(4));
+                assertMessage(i, msg);
+                seen.incrementAndGet(i);
+            });
+        }
+        for(int i = 0; i < count; ++i)
+            assertEquals("CTRL" + i, 1, seen.get(i));
+    }
+}
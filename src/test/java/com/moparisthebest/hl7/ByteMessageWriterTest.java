@@ -0,0 +1,147 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ByteMessageWriterTest {
+
+    private static final String MSH = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL1|P|2.5||||||";
+
+    private static String msg(final String charset) {
+        return MSH + charset + "\rPID|1||123||MÜLLER^JÖRG\rOBX|1|TX|NOTE||5 €";
+    }
+
+    private static byte[] frame(final byte[] b) {
+        final byte[] ret = new byte[b.length + 3];
+        ret[0] = 0x0B;
+        System.arraycopy(b, 0, ret, 1, b.length);
+        ret[b.length + 1] = 0x1C;
+        ret[b.length + 2] = '\r';
+        return ret;
+    }
+
+    private static byte[] written(final Message msg, final Encoding enc) throws IOException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        msg.writeTo(os, enc);
+        return os.toByteArray();
+    }
+
+    private static byte[] written(final Message msg) throws IOException {
+        return written(msg, msg.getEncoding());
+    }
+
+    @Test
+    public void utf8RoundTrip() throws IOException, ParseException {
+        final byte[] bytes = msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8);
+        for(final boolean lazy : new boolean[]{true, false}) {
+            // MSH-18 wins over what the bytes were assumed to be
+            final Message msg = new Message(new ByteChars(bytes, StandardCharsets.ISO_8859_1), lazy);
+            assertEquals(StandardCharsets.UTF_8, msg.getEncoding().charset);
+            assertEquals("MÜLLER", msg.value("PID-5.1"));
+            assertEquals("5 €", msg.value("OBX-5"));
+            assertArrayEquals(frame(bytes), written(msg));
+        }
+    }
+
+    @Test
+    public void iso8859RoundTrip() throws IOException, ParseException {
+        for(final String name : new String[]{"8859/1", "8859/15"}) {
+            final Charset charset = Encoding.charset(name);
+            final String text = name.equals("8859/1") ? msg(name).replace("€", "EUR") : msg(name);
+            final byte[] bytes = text.getBytes(charset);
+            final Message msg = new Message(bytes, StandardCharsets.UTF_8);
+            assertEquals(charset, msg.getEncoding().charset);
+            assertEquals("JÖRG", msg.value("PID-5.2"));
+            assertEquals(name.equals("8859/1") ? "5 EUR" : "5 €", msg.value("OBX-5"));
+            assertArrayEquals(frame(bytes), written(msg));
+        }
+    }
+
+    @Test
+    public void changedAfterParsingBytes() throws IOException, ParseException {
+        final byte[] bytes = msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8);
+        final Message msg = new Message(bytes, null);
+        msg.getLine("PID").field(5).component(2).value("JÜRGEN|JR");
+        final byte[] expected = msg("UNICODE UTF-8").replace("JÖRG", "JÜRGEN\\F\\JR").getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(frame(expected), written(msg));
+        assertEquals("JÜRGEN|JR", new Message(expected, null).value("PID-5.2"));
+    }
+
+    @Test
+    public void sameCharsetCopiesBytesAsIs() throws IOException, ParseException {
+        // not valid UTF-8, decoding and encoding again would turn it into U+FFFD
+        final byte[] utf8 = msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8);
+        final byte[] bytes = Arrays.copyOf(utf8, utf8.length + 1);
+        bytes[bytes.length - 1] = (byte) 0xFF;
+        final Message msg = new Message(bytes, null);
+        assertArrayEquals(frame(bytes), written(msg));
+    }
+
+    @Test
+    public void otherCharsetReEncodes() throws IOException, ParseException {
+        final Message msg = new Message(msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8), null);
+        final Encoding latin1 = msg.getEncoding().withCharset(StandardCharsets.ISO_8859_1);
+        // € isn't in ISO-8859-1
+        assertArrayEquals(frame(msg("UNICODE UTF-8").replace("€", "?").getBytes(StandardCharsets.ISO_8859_1)), written(msg, latin1));
+    }
+
+    @Test
+    public void noCharsetWritesAscii() throws IOException, ParseException {
+        final Message msg = new Message("MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL1|P|2.5\rPID|1||123||MÜLLER");
+        assertEquals(null, msg.getEncoding().charset);
+        assertArrayEquals(frame(("MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL1|P|2.5\rPID|1||123||M?LLER").getBytes(StandardCharsets.US_ASCII)), written(msg));
+    }
+
+    @Test
+    public void growsWithoutOutputStream() throws ParseException {
+        final ByteMessageWriter w = new ByteMessageWriter(null, 4);
+        final Message msg = new Message(msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8), null);
+        w.writeFrame(msg, msg.getEncoding());
+        final ByteBuffer bb = w.toByteBuffer();
+        final byte[] b = new byte[bb.remaining()];
+        bb.get(b);
+        assertArrayEquals(frame(msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8)), b);
+        w.reset();
+        assertEquals(0, w.size());
+    }
+
+    @Test
+    public void smallBufferFlushesToStream() throws IOException, ParseException {
+        final ByteArrayOutputStream os = new ByteArrayOutputStream();
+        final ByteMessageWriter w = new ByteMessageWriter(os, 8);
+        final byte[] bytes = msg("UNICODE UTF-8").getBytes(StandardCharsets.UTF_8);
+        new Message(bytes, null).writeTo(w, new Message(bytes, null).getEncoding());
+        assertArrayEquals(frame(bytes), os.toByteArray());
+        assertEquals(os.size(), w.getBytesWritten());
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientTest {
+
+    private static final String MSG = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL%d|P|2.5\rPID|1||123";
+
+    private ServerSocket ss;
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    @After
+    public void close() throws IOException {
+        if(ss != null)
+            ss.close();
+    }
+
+    /**
+     * Accepts connections one at a time, echoing back up to replies messages on each before closing it, or never
+     * replying at all if replies is 0
+     */
+    private InetSocketAddress serve(final int replies) throws IOException {
+        ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final Thread t = new Thread(() -> {
+            while(!ss.isClosed()) {
+                try (Socket s = ss.accept()) {
+                    accepted.incrementAndGet();
+                    final InputStream is = s.getInputStream();
+                    final OutputStream os = s.getOutputStream();
+                    final FrameDecoder decoder = new FrameDecoder();
+                    if(replies == 0) {
+                        // hold it open until the client gives up
+                        while(is.read() != -1) {
+                        }
+                        continue;
+                    }
+                    for(int i = 0; i < replies; ++i) {
+                        final Message msg = decoder.read(is);
+                        if(msg == null)
+                            break;
+                        msg.writeTo(os);
+                        os.flush();
+                    }
+                } catch (Exception e) {
+                    // closed
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        return new InetSocketAddress(ss.getInetAddress(), ss.getLocalPort());
+    }
+
+    private static Message msg(final int i) throws Exception {
+        return new Message(String.format(MSG, i));
+    }
+
+    private static Throwable failure(final CompletableFuture<Message> f) throws Exception {
+        try {
+            f.get(10, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            return e.getCause();
+        }
+        fail("expected failure");
+        return null;
+    }
+
+    @Test
+    public void sendAndReceive() throws Exception {
+        try (Client client = new Client(serve(10), Message.DEFAULT_ENCODING).setPool(1, 4)) {
+            final List<CompletableFuture<Message>> futures = new ArrayList<>();
+            for(int i = 0; i < 5; ++i)
+                futures.add(client.send(msg(i)));
+            for(int i = 0; i < futures.size(); ++i)
+                assertEquals("CTRL" + i, futures.get(i).get(10, TimeUnit.SECONDS).value("MSH-10"));
+            assertEquals(1, accepted.get());
+        }
+    }
+
+    @Test
+    public void readTimeout() throws Exception {
+        try (Client client = new Client(serve(0), Message.DEFAULT_ENCODING).setTimeouts(1000, 200)) {
+            final long start = System.nanoTime();
+            final Throwable e = failure(client.send(msg(1)));
+            assertTrue(e.toString(), e instanceof SocketTimeoutException);
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+        }
+    }
+
+    @Test
+    public void reconnectAfterServerCloses() throws Exception {
+        try (Client client = new Client(serve(1), Message.DEFAULT_ENCODING).setBackoff(0, 0)) {
+            assertEquals("CTRL1", client.send(msg(1)).get(10, TimeUnit.SECONDS).value("MSH-10"));
+            // nothing is resent, so one sent before the client notices the close can fail, but it must recover
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while(true) {
+                try {
+                    assertEquals("CTRL2", client.send(msg(2)).get(10, TimeUnit.SECONDS).value("MSH-10"));
+                    break;
+                } catch (ExecutionException e) {
+                    if(System.nanoTime() - deadline > 0)
+                        throw e;
+                    Thread.sleep(20);
+                }
+            }
+            assertTrue(accepted.get() >= 2);
+        }
+    }
+
+    @Test
+    public void backoffAfterConnectFails() throws Exception {
+        // grab a port nothing listens on
+        final InetSocketAddress address;
+        try (ServerSocket unused = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            address = new InetSocketAddress(unused.getInetAddress(), unused.getLocalPort());
+        }
+        try (Client client = new Client(address, Message.DEFAULT_ENCODING).setTimeouts(1000, 1000).setBackoff(60000, 60000)) {
+            assertTrue(failure(client.send(msg(1))) instanceof IOException);
+            final Throwable e = failure(client.send(msg(2)));
+            assertTrue(e.toString(), e instanceof ConnectException && e.getMessage().startsWith("not connecting"));
+        }
+    }
+
+    @Test
+    public void responseWhileWriteBlocked() throws Exception {
+        ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final CountDownLatch first = new CountDownLatch(1), reply = new CountDownLatch(1);
+        final Thread t = new Thread(() -> {
+            try (Socket s = ss.accept()) {
+                final Message msg = new FrameDecoder().read(s.getInputStream());
+                first.countDown();
+                // stops reading, so the next write fills the socket buffers and blocks
+                reply.await();
+                msg.writeTo(s.getOutputStream());
+                s.getOutputStream().flush();
+                while(!ss.isClosed())
+                    Thread.sleep(20);
+            } catch (Exception e) {
+                // closed
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        final StringBuilder big = new StringBuilder(String.format(MSG, 2));
+        for(int i = 0; i < 1 << 24; ++i)
+            big.append('x');
+        final Message bigMsg = new Message(big.toString());
+        final Client client = new Client(new InetSocketAddress(ss.getInetAddress(), ss.getLocalPort()), Message.DEFAULT_ENCODING).setPool(1, 2);
+        try {
+            final CompletableFuture<Message> answered = client.send(msg(1));
+            assertTrue(first.await(10, TimeUnit.SECONDS));
+            final Thread sending = new Thread(() -> client.send(bigMsg));
+            sending.setDaemon(true);
+            sending.start();
+            // give it time to block
+            Thread.sleep(200);
+            reply.countDown();
+            assertEquals("CTRL1", answered.get(10, TimeUnit.SECONDS).value("MSH-10"));
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void closedClient() throws Exception {
+        final Client client = new Client(serve(10), Message.DEFAULT_ENCODING);
+        client.close();
+        assertEquals("client is closed", failure(client.send(msg(1))).getMessage());
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.Year;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DtmTest {
+
+    // always signs the offset, even +0000
+    private static final DateTimeFormatter HL7 = DateTimeFormatter.ofPattern("yyyyMMddHHmmss.SSSxx", Locale.US).withZone(ZoneId.systemDefault());
+
+    @Test
+    public void eachPrecision() {
+        assertEquals(Year.of(2016), Dtm.parse("2016"));
+        assertEquals(YearMonth.of(2016, 7), Dtm.parse("201607"));
+        assertEquals(LocalDate.of(2016, 7, 22), Dtm.parse("20160722"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 0), Dtm.parse("2016072215"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 38), Dtm.parse("201607221538"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 38, 49), Dtm.parse("20160722153849"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 38, 49, 800_000_000), Dtm.parse("20160722153849.8"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 38, 49, 854_100_000), Dtm.parse("20160722153849.8541"));
+        assertEquals(OffsetDateTime.of(2016, 7, 22, 15, 38, 49, 854_000_000, ZoneOffset.ofHours(-4)), Dtm.parse("20160722153849.854-0400"));
+        assertEquals(OffsetDateTime.of(2016, 7, 22, 15, 38, 0, 0, ZoneOffset.ofHoursMinutes(5, 30)), Dtm.parse("201607221538+0530"));
+    }
+
+    @Test
+    public void typedParsers() {
+        assertEquals(LocalDate.of(2016, 7, 22), Dtm.parseLocalDate("20160722153849-0400"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 0, 0), Dtm.parseLocalDateTime("20160722"));
+        // the offset is ignored, the time is as written
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 38, 49), Dtm.parseLocalDateTime("20160722153849-0400"));
+        assertEquals(Instant.parse("2016-07-22T19:38:49.854Z"), Dtm.parseInstant("20160722153849.854-0400"));
+        assertEquals(LocalDateTime.of(2016, 7, 22, 15, 38).atZone(ZoneId.systemDefault()).toInstant(), Dtm.parseInstant("201607221538"));
+        // not precise enough
+        assertNull(Dtm.parseLocalDate("201607"));
+        assertNull(Dtm.parseLocalDateTime("2016"));
+        assertNull(Dtm.parseInstant("201607"));
+    }
+
+    @Test
+    public void leapDays() {
+        assertEquals(LocalDate.of(2016, 2, 29), Dtm.parse("20160229"));
+        assertEquals(LocalDate.of(2000, 2, 29), Dtm.parse("20000229"));
+        assertNull(Dtm.parse("20150229"));
+        assertNull(Dtm.parse("19000229"));
+    }
+
+    @Test
+    public void invalidIsNull() {
+        for(final String s : new String[]{
+                "", "201", "20a6", "201613", "201600", "20160230", "20160431", "20160700",
+                "2016072224", "201607221560", "20160722153860", "20160722153849.", "20160722153849.x",
+                "2016072", "201607221", "20160722153849-04", "20160722153849-0460", "20160722153849+1900",
+                "20160722153849 0400", "20160722153849-0400x", "20160722153849.854Z",
+        }) {
+            assertNull(s, Dtm.parse(s));
+            assertNull(s, Dtm.parseInstant(s));
+        }
+    }
+
+    @Test
+    public void formatDates() {
+        assertEquals("20160722", Dtm.format(LocalDate.of(2016, 7, 22)));
+        assertEquals("00050102", Dtm.format(LocalDate.of(5, 1, 2)));
+        assertEquals("201607220905", Dtm.format(LocalDateTime.of(2016, 7, 22, 9, 5, 49)));
+        // years that don't fit in 4 digits fall back to the formatters
+        assertEquals(SubComponent.LOCAL_DATE.format(LocalDate.of(12016, 7, 22)), Dtm.format(LocalDate.of(12016, 7, 22)));
+    }
+
+    @Test
+    public void formatInstantRoundTrips() {
+        final Instant instant = Instant.parse("2016-07-22T19:38:49.054Z");
+        final String s = Dtm.format(instant);
+        assertEquals(HL7.format(instant), s);
+        assertEquals(instant, Dtm.parseInstant(s));
+    }
+
+    @Test
+    public void formatAcrossSecondBoundary() {
+        // each of these lands in the per second cache and has to replace what the one before left there
+        final Instant[] instants = {
+                Instant.parse("2016-07-22T19:38:49.000Z"),
+                Instant.parse("2016-07-22T19:38:49.999Z"),
+                Instant.parse("2016-07-22T19:38:50.000Z"),
+                Instant.parse("2016-07-22T19:38:50.001Z"),
+                Instant.parse("2016-07-22T19:38:49.500Z"),
+                Instant.parse("2016-12-31T23:59:59.999Z"),
+                Instant.parse("2017-01-01T00:00:00.000Z"),
+        };
+        final byte[] dest = new byte[25];
+        for(final Instant instant : instants) {
+            final String expected = HL7.format(instant);
+            assertEquals(expected, Dtm.format(instant));
+            assertTrue(Dtm.format(instant, dest, 1));
+            assertEquals(expected, new String(dest, 1, 23, StandardCharsets.US_ASCII));
+            assertEquals(instant, Dtm.parseInstant(Dtm.format(instant)));
+        }
+    }
+
+    @Test
+    public void bytesFormatRefusesBigYears() {
+        final byte[] dest = new byte[23];
+        assertFalse(Dtm.format(LocalDateTime.of(12016, 1, 1, 0, 0).atZone(ZoneId.systemDefault()).toInstant(), dest, 0));
+        assertEquals(0, dest[0]);
+    }
+}
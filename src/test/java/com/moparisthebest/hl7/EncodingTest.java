@@ -0,0 +1,84 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class EncodingTest {
+
+    private static final Encoding enc = Message.DEFAULT_ENCODING;
+
+    @Test
+    public void plainValuesAreNotCopied() {
+        final String s = "nothing to escape here";
+        assertSame(s, enc.encode(s));
+        assertSame(s, enc.decode(s));
+    }
+
+    @Test
+    public void delimiterEscapesRoundTrip() {
+        final String s = "a|b^c&d~e\\f";
+        assertEquals("a\\F\\b\\S\\c\\T\\d\\R\\e\\E\\f", enc.encode(s));
+        assertEquals(s, enc.decode(enc.encode(s)));
+    }
+
+    @Test
+    public void controlCharactersAreHexEscaped() {
+        assertEquals("one\\X0D\\two\\X0A\\three\\X09\\\\X0B\\\\X1C\\", enc.encode("one\rtwo\nthree\t\u000B\u001C"));
+        assertEquals("one\rtwo", enc.decode("one\\X0D\\two"));
+        assertEquals("\\X0D\\", enc.encode(enc.decode("\\X0D\\")));
+    }
+
+    @Test
+    public void formattingEscapesPassThrough() {
+        final String s = "line one\\.br\\line two\\H\\bold\\N\\";
+        assertEquals(s, enc.decode(s));
+        assertEquals(s, enc.encode(s));
+    }
+
+    @Test
+    public void segmentDelimiterInValueDoesNotSplitMessage() throws ParseException {
+        final Message msg = new Message("MSH|^~\\&|A|B|C|D|20160101||ADT^A01|1|P|2.5\rPID|1");
+        msg.line("PID").field(5).value("first\rsecond|third");
+        final String encoded = msg.encode();
+        assertEquals(2, encoded.split("\r").length);
+        final Message parsed = new Message(encoded);
+        assertEquals(2, parsed.getLines().size());
+        assertEquals("first\rsecond|third", parsed.getLine("PID").getField(5).value());
+    }
+
+    @Test
+    public void otherSegmentDelimiterInRawTextIsEscaped() throws ParseException {
+        final String newlines = "MSH|^~\\&|A|B|C|D|20160101||ADT^A01|1|P|2.5\nPID|1||X\rY\n";
+        for(final boolean lazy : new boolean[]{true, false}) {
+            final String encoded = new Message(newlines, lazy).encode(Message.DEFAULT_ENCODING);
+            assertEquals("MSH|^~\\&|A|B|C|D|20160101||ADT^A01|1|P|2.5\rPID|1||X\\X0D\\Y", encoded);
+            assertEquals("X\rY", new Message(encoded).value("PID-3"));
+        }
+        assertFalse(Message.NEWLINE_ENCODING.compatible(Message.DEFAULT_ENCODING));
+    }
+}
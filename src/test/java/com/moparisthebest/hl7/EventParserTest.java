@@ -0,0 +1,196 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class EventParserTest {
+
+    private static final String MSG = "MSH|^~\\&|A\rPID|1||1^2&3~4";
+
+    /**
+     * Records every event as its indices, text and start position
+     */
+    private static class Recorder implements MessageHandler {
+
+        final List<String> events = new ArrayList<>();
+
+        private void add(final String event, final CharSequence s, final int start, final int end) {
+            events.add(event + " " + s.subSequence(start, end) + "@" + start);
+        }
+
+        @Override
+        public void startMessage(final Encoding enc) {
+            events.add("message");
+        }
+
+        @Override
+        public boolean startSegment(final int segmentIndex, final CharSequence s, final int start, final int end) {
+            add("segment " + segmentIndex, s, start, end);
+            return true;
+        }
+
+        @Override
+        public boolean field(final int fieldIndex, final CharSequence s, final int start, final int end) {
+            add("field " + fieldIndex, s, start, end);
+            return true;
+        }
+
+        @Override
+        public boolean repetition(final int fieldIndex, final int repetitionIndex, final CharSequence s, final int start, final int end) {
+            add("repetition " + fieldIndex + "." + repetitionIndex, s, start, end);
+            return true;
+        }
+
+        @Override
+        public boolean component(final int fieldIndex, final int repetitionIndex, final int componentIndex, final CharSequence s, final int start, final int end) {
+            add("component " + fieldIndex + "." + repetitionIndex + "." + componentIndex, s, start, end);
+            return true;
+        }
+
+        @Override
+        public void subComponent(final int fieldIndex, final int repetitionIndex, final int componentIndex, final int subComponentIndex, final CharSequence s, final int start, final int end) {
+            add("subComponent " + fieldIndex + "." + repetitionIndex + "." + componentIndex + "." + subComponentIndex, s, start, end);
+        }
+
+        @Override
+        public void endSegment(final int segmentIndex) {
+            events.add("end " + segmentIndex);
+        }
+
+        @Override
+        public void endMessage() {
+            events.add("end");
+        }
+    }
+
+    @Test
+    public void events() throws ParseException {
+        final Recorder recorder = new Recorder();
+        assertSame(Message.DEFAULT_ENCODING.segmentDelimiter, EventParser.parse(MSG, recorder).segmentDelimiter);
+        assertEquals(Arrays.asList(
+                "message",
+                "segment 0 MSH|^~\\&|A@0",
+                // MSH-1 and MSH-2 are never split
+                "field 0 MSH@0",
+                "field 1 |@3",
+                "field 2 ^~\\&@4",
+                "field 3 A@9",
+                "repetition 3.1 A@9",
+                "component 3.1.1 A@9",
+                "subComponent 3.1.1.1 A@9",
+                "end 0",
+                "segment 1 PID|1||1^2&3~4@11",
+                "field 0 PID@11",
+                "field 1 1@15",
+                "repetition 1.1 1@15",
+                "component 1.1.1 1@15",
+                "subComponent 1.1.1.1 1@15",
+                "field 2 @17",
+                "repetition 2.1 @17",
+                "component 2.1.1 @17",
+                "subComponent 2.1.1.1 @17",
+                "field 3 1^2&3~4@18",
+                "repetition 3.1 1^2&3@18",
+                "component 3.1.1 1@18",
+                "subComponent 3.1.1.1 1@18",
+                "component 3.1.2 2&3@20",
+                "subComponent 3.1.2.1 2@20",
+                "subComponent 3.1.2.2 3@22",
+                "repetition 3.2 4@24",
+                "component 3.2.1 4@24",
+                "subComponent 3.2.1.1 4@24",
+                "end 1",
+                "end"
+        ), recorder.events);
+    }
+
+    @Test
+    public void falseSkipsDescending() throws ParseException {
+        final Recorder recorder = new Recorder() {
+            @Override
+            public boolean startSegment(final int segmentIndex, final CharSequence s, final int start, final int end) {
+                super.startSegment(segmentIndex, s, start, end);
+                return segmentIndex != 0;
+            }
+
+            @Override
+            public boolean field(final int fieldIndex, final CharSequence s, final int start, final int end) {
+                super.field(fieldIndex, s, start, end);
+                return fieldIndex == 3;
+            }
+
+            @Override
+            public boolean repetition(final int fieldIndex, final int repetitionIndex, final CharSequence s, final int start, final int end) {
+                super.repetition(fieldIndex, repetitionIndex, s, start, end);
+                return repetitionIndex == 2;
+            }
+        };
+        EventParser.parse(MSG, recorder);
+        assertEquals(Arrays.asList(
+                "message",
+                "segment 0 MSH|^~\\&|A@0",
+                "end 0",
+                "segment 1 PID|1||1^2&3~4@11",
+                "field 0 PID@11",
+                "field 1 1@15",
+                "field 2 @17",
+                "field 3 1^2&3~4@18",
+                "repetition 3.1 1^2&3@18",
+                "repetition 3.2 4@24",
+                "component 3.2.1 4@24",
+                "subComponent 3.2.1.1 4@24",
+                "end 1",
+                "end"
+        ), recorder.events);
+    }
+
+    @Test
+    public void matchesMessage() throws ParseException {
+        final String[] value = new String[1];
+        EventParser.parse(MessageTest.ADT, new MessageHandler() {
+            private boolean pid;
+
+            @Override
+            public boolean field(final int fieldIndex, final CharSequence s, final int start, final int end) {
+                if(fieldIndex == 0)
+                    pid = "PID".equals(s.subSequence(start, end).toString());
+                return pid;
+            }
+
+            @Override
+            public void subComponent(final int fieldIndex, final int repetitionIndex, final int componentIndex, final int subComponentIndex, final CharSequence s, final int start, final int end) {
+                if(fieldIndex == 3 && repetitionIndex == 2 && componentIndex == 1 && subComponentIndex == 1)
+                    value[0] = Message.DEFAULT_ENCODING.decode(s.subSequence(start, end).toString());
+            }
+        });
+        assertEquals("456", value[0]);
+        assertEquals(new Message(MessageTest.ADT).value("PID-3[2].1"), value[0]);
+    }
+}
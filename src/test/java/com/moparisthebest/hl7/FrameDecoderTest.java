@@ -0,0 +1,139 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameDecoderTest {
+
+    private static final String ONE = "MSH|^~\\&|A|B|C|D|20160101||ADT^A01|1|P|2.5\rPID|1||123",
+            TWO = "MSH|^~\\&|A|B|C|D|20160101||ADT^A01|2|P|2.5\rPID|1||456";
+
+    private static byte[] frames(final String... messages) {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        for(final String msg : messages) {
+            bos.write(0x0B);
+            final byte[] bytes = msg.getBytes(StandardCharsets.ISO_8859_1);
+            bos.write(bytes, 0, bytes.length);
+            bos.write(0x1C);
+            bos.write('\r');
+        }
+        return bos.toByteArray();
+    }
+
+    /**
+     * Never hands out more than chunk bytes per read, like a slow socket
+     */
+    private static InputStream trickle(final byte[] bytes, final int chunk) {
+        return new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                return super.read(b, off, Math.min(len, chunk));
+            }
+        };
+    }
+
+    @Test
+    public void framesSplitAcrossReads() throws IOException, ParseException {
+        for(final int chunk : new int[]{1, 2, 3, 7, 64}) {
+            final FrameDecoder decoder = new FrameDecoder(Message.DEFAULT_ENCODING, 16);
+            final InputStream is = trickle(frames(ONE, TWO), chunk);
+            assertEquals(ONE, decoder.readFrame(is).toString());
+            assertEquals(TWO, decoder.readFrame(is).toString());
+            assertNull(decoder.readFrame(is));
+            assertFalse(decoder.hasPartialFrame());
+        }
+    }
+
+    @Test
+    public void manyFramesInOneRead() throws IOException, ParseException {
+        final FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.fill(new ByteArrayInputStream(frames(ONE, TWO, ONE))) > 0);
+        assertEquals(ONE, decoder.nextFrame().toString());
+        assertEquals(TWO, decoder.nextFrame().toString());
+        assertEquals(ONE, decoder.nextFrame().toString());
+        assertNull(decoder.nextFrame());
+    }
+
+    @Test
+    public void partialFrameAtEndOfStream() throws IOException, ParseException {
+        final byte[] bytes = frames(ONE, TWO);
+        final FrameDecoder decoder = new FrameDecoder();
+        final InputStream is = new ByteArrayInputStream(bytes, 0, bytes.length - 5);
+        assertEquals(ONE, decoder.readFrame(is).toString());
+        assertNull(decoder.readFrame(is));
+        assertTrue(decoder.hasPartialFrame());
+    }
+
+    @Test
+    public void frameOfExactlyMaxSize() throws IOException, ParseException {
+        final FrameDecoder decoder = new FrameDecoder(Message.DEFAULT_ENCODING, 8, ONE.length());
+        assertEquals(ONE, decoder.readFrame(trickle(frames(ONE), 5)).toString());
+    }
+
+    @Test
+    public void frameOverMaxSize() throws ParseException {
+        final FrameDecoder decoder = new FrameDecoder(Message.DEFAULT_ENCODING, 8, ONE.length() - 1);
+        try {
+            decoder.readFrame(trickle(frames(ONE), 5));
+            fail("frame bigger than maxFrameSize was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void neverEndingFrameStopsGrowing() throws ParseException {
+        final FrameDecoder decoder = new FrameDecoder(Message.DEFAULT_ENCODING, 8, 1024);
+        final InputStream endless = new InputStream() {
+            @Override
+            public int read() {
+                return 'x';
+            }
+        };
+        try {
+            decoder.readFrame(endless);
+            fail("frame bigger than maxFrameSize was read");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = ParseException.class)
+    public void missingSegmentDelimiterAfterEndBlock() throws IOException, ParseException {
+        final byte[] bytes = frames(ONE);
+        bytes[bytes.length - 1] = 'x';
+        new FrameDecoder().readFrame(new ByteArrayInputStream(bytes));
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalTest {
+
+    // small enough that a few frames fill a segment
+    private static final int SEGMENT_SIZE = 1024;
+    // Instant.MAX doesn't fit in epoch millis
+    private static final Instant END = Instant.parse("3000-01-01T00:00:00Z");
+
+    @Rule
+    public final TemporaryFolder tmp = new TemporaryFolder();
+
+    private static ByteChars frame(final int i) {
+        return new ByteChars(("MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL" + i + "|P|2.5\rPID|1||MRN" + i)
+                .getBytes(StandardCharsets.ISO_8859_1), null);
+    }
+
+    private static List<Journal.Entry> readAll(final Journal journal) {
+        final List<Journal.Entry> ret = new ArrayList<>();
+        journal.read(Instant.EPOCH, END, ret::add);
+        return ret;
+    }
+
+    private static void assertEntries(final int count, final List<Journal.Entry> entries) {
+        assertEquals(count, entries.size());
+        for(int i = 0; i < count; ++i) {
+            final Journal.Entry e = entries.get(i);
+            assertEquals(i, e.getSequence());
+            assertEquals("CTRL" + i, e.getControlId());
+            assertEquals(frame(i).toString(), e.getFrame().toString());
+            if(i > 0)
+                assertTrue(!e.getTimestamp().isBefore(entries.get(i - 1).getTimestamp()));
+        }
+    }
+
+    @Test
+    public void appendAndRead() throws IOException {
+        final Path dir = tmp.newFolder().toPath();
+        try (Journal journal = new Journal(dir, SEGMENT_SIZE, null)) {
+            for(int i = 0; i < 30; ++i)
+                assertEquals(i, journal.append(frame(i), new InetSocketAddress("127.0.0.1", 2575)));
+            journal.sync(29);
+            final List<Journal.Entry> entries = readAll(journal);
+            assertEntries(30, entries);
+            assertEquals(new InetSocketAddress("127.0.0.1", 2575).toString(), entries.get(0).getRemote());
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            // rolled over into more segments
+            assertTrue(files.filter(p -> p.toString().endsWith(".journal")).count() > 1);
+        }
+    }
+
+    @Test
+    public void reopenCarriesOn() throws IOException {
+        final Path dir = tmp.newFolder().toPath();
+        try (Journal journal = new Journal(dir, SEGMENT_SIZE, null)) {
+            for(int i = 0; i < 20; ++i)
+                journal.append(frame(i), null);
+        }
+        try (Journal journal = new Journal(dir, SEGMENT_SIZE, null)) {
+            assertEquals(20, journal.getNextSequence());
+            for(int i = 20; i < 25; ++i)
+                assertEquals(i, journal.append(frame(i), "remote", Journal.controlId(frame(i))));
+            final List<Journal.Entry> entries = readAll(journal);
+            assertEntries(25, entries);
+            assertNull(entries.get(0).getRemote());
+            assertEquals("remote", entries.get(24).getRemote());
+        }
+    }
+
+    @Test
+    public void readTimeRange() throws IOException {
+        try (Journal journal = new Journal(tmp.newFolder().toPath(), SEGMENT_SIZE, null)) {
+            for(int i = 0; i < 20; ++i)
+                journal.append(frame(i), null);
+            final List<Journal.Entry> entries = readAll(journal);
+            final Instant last = entries.get(19).getTimestamp();
+            assertEquals(0, journal.read(last.plusMillis(1), END, e -> {}));
+            final List<Journal.Entry> tail = new ArrayList<>();
+            journal.read(last, END, tail::add);
+            assertTrue(!tail.isEmpty());
+            assertEquals(19, tail.get(tail.size() - 1).getSequence());
+            for(final Journal.Entry e : tail)
+                assertEquals(last, e.getTimestamp());
+        }
+    }
+
+    @Test
+    public void replay() throws IOException {
+        final Path dir = tmp.newFolder().toPath();
+        try (Journal journal = new Journal(dir, SEGMENT_SIZE, null)) {
+            for(int i = 0; i < 10; ++i)
+                journal.append(frame(i), null);
+            journal.append(new ByteChars("not hl7".getBytes(StandardCharsets.ISO_8859_1), null), null);
+        }
+        final List<String> processed = new ArrayList<>();
+        final List<Throwable> errors = new ArrayList<>();
+        final MessageProcessor processor = new MessageProcessor() {
+            @Override
+            public Message process(final Message msg) {
+                processed.add(msg.value("MSH-10") + "/" + msg.value("PID-3"));
+                return null;
+            }
+
+            @Override
+            public void handle(final Throwable e, final Server s) {
+                assertNull(s);
+                errors.add(e);
+            }
+        };
+        try (Journal journal = new Journal(dir, SEGMENT_SIZE, null)) {
+            assertEquals(10, journal.replay(Instant.EPOCH, END, processor));
+        }
+        assertEquals(10, processed.size());
+        for(int i = 0; i < 10; ++i)
+            assertEquals("CTRL" + i + "/MRN" + i, processed.get(i));
+        assertEquals(1, errors.size());
+    }
+
+    @Test
+    public void pipelinedServerJournalsInArrivalOrder() throws Exception {
+        final int count = 16;
+        final ExecutorService workers = Executors.newFixedThreadPool(4);
+        final Path dir = tmp.newFolder().toPath();
+        try (Journal journal = new Journal(dir, SEGMENT_SIZE, null)) {
+            // earlier frames take longer, so the workers finish them out of order
+            final Server server = new Server(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), (AckProcessor) msg -> {
+                final int i = Integer.parseInt(msg.value("MSH-10").substring(4));
+                try {
+                    Thread.sleep((8 - i % 8) * 5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return AckTemplate.Code.AA;
+            }).setPipelined(workers, 8).setJournal(journal);
+            final Thread accepting = new Thread(server);
+            accepting.setDaemon(true);
+            accepting.setUncaughtExceptionHandler((t, e) -> {
+            });
+            accepting.start();
+            try (Socket s = new Socket(server.ss.getInetAddress(), server.ss.getLocalPort())) {
+                s.setSoTimeout(5000);
+                final OutputStream os = s.getOutputStream();
+                for(int i = 0; i < count; ++i)
+                    new Message(frame(i).toString()).writeTo(os);
+                os.flush();
+                final FrameDecoder decoder = new FrameDecoder();
+                for(int i = 0; i < count; ++i)
+                    assertEquals("CTRL" + i, decoder.read(s.getInputStream()).value("MSA-2"));
+            } finally {
+                server.close();
+                workers.shutdown();
+                accepting.join(5000);
+            }
+            assertEntries(count, readAll(journal));
+        }
+    }
+
+    @Test
+    public void controlId() {
+        assertEquals("CTRL7", Journal.controlId(frame(7)));
+        assertNull(Journal.controlId("PID|1"));
+        assertNull(Journal.controlId("MSH|^~\\&|SEND\rPID|1|||||||||x"));
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    // highest value in the bucket starting at a power of 2, buckets are 1/8th of that power wide
+    private static long bucketEnd(final int exp) {
+        return (1L << exp) + (1L << (exp - 3)) - 1;
+    }
+
+    /**
+     * @return what percentile(0.5) says about value, with a much larger value recorded so max doesn't clamp it
+     */
+    private static long bucketOf(final long value) {
+        final LatencyHistogram h = new LatencyHistogram();
+        h.record(value);
+        h.record(Long.MAX_VALUE);
+        return h.percentile(0.5);
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        for(long v = 0; v < 8; ++v)
+            assertEquals(v, bucketOf(v));
+    }
+
+    @Test
+    public void bucketBounds() {
+        for(int exp = 3; exp < 62; ++exp) {
+            final long start = 1L << exp, end = bucketEnd(exp);
+            assertEquals(end, bucketOf(start));
+            assertEquals(end, bucketOf(end));
+            // first value of the next bucket
+            assertEquals(end + (1L << (exp - 3)), bucketOf(end + 1));
+            // and never more than 1/8th off
+            assertTrue(bucketOf(start) - start < start / 8);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.percentile(0.5));
+        assertEquals(0, h.getMeanMicros(), 0);
+        for(int i = 1; i <= 1000; ++i)
+            h.record(i * 1000L);
+        assertEquals(1000, h.getCount());
+        assertEquals(500.5, h.getMeanMicros(), 0.001);
+        assertEquals(1000, h.getMaxMicros(), 0);
+        assertClose(500, h.getP50Micros());
+        assertClose(900, h.getP90Micros());
+        assertClose(990, h.getP99Micros());
+        // never above the max
+        assertEquals(1000, h.getP999Micros(), 0);
+        assertEquals(1_000_000, h.percentile(1));
+    }
+
+    private static void assertClose(final double expected, final double actual) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+
+    @Test
+    public void extremes() {
+        final LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertEquals(0, h.percentile(1));
+        h.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, h.percentile(1));
+        assertEquals(0, h.percentile(0.5));
+        h.reset();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.percentile(1));
+        assertEquals(0, h.getMaxMicros(), 0);
+    }
+
+    @Test
+    public void concurrentRecords() throws InterruptedException {
+        final LatencyHistogram h = new LatencyHistogram();
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        for(int t = 0; t < 4; ++t)
+            executor.execute(() -> {
+                for(int i = 0; i < 10_000; ++i)
+                    h.record(i);
+            });
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(40_000, h.getCount());
+        assertEquals(9_999, h.percentile(1));
+        assertClose(5_000, h.percentile(0.5));
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryServerMetricsTest {
+
+    private static final String MSG = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||%s|CTRL%d|P|2.5\rPID|1||123";
+
+    private static Message msg(final String type) throws ParseException {
+        return new Message(String.format(MSG, type, 1));
+    }
+
+    @Test
+    public void byType() throws ParseException {
+        final MemoryServerMetrics metrics = new MemoryServerMetrics();
+        final ServerMetrics.Connection conn = metrics.connectionOpened(null);
+        conn.parsed(msg("ADT^A01"), 1000);
+        conn.parsed(msg("ADT^A01"), 3000);
+        conn.processed(msg("ADT^A01"), 5000);
+        conn.parsed(msg("ADT^A08"), 1000);
+        conn.parsed(msg("ACK"), 1000);
+        final Map<String, MemoryServerMetrics.TypeStats> byType = metrics.getLatencyByType();
+        assertEquals("[ACK, ADT^A01, ADT^A08]", byType.keySet().toString());
+        assertEquals(2, byType.get("ADT^A01").getParseLatency().getCount());
+        assertEquals(2, byType.get("ADT^A01").getParseLatency().getMeanMicros(), 0);
+        assertEquals(1, byType.get("ADT^A01").getProcessLatency().getCount());
+        assertEquals(0, byType.get("ADT^A08").getProcessLatency().getCount());
+        assertEquals(4, metrics.getParseLatency().getCount());
+        assertEquals(1, metrics.getProcessLatency().getCount());
+    }
+
+    @Test
+    public void tooManyTypesAreLumpedTogether() throws ParseException {
+        final MemoryServerMetrics metrics = new MemoryServerMetrics();
+        final ServerMetrics.Connection conn = metrics.connectionOpened(null);
+        for(int i = 0; i < 300; ++i)
+            conn.parsed(msg(String.format("Z%03d^A01", i)), 1000);
+        Map<String, MemoryServerMetrics.TypeStats> byType = metrics.getLatencyByType();
+        assertEquals(257, byType.size());
+        assertTrue(byType.containsKey("Z255^A01"));
+        assertFalse(byType.containsKey("Z256^A01"));
+        assertEquals(44, byType.get("other").getParseLatency().getCount());
+        // types seen before the limit keep their own stats
+        conn.parsed(msg("Z000^A01"), 1000);
+        byType = metrics.getLatencyByType();
+        assertEquals(2, byType.get("Z000^A01").getParseLatency().getCount());
+        assertEquals(44, byType.get("other").getParseLatency().getCount());
+        assertEquals(301, metrics.getParseLatency().getCount());
+
+        metrics.reset();
+        assertTrue(metrics.getLatencyByType().isEmpty());
+        // room again after a reset
+        conn.parsed(msg("Z299^A01"), 1000);
+        assertEquals("[Z299^A01]", metrics.getLatencyByType().keySet().toString());
+    }
+
+    @Test
+    public void errorsAndRejections() {
+        final MemoryServerMetrics metrics = new MemoryServerMetrics();
+        metrics.connectionRejected(null);
+        final ServerMetrics.Connection conn = metrics.connectionOpened(null);
+        conn.failed(new IOException("boom"));
+        assertEquals(1, metrics.getConnectionsRejected());
+        assertEquals(1, metrics.getConnectionsOpened());
+        assertEquals(1, metrics.getErrors());
+        assertEquals("null: java.io.IOException: boom", metrics.getLastError());
+        assertEquals(1, metrics.getActiveConnections());
+        conn.closed();
+        assertEquals(0, metrics.getActiveConnections());
+        metrics.reset();
+        assertEquals(0, metrics.getErrors());
+        assertNull(metrics.getLastError());
+    }
+
+    @Test
+    public void countsThroughServer() throws Exception {
+        final List<MemoryServerMetrics.ConnectionStats> opened = new ArrayList<>();
+        final MemoryServerMetrics metrics = new MemoryServerMetrics() {
+            @Override
+            public ServerMetrics.Connection connectionOpened(final SocketAddress remote) {
+                final ServerMetrics.Connection ret = super.connectionOpened(remote);
+                synchronized (opened) {
+                    opened.add((MemoryServerMetrics.ConnectionStats) ret);
+                }
+                return ret;
+            }
+        };
+        final Server server = new Server(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), (AckProcessor) msg -> AckTemplate.Code.AA)
+                .setMetrics(metrics);
+        final Thread accepting = new Thread(server);
+        accepting.setDaemon(true);
+        accepting.setUncaughtExceptionHandler((t, e) -> {
+        });
+        accepting.start();
+        final int count = 5;
+        long sent = 0;
+        try {
+            for(int c = 0; c < 2; ++c)
+                try (Socket s = new Socket(server.ss.getInetAddress(), server.ss.getLocalPort())) {
+                    s.setSoTimeout(5000);
+                    final OutputStream os = s.getOutputStream();
+                    for(int i = 0; i < count; ++i) {
+                        final String text = String.format(MSG, c == 0 ? "ADT^A01" : "ORU^R01", i);
+                        sent += text.length();
+                        new Message(text).writeTo(os);
+                    }
+                    os.flush();
+                    final InputStream is = s.getInputStream();
+                    final FrameDecoder decoder = new FrameDecoder();
+                    for(int i = 0; i < count; ++i)
+                        assertEquals("AA", decoder.read(is).value("MSA-1"));
+                }
+            // the server notices each close on its own time
+            final long deadline = System.currentTimeMillis() + 5000;
+            while(metrics.getActiveConnections() > 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+        } finally {
+            server.close();
+            accepting.join(5000);
+        }
+        assertEquals(0, metrics.getActiveConnections());
+        assertEquals(2, metrics.getConnectionsOpened());
+        assertEquals(2, opened.size());
+        long bytesRead = 0, bytesWritten = 0;
+        for(final MemoryServerMetrics.ConnectionStats conn : opened) {
+            assertEquals(count, conn.getMessages());
+            assertTrue(conn.getBytesWritten() > 0);
+            assertTrue(conn.getMeanParseMicros() > 0);
+            bytesRead += conn.getBytesRead();
+            bytesWritten += conn.getBytesWritten();
+        }
+        assertEquals(2 * count, metrics.getMessages());
+        assertEquals(sent, bytesRead);
+        assertEquals(sent, metrics.getBytesRead());
+        assertEquals(bytesWritten, metrics.getBytesWritten());
+        assertEquals(2 * count, metrics.getParseLatency().getCount());
+        assertEquals(2 * count, metrics.getWriteLatency().getCount());
+        final Map<String, MemoryServerMetrics.TypeStats> byType = metrics.getLatencyByType();
+        assertEquals("[ADT^A01, ORU^R01]", byType.keySet().toString());
+        assertEquals(count, byType.get("ORU^R01").getParseLatency().getCount());
+        assertEquals(0, metrics.getErrors());
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class MessagePathTest {
+
+    private static final String ORU = "MSH|^~\\&|A|B|C|D|20160101||ORU^R01|1|P|2.5\r" +
+            "PID|1||123^^^MRN~456^^^SSN&SUB\r" +
+            "OBX|1|NM|HR||72\r" +
+            "OBX|2|NM|BP||120~80";
+
+    @Test
+    public void get() throws ParseException {
+        final Message msg = new Message(ORU);
+        assertEquals("ORU", msg.value("MSH-9"));
+        assertEquals("R01", msg.value("MSH-9.2"));
+        assertEquals("456", msg.value("PID-3[2].1"));
+        assertEquals("SUB", msg.value("PID-3[2].4.2"));
+        assertEquals("BP", msg.value("OBX[2]-3"));
+        assertEquals("", msg.value("OBX[3]-3"));
+        assertEquals("", msg.value("ZZZ-1"));
+    }
+
+    @Test
+    public void forEachVisitsEveryRepetition() throws ParseException {
+        final StringBuilder sb = new StringBuilder();
+        MessagePath.compile("OBX[*]-5[*]").forEach(new Message(ORU), sc -> sb.append(sc.value()).append(','));
+        assertEquals("72,120,80,", sb.toString());
+    }
+
+    @Test
+    public void set() throws ParseException {
+        final Message msg = new Message(ORU);
+        msg.value("PID-3[2].1", "789").value("PV1-3.2", "101");
+        assertEquals("789", msg.value("PID-3[2].1"));
+        assertEquals("101", msg.value("PV1-3.2"));
+        assertEquals(ORU.replace("456", "789") + "\rPV1|||^101", msg.encode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalid() {
+        MessagePath.compile("PID-x");
+    }
+
+    @Test
+    public void cacheIsBounded() {
+        final MessagePath cached = MessagePath.compile("MSH-10");
+        // more distinct paths than are ever cached, so at least the last ones are compiled every time
+        for(int i = 0; i < 2000; ++i)
+            MessagePath.compile("ZC" + i + "-1");
+        assertNotSame(MessagePath.compile("ZC2000-1"), MessagePath.compile("ZC2000-1"));
+        assertSame(cached, MessagePath.compile("MSH-10"));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class MessagePoolTest {
+
+    private static final String SMALL = "MSH|^~\\&|A|B|C|D|20160101120000||ADT^A08|CTRL1|P|2.5\rPID|1||111";
+    private static final String BIG = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01^ADT_A01|CTRL2|P|2.5|||AL|NE\r" +
+            "EVN|A01|20160101120000\r" +
+            "PID|1||222^^^MRN~333^^^SSN~444^^^DL||DOE^JOHN^Q~ALIAS^JACK||19700101|M|||1 MAIN ST^^TOWN^ST^12345||555-1234\r" +
+            "NK1|1|DOE^JANE|SPO\r" +
+            "NK1|2|DOE^JIM|SON\r" +
+            "PV1|1|I|WARD^101^A||||1234^DOCTOR^DAN\r" +
+            "OBX|1|TX|NOTE||first&part^second~third";
+    private static final String OTHER_ENCODING = "MSH#!@$%#A#B#C#D#20160101120000##ADT!A08#CTRL3#P#2.5\rPID#1##555!666";
+
+    private static final Projection[] PROJECTIONS = {Projection.NONE, Projection.ALL, Projection.of("PID-3, PID-5")};
+
+    @After
+    public void emptyPool() throws ParseException {
+        // don't leak pooled messages into other tests on this thread
+        for(int i = 0; i < MessagePool.MAX_PER_THREAD; ++i)
+            MessagePool.parse(SMALL);
+    }
+
+    private static void assertSameAsFresh(final String text, final Message msg) throws ParseException {
+        final Message fresh = new Message(text);
+        assertEquals(text, msg.encode());
+        assertEquals(fresh.getLines().size(), msg.getLines().size());
+        for(int i = 0; i < fresh.getLines().size(); ++i)
+            assertEquals(fresh.line(i).toString(), msg.line(i).toString());
+        assertEquals(fresh.value("MSH-3"), msg.value("MSH-3"));
+        assertEquals(fresh.value("MSH-9.2"), msg.value("MSH-9.2"));
+        assertEquals(fresh.value("PID-3"), msg.value("PID-3"));
+        assertEquals(fresh.value("PID-5.2"), msg.value("PID-5.2"));
+        assertEquals(fresh.value("PID-13"), msg.value("PID-13"));
+        assertEquals(fresh.getLine("PID").field(3).numRepetitions(), msg.getLine("PID").field(3).numRepetitions());
+    }
+
+    @Test
+    public void moreThenFewer() throws ParseException {
+        for(final Projection p : PROJECTIONS) {
+            final Message msg = new Message(SMALL, p);
+            for(final String text : new String[]{BIG, SMALL, BIG, BIG, SMALL, SMALL}) {
+                assertSame(msg, msg.reparse(text, p));
+                assertSameAsFresh(text, msg);
+            }
+        }
+    }
+
+    @Test
+    public void readEverythingBetweenReparses() throws ParseException {
+        for(final Projection p : PROJECTIONS) {
+            final Message msg = new Message(BIG, p);
+            for(final String text : new String[]{SMALL, BIG, SMALL, BIG}) {
+                // expand every line so the next reparse has whole trees to reuse or trim
+                for(final Line line : msg.getLines())
+                    line.field(1);
+                msg.reparse(text, p);
+                assertSameAsFresh(text, msg);
+            }
+        }
+    }
+
+    @Test
+    public void linesAreReused() throws ParseException {
+        final Message msg = new Message(BIG, Projection.ALL);
+        final List<Line> before = new ArrayList<>(msg.getLines());
+        msg.reparse(BIG, Projection.ALL);
+        for(int i = 0; i < before.size(); ++i)
+            assertSame(before.get(i), msg.line(i));
+    }
+
+    @Test
+    public void mshShiftIsUndone() throws ParseException {
+        final Message msg = new Message(SMALL, Projection.ALL);
+        final Field sendingApplication = msg.getLine("MSH").field(3), version = msg.getLine("MSH").field(12);
+        for(int i = 0; i < 5; ++i) {
+            // without undoing it every field would be reused one to the right of where it was
+            msg.reparse(SMALL, Projection.ALL);
+            assertSame(sendingApplication, msg.getLine("MSH").field(3));
+            assertSame(version, msg.getLine("MSH").field(12));
+            assertEquals(SMALL, msg.encode());
+            assertEquals("A", msg.value("MSH-3"));
+            assertEquals("|", msg.value("MSH-1"));
+            assertEquals("2.5", msg.value("MSH-12"));
+        }
+        // a different encoding swaps MSH-1 and MSH-2 out too
+        msg.reparse(OTHER_ENCODING, Projection.ALL);
+        assertEquals(OTHER_ENCODING, msg.encode());
+        assertEquals('#', msg.getEncoding().fieldDelimiter);
+        assertEquals("#", msg.value("MSH-1"));
+        assertEquals("A", msg.value("MSH-3"));
+        assertEquals("666", msg.value("PID-3.2"));
+        msg.reparse(SMALL, Projection.ALL);
+        assertEquals(SMALL, msg.encode());
+        assertEquals('|', msg.getEncoding().fieldDelimiter);
+        assertEquals("A", msg.value("MSH-3"));
+    }
+
+    @Test
+    public void failedReparseLeavesMessageUsable() throws ParseException {
+        final Message msg = new Message(BIG, Projection.NONE);
+        try {
+            msg.reparse("PID|1||999");
+            fail("expected ParseException");
+        } catch (ParseException e) {
+            // expected
+        }
+        assertSameAsFresh(BIG, msg);
+        msg.reparse(SMALL);
+        assertSameAsFresh(SMALL, msg);
+    }
+
+    @Test
+    public void poolReuses() throws ParseException {
+        final Message first = MessagePool.parse(BIG);
+        MessagePool.release(first);
+        final Message second = MessagePool.parse(SMALL);
+        assertSame(first, second);
+        assertSameAsFresh(SMALL, second);
+        // nothing released, so a new one
+        assertNotSame(second, MessagePool.parse(SMALL));
+    }
+
+    @Test
+    public void failedParseKeepsPooledMessage() throws ParseException {
+        final Message msg = MessagePool.parse(BIG);
+        MessagePool.release(msg);
+        try {
+            MessagePool.parse("not hl7");
+            fail("expected ParseException");
+        } catch (ParseException e) {
+            // expected
+        }
+        final Message again = MessagePool.parse(SMALL);
+        assertSame(msg, again);
+        assertSameAsFresh(SMALL, again);
+    }
+
+    @Test
+    public void poolIsBounded() throws ParseException {
+        final Message[] msgs = new Message[MessagePool.MAX_PER_THREAD + 1];
+        for(int i = 0; i < msgs.length; ++i)
+            msgs[i] = MessagePool.parse(SMALL);
+        for(final Message msg : msgs)
+            MessagePool.release(msg);
+        // last in first out, and the one past the limit was dropped
+        for(int i = MessagePool.MAX_PER_THREAD - 1; i >= 0; --i)
+            assertSame(msgs[i], MessagePool.parse(BIG));
+        final Message fresh = MessagePool.parse(BIG);
+        for(final Message msg : msgs)
+            assertNotSame(msg, fresh);
+    }
+}
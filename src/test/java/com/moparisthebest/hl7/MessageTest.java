@@ -0,0 +1,296 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MessageTest {
+
+    static final String ADT = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01^ADT_A01|CTRL1|P|2.5\r" +
+            "EVN|A01|20160101120000\r" +
+            "PID|1||123^^^MRN~456^^^SSN||DOE^JOHN^^^^^L||19700101|M\r" +
+            "PV1|1|I|WARD^101^A\r" +
+            "OBX|1|TX|NOTE||line one\\.br\\line two||||||F";
+
+    @Test
+    public void lazyRoundTrip() throws ParseException {
+        assertEquals(ADT, new Message(ADT, true).encode());
+    }
+
+    @Test
+    public void eagerRoundTrip() throws ParseException {
+        assertEquals(ADT, new Message(ADT, false).encode());
+    }
+
+    @Test
+    public void lazyAndEagerReadTheSame() throws ParseException {
+        final Message lazy = new Message(ADT, true), eager = new Message(ADT, false);
+        for(final String path : new String[]{"MSH-9.2", "MSH-10", "PID-3[2].1", "PID-5.2", "PV1-3.3", "OBX-5"})
+            assertEquals(path, eager.value(path), lazy.value(path));
+        assertEquals("456", lazy.line("PID").field(3).repetition(2).component(1).value());
+    }
+
+    @Test
+    public void lazyRoundTripAfterChange() throws ParseException {
+        final Message msg = new Message(ADT, true);
+        msg.line("PV1").field(3).component(2).value("102");
+        assertEquals(ADT.replace("WARD^101^A", "WARD^102^A"), msg.encode());
+    }
+
+    @Test
+    public void lazyRoundTripWithOtherEncoding() throws ParseException {
+        final String newlines = ADT.replace('\r', '\n');
+        assertEquals(newlines, new Message(newlines, true).encode());
+        assertEquals(newlines, new Message(ADT, true).encode(Message.NEWLINE_ENCODING));
+    }
+
+    @Test
+    public void defaultIsEager() throws ParseException {
+        for(final Line line : new Message(ADT).getLines())
+            assertTrue(line.isExpanded());
+        assertFalse(new Message(ADT, true).getLines().get(1).isExpanded());
+    }
+
+    @Test
+    public void concurrentReadersOfLazyMessage() throws Exception {
+        final StringBuilder sb = new StringBuilder(ADT);
+        for(int i = 0; i < 50; ++i)
+            sb.append("\rOBX|").append(i).append("|TX|NOTE||value ").append(i).append("^").append(i).append("||||||F");
+        final String text = sb.toString();
+        final int threads = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(int round = 0; round < 100; ++round) {
+                final Message msg = new Message(text, true);
+                final CyclicBarrier start = new CyclicBarrier(threads);
+                final List<Future<String>> results = new ArrayList<>();
+                for(int t = 0; t < threads; ++t)
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        final StringBuilder read = new StringBuilder();
+                        for(final Line obx : msg.lines("OBX"))
+                            read.append(obx.getField(5).getComponent(1).value()).append(obx.getField(5).getComponent(2).value()).append(',');
+                        return read.append(msg.value("PID-3[2].1")).toString();
+                    }));
+                final String expected = results.get(0).get();
+                assertTrue(expected, expected.contains(",value 00,value 11,") && expected.endsWith("value 4949,456"));
+                for(final Future<String> result : results)
+                    assertEquals(expected, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void concurrentCopiesOfLazyMessage() throws Exception {
+        final int threads = 4;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            for(int round = 0; round < 100; ++round) {
+                final Message orig = new Message(ADT, true);
+                final CyclicBarrier start = new CyclicBarrier(threads);
+                final List<Future<String>> results = new ArrayList<>();
+                for(int t = 0; t < threads; ++t) {
+                    final String dest = "DEST" + t;
+                    results.add(executor.submit(() -> {
+                        start.await();
+                        final Message copy = new Message(orig);
+                        copy.line("MSH").field(5).value(dest);
+                        copy.line("PID").field(3).repetition(2).component(1).value(dest);
+                        return copy.encode();
+                    }));
+                }
+                for(int t = 0; t < threads; ++t)
+                    assertEquals(ADT.replace("|RECV|", "|DEST" + t + "|").replace("~456^", "~DEST" + t + "^"), results.get(t).get());
+                assertEquals(ADT, orig.encode());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void getAccessorsNeverGrowTheTree() throws ParseException {
+        for(final boolean lazy : new boolean[]{true, false}) {
+            final Message msg = new Message(ADT, lazy);
+            final Line pid = msg.getLine("PID");
+            final Field mrn = pid.getField(3);
+            final int fields = pid.numSubComponents(), repetitions = mrn.numRepetitions(),
+                    components = mrn.getRepetition(1).numSubComponents(), lines = msg.getLines().size();
+
+            assertSame(Line.EMPTY, msg.getLine("ZZZ"));
+            assertSame(Field.EMPTY, pid.getField(40));
+            assertSame(Repetition.EMPTY, mrn.getRepetition(9));
+            assertSame(Component.EMPTY, mrn.getComponent(9));
+            assertSame(SubComponent.EMPTY, mrn.getSubComponent(2, 9, 3));
+            assertEquals("", pid.getSubComponent(40, 2, 3, 4).value());
+            assertEquals("", msg.value("PID-40[2].3.4"));
+            assertEquals("", msg.value("ZZZ-1"));
+
+            assertEquals(fields, pid.numSubComponents());
+            assertEquals(repetitions, mrn.numRepetitions());
+            assertEquals(components, mrn.getRepetition(1).numSubComponents());
+            assertEquals(lines, msg.getLines().size());
+            assertEquals(ADT, msg.encode());
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void emptySentinelsAreReadOnly() {
+        Field.EMPTY.getRepetition(1).getComponent(1).value("changed");
+    }
+
+    @Test
+    public void linesOfTypeIsACopy() throws ParseException {
+        final Message msg = new Message(ADT + "\rOBX|2|TX|NOTE||more");
+        final List<Line> obx = msg.lines("OBX");
+        assertEquals(2, obx.size());
+        obx.remove(0);
+        msg.add("OBX").field(1).value("3");
+        assertEquals(1, obx.size());
+        assertEquals(3, msg.lines("OBX").size());
+        assertTrue(msg.lines("ZZZ").add(new Line("ZZZ")));
+        assertEquals(0, msg.lines("ZZZ").size());
+    }
+
+    @Test
+    public void copyIsIsolatedFromReferencesTakenBefore() throws ParseException {
+        final Message orig = new Message(ADT);
+        final Line pid = orig.line("PID");
+        final Field mrn = pid.field(3);
+        final SubComponent ssn = mrn.repetition(2).component(1).subComponent(1);
+        final Message copy = new Message(orig);
+        // still readable, but shared with copy now, so can't be changed
+        assertEquals("123", pid.getField(3).value());
+        for(final Runnable change : new Runnable[]{
+                () -> pid.field(3).value("999"),
+                () -> mrn.repetition(2).component(1).value("000"),
+                () -> ssn.value("000"),
+                () -> mrn.removeRepetition(1),
+                () -> pid.field(30),
+        }) {
+            try {
+                change.run();
+                fail("expected IllegalStateException");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+        }
+        assertEquals(ADT, orig.encode());
+        assertEquals(ADT, copy.encode());
+        // taken out again it can be
+        orig.line("PID").field(3).value("999");
+        assertEquals("999", orig.value("PID-3"));
+        assertEquals("123", copy.value("PID-3"));
+        assertEquals(ADT, copy.encode());
+    }
+
+    @Test
+    public void copySharesUntilChanged() throws ParseException {
+        final Message orig = new Message(ADT);
+        final Message copy = new Message(orig);
+        for(int i = 0; i < orig.lineList().size(); ++i)
+            assertSame(orig.lineList().get(i), copy.lineList().get(i));
+        copy.line("PID").field(5).component(2).value("JANE");
+        final Line origPid = orig.lineList().get(2), copyPid = copy.lineList().get(2);
+        assertNotSame(origPid, copyPid);
+        // only the path down to what changed was copied
+        assertSame(origPid.getField(3), copyPid.getField(3));
+        assertNotSame(origPid.getField(5), copyPid.getField(5));
+        assertSame(origPid.getField(5).getComponent(1), copyPid.getField(5).getComponent(1));
+        assertSame(orig.lineList().get(3), copy.lineList().get(3));
+        // and a copy of the copy starts out sharing that too
+        final Message copy2 = new Message(copy);
+        assertSame(copyPid, copy2.lineList().get(2));
+        copy2.line("PID").field(5).component(2).value("JILL");
+        assertEquals("JOHN", orig.value("PID-5.2"));
+        assertEquals("JANE", copy.value("PID-5.2"));
+        assertEquals("JILL", copy2.value("PID-5.2"));
+    }
+
+    @Test
+    public void originalChangesDoNotReachCopy() throws ParseException {
+        for(final boolean lazy : new boolean[]{true, false}) {
+            final Message orig = new Message(ADT, lazy);
+            final Message copy = new Message(orig);
+            orig.line("PID").field(5).component(2).value("JANE");
+            for(final Field f : orig.line("OBX"))
+                f.value("x");
+            orig.value("PID-3[2].1", "000");
+            orig.getLines().get(0).field(3).value("OTHER");
+            assertEquals(ADT, copy.encode());
+            assertEquals("JANE", orig.value("PID-5.2"));
+            assertEquals("000", orig.value("PID-3[2].1"));
+            assertEquals("OTHER", orig.value("MSH-3"));
+        }
+    }
+
+    @Test
+    public void copyChangesDoNotReachOriginal() throws ParseException {
+        final Message orig = new Message(ADT);
+        final Message copy = new Message(orig);
+        copy.line("PID").field(5).component(2).value("JANE");
+        copy.line("OBX").field(5).value("changed");
+        copy.add("ZZZ").field(1).value("new");
+        assertEquals(ADT, orig.encode());
+        assertEquals("JANE", copy.value("PID-5.2"));
+        assertEquals(0, orig.lines("ZZZ").size());
+    }
+
+    @Test
+    public void copyPerDestination() throws ParseException {
+        final Message orig = new Message(ADT);
+        final Message[] copies = new Message[3];
+        for(int i = 0; i < copies.length; ++i) {
+            copies[i] = new Message(orig);
+            copies[i].line("MSH").field(5).value("DEST" + i);
+        }
+        for(int i = 0; i < copies.length; ++i)
+            assertEquals(ADT.replace("|RECV|", "|DEST" + i + "|"), copies[i].encode());
+        assertEquals(ADT, orig.encode());
+    }
+
+    @Test
+    public void copyOutlivesReparseOfOriginal() throws ParseException {
+        final Message orig = new Message(ADT);
+        orig.line("PV1").field(3);
+        final Message copy = new Message(orig);
+        orig.reparse("MSH|^~\\&|X|Y|Z|W|20170101||ADT^A08|CTRL2|P|2.5\rPID|1||777\rPV1|1|O");
+        assertEquals("777", orig.value("PID-3"));
+        assertEquals(ADT, copy.encode());
+    }
+}
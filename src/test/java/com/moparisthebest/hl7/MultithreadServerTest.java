@@ -0,0 +1,129 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MultithreadServerTest {
+
+    private static void waitFor(final BooleanSupplier condition) throws InterruptedException {
+        for(int i = 0; i < 500 && !condition.getAsBoolean(); ++i)
+            Thread.sleep(10);
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static boolean closedByServer(final Socket s) throws IOException {
+        s.setSoTimeout(5000);
+        return s.getInputStream().read() == -1;
+    }
+
+    /**
+     * Fills a server that handles one connection with room for one more waiting, then connects a third
+     *
+     * @return true if the second was closed, false if the third was
+     */
+    private static boolean secondClosed(final RejectedExecutionHandler whenSaturated) throws Exception {
+        final ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final MessageProcessor processor = new MessageProcessor() {
+            @Override
+            public Message process(final Message msg) {
+                return null;
+            }
+
+            @Override
+            public void handle(final Throwable e, final Server s) {
+                // ignore
+            }
+        };
+        final MultithreadServer server = new MultithreadServer(ss, processor, Message.DEFAULT_ENCODING,
+                MultithreadServer.newBoundedExecutor(1, 1, whenSaturated));
+        final Thread accepting = new Thread(server);
+        accepting.setDaemon(true);
+        // closing the server fails accept, which run() throws
+        accepting.setUncaughtExceptionHandler((t, e) -> {
+        });
+        accepting.start();
+        try (Socket one = new Socket(ss.getInetAddress(), ss.getLocalPort());
+             Socket two = new Socket(ss.getInetAddress(), ss.getLocalPort())) {
+            waitFor(() -> server.getActiveConnections() == 1 && server.getQueuedConnections() == 1);
+            try (Socket three = new Socket(ss.getInetAddress(), ss.getLocalPort())) {
+                final Socket closed;
+                if(whenSaturated instanceof ThreadPoolExecutor.DiscardOldestPolicy) {
+                    assertTrue(closedByServer(two));
+                    closed = two;
+                } else {
+                    assertTrue(closedByServer(three));
+                    closed = three;
+                }
+                // whichever is left is still waiting its turn
+                waitFor(() -> server.getQueuedConnections() == 1);
+                assertEquals(1, server.getActiveConnections());
+                return closed == two;
+            }
+        } finally {
+            server.close();
+            accepting.join(5000);
+        }
+    }
+
+    @Test
+    public void discardPolicyClosesNewest() throws Exception {
+        assertFalse(secondClosed(new ThreadPoolExecutor.DiscardPolicy()));
+    }
+
+    @Test
+    public void discardOldestPolicyClosesOldest() throws Exception {
+        assertTrue(secondClosed(new ThreadPoolExecutor.DiscardOldestPolicy()));
+    }
+
+    @Test
+    public void callersExecutorIsLeftAlone() throws Exception {
+        final RejectedExecutionHandler handler = new ThreadPoolExecutor.DiscardPolicy();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS, new SynchronousQueue<>(), handler);
+        try (ServerSocket ss = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            new MultithreadServer(ss, msg -> null, Message.DEFAULT_ENCODING, executor);
+            new MultithreadServer(ss, msg -> null, Message.DEFAULT_ENCODING, executor);
+            assertSame(handler, executor.getRejectedExecutionHandler());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void abortPolicyClosesNewest() throws Exception {
+        assertFalse(secondClosed(new ThreadPoolExecutor.AbortPolicy()));
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NioServerTest {
+
+    private static final String MSG = "MSH|^~\\&|A|B|C|D|20160101||ADT^A01|CTRL1|P|2.5\rPID|1||123";
+
+    /**
+     * @return name of the thread msg was processed on
+     */
+    private static String processedOn(final boolean inline) throws IOException, ParseException, InterruptedException {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final AtomicReference<String> thread = new AtomicReference<>();
+        final MessageProcessor processor = msg -> {
+            thread.set(Thread.currentThread().getName());
+            return msg.msa("AA");
+        };
+        final NioServer server = inline ? new NioServer(ssc, processor, Message.DEFAULT_ENCODING, 1, NioServer.INLINE) :
+                new NioServer(ssc, processor);
+        final Thread accepting = new Thread(server);
+        accepting.setDaemon(true);
+        accepting.start();
+        try (Socket s = new Socket("127.0.0.1", ssc.socket().getLocalPort())) {
+            final Message ack = new Message(MSG).writeAndRead(s);
+            assertEquals("AA", ack.getLine("MSA").getField(1).value());
+            assertEquals("CTRL1", ack.getLine("MSA").getField(2).value());
+        } finally {
+            server.close();
+            accepting.join(5000);
+        }
+        return thread.get();
+    }
+
+    @Test
+    public void processesOnWorkersByDefault() throws Exception {
+        assertFalse(processedOn(false).startsWith("NioServer-io-"));
+    }
+
+    @Test
+    public void processesOnIoThreadsOnlyIfInline() throws Exception {
+        assertTrue(processedOn(true).startsWith("NioServer-io-"));
+    }
+
+    @Test
+    public void moreConnectionsThanIoThreads() throws Exception {
+        final ServerSocketChannel ssc = ServerSocketChannel.open();
+        ssc.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        final NioServer server = new NioServer(ssc, msg -> msg.msa("AA"), Message.DEFAULT_ENCODING, 3, NioServer.INLINE);
+        final Thread accepting = new Thread(server);
+        accepting.setDaemon(true);
+        accepting.start();
+        try {
+            // round robin wraps back to the first io thread more than once
+            for(int i = 0; i < 8; ++i)
+                try (Socket s = new Socket("127.0.0.1", ssc.socket().getLocalPort())) {
+                    assertEquals("AA", new Message(MSG).writeAndRead(s).getLine("MSA").getField(1).value());
+                }
+        } finally {
+            server.close();
+            accepting.join(5000);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nullWorkers() throws IOException {
+        try (ServerSocketChannel ssc = ServerSocketChannel.open()) {
+            new NioServer(ssc, msg -> null, Message.DEFAULT_ENCODING, 1, null);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProjectionTest {
+
+    // PID-7 and OBX-5 would come out differently if they were decoded and encoded again
+    private static final String MSG = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ORU^R01|CTRL1|P|2.5\r" +
+            "PID|1||123^^^MRN~456^^^SSN||DOE^JOHN||\\X31\\9700101|M\r" +
+            "OBX|1|TX|NOTE||\\X41\\BC^\\H\\bold\\N\\||||||F";
+
+    private static final Projection PID_3_5 = Projection.of("PID-3, PID-5");
+
+    @Test
+    public void onlyProjectedFieldsAreCreated() throws ParseException {
+        final Message msg = new Message(MSG, PID_3_5);
+        final Line pid = msg.getLine("PID");
+        assertFalse(pid.isExpanded());
+        // nothing past PID-5 is even looked at
+        assertEquals(6, pid.subComponents.size());
+        for(final int i : new int[]{1, 2, 4})
+            assertNull(pid.subComponents.get(i));
+        assertNotNull(pid.subComponents.get(3));
+        assertEquals("456", msg.value("PID-3[2].1"));
+        assertEquals("JOHN", pid.getField(5).getComponent(2).value());
+        assertSame(pid.subComponents.get(3), pid.field(3));
+        assertFalse(pid.isExpanded());
+
+        // not projected at all
+        final Line obx = msg.getLine("OBX");
+        assertFalse(obx.isExpanded());
+        assertTrue(obx.subComponents.isEmpty());
+    }
+
+    @Test
+    public void unprojectedWrittenBackByteForByte() throws ParseException {
+        final Message msg = new Message(MSG, PID_3_5);
+        assertEquals(MSG, msg.encode());
+        msg.getLine("PID").field(5).component(1).value("ROE");
+        assertFalse(msg.getLine("PID").isExpanded());
+        assertEquals(MSG.replace("DOE^", "ROE^"), msg.encode());
+        // the projected field was changed to empty, so everything after it is copied across unchanged
+        msg.getLine("PID").field(3).value("");
+        assertEquals(MSG.replace("DOE^", "ROE^").replace("123^^^MRN~456^^^SSN", ""), msg.encode());
+    }
+
+    @Test
+    public void changesSurviveExpanding() throws ParseException {
+        final Message msg = new Message(MSG, PID_3_5);
+        final Field mrn = msg.getLine("PID").field(3);
+        mrn.repetition(1).component(1).value("999");
+        // PID-7 isn't projected, so this parses the rest of the line
+        assertEquals("19700101", msg.value("PID-7"));
+        assertTrue(msg.getLine("PID").isExpanded());
+        assertSame(mrn, msg.getLine("PID").getField(3));
+        assertEquals("999", msg.value("PID-3"));
+        assertEquals("DOE", msg.value("PID-5.1"));
+    }
+
+    @Test
+    public void segmentTypeAlwaysProjected() throws ParseException {
+        final Message msg = new Message(MSG, Projection.of("PID-1"));
+        final Line pid = msg.lines("PID").get(0);
+        assertEquals("PID", pid.type());
+        assertEquals(2, pid.subComponents.size());
+        assertEquals("1", msg.value("PID-1"));
+    }
+
+    @Test
+    public void reparseDropsFieldsPastTheEnd() throws ParseException {
+        final Message msg = new Message(MSG, PID_3_5);
+        assertEquals("DOE", msg.value("PID-5.1"));
+        msg.reparse("MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A08|CTRL2|P|2.5\rPID|1||777", PID_3_5);
+        assertEquals("777", msg.value("PID-3"));
+        assertEquals("", msg.value("PID-5.1"));
+        assertEquals("MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A08|CTRL2|P|2.5\rPID|1||777", msg.encode());
+    }
+
+    @Test
+    public void copyKeepsProjection() throws ParseException {
+        final Message orig = new Message(MSG, PID_3_5);
+        final Message copy = new Message(orig);
+        copy.getLine("PID").field(3).value("COPY");
+        assertFalse(copy.getLine("PID").isExpanded());
+        assertEquals("123", orig.value("PID-3"));
+        assertEquals(MSG, orig.encode());
+        assertEquals(MSG.replace("123^^^MRN~456^^^SSN", "COPY"), copy.encode());
+    }
+
+    @Test
+    public void parse() {
+        assertEquals("MSH, PID-3, PID-5", Projection.of(" MSH ,PID-3,, PID-5").toString());
+        assertEquals("PID", Projection.of("PID-3, PID").toString());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidType() {
+        Projection.of("PIDX-1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidField() {
+        Projection.of("PID-0");
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+
+public class ServerTest {
+
+    private static final String MSG = "MSH|^~\\&|SEND|FAC|RECV|FAC2|20160101120000||ADT^A01|CTRL%d|P|2.5\rPID|1||123";
+
+    private enum Mode {
+        BLOCKING, PIPELINED, NIO, NIO_INLINE
+    }
+
+    private static Server server(final Mode mode, final MessageProcessor processor) throws IOException {
+        switch (mode) {
+            case BLOCKING:
+                return new Server(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), processor);
+            case PIPELINED:
+                return new Server(new ServerSocket(0, 50, InetAddress.getLoopbackAddress()), processor)
+                        .setPipelined(Executors.newFixedThreadPool(2), 4);
+            default:
+                final ServerSocketChannel ssc = ServerSocketChannel.open();
+                ssc.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+                return mode == Mode.NIO ? new NioServer(ssc, processor) :
+                        new NioServer(ssc, processor, Message.DEFAULT_ENCODING, 1, NioServer.INLINE);
+        }
+    }
+
+    /**
+     * Sends count messages over one connection and returns MSA-1 and MSA-3 of each response
+     */
+    private static String responses(final Server server, final int count) throws Exception {
+        final Thread accepting = new Thread(server);
+        accepting.setDaemon(true);
+        accepting.setUncaughtExceptionHandler((t, e) -> {
+        });
+        accepting.start();
+        final StringBuilder sb = new StringBuilder();
+        try (Socket s = new Socket(server.ss.getInetAddress(), server.ss.getLocalPort())) {
+            s.setSoTimeout(5000);
+            final OutputStream os = s.getOutputStream();
+            for(int i = 0; i < count; ++i)
+                new Message(String.format(MSG, i)).writeTo(os);
+            os.flush();
+            final InputStream is = s.getInputStream();
+            final FrameDecoder decoder = new FrameDecoder();
+            for(int i = 0; i < count; ++i) {
+                final Message ack = decoder.read(is);
+                assertEquals("CTRL" + i, ack.value("MSA-2"));
+                sb.append(ack.value("MSA-1")).append(':').append(ack.value("MSA-3")).append(',');
+            }
+        } finally {
+            server.close();
+            if(server.pipelineWorkers != null)
+                server.pipelineWorkers.shutdown();
+            accepting.join(5000);
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void ackProcessorInEveryMode() throws Exception {
+        for(final Mode mode : Mode.values())
+            assertEquals(mode.name(), "AA:,AA:,", responses(server(mode, (AckProcessor) msg -> AckTemplate.Code.AA), 2));
+    }
+
+    @Test
+    public void overriddenProcessIsCalledInEveryMode() throws Exception {
+        final AckProcessor processor = new AckProcessor() {
+            @Override
+            public AckTemplate.Code acknowledge(final Message msg) {
+                return AckTemplate.Code.AA;
+            }
+
+            @Override
+            public Message process(final Message msg) {
+                final Message ack = msg.msa(AckTemplate.Code.AE.name());
+                ack.line("MSA").field(3).value("from process");
+                return ack;
+            }
+        };
+        for(final Mode mode : Mode.values())
+            assertEquals(mode.name(), "AE:from process,AE:from process,", responses(server(mode, processor), 2));
+    }
+
+    @Test
+    public void plainProcessorInEveryMode() throws Exception {
+        for(final Mode mode : Mode.values())
+            assertEquals(mode.name(), "CA:,CA:,", responses(server(mode, msg -> msg.msa("CA")), 2));
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * The contents of this file are subject to the Mozilla Public License Version 1.1
+ * (the "License"); you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.mozilla.org/MPL/
+ * Software distributed under the License is distributed on an "AS IS" basis,
+ * WITHOUT WARRANTY OF ANY KIND, either express or implied. See the License for the
+ * specific language governing rights and limitations under the License.
+ *
+ * Copyright (c) 2016 Travis Burtrum.
+ *
+ * Alternatively, the contents of this file may be used under the terms of the
+ * GNU General Public License (the "GPL"), in which case the provisions of the GPL are
+ * applicable instead of those above.  If you wish to allow use of your version of this
+ * file only under the terms of the GPL and not to allow others to use your version
+ * of this file under the MPL, indicate your decision by deleting  the provisions above
+ * and replace  them with the notice and other provisions required by the GPL License.
+ * If you do not delete the provisions above, a recipient may use your version of
+ * this file under either the MPL or the GPL.
+ */
+
+package com.moparisthebest.hl7;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubComponentTest {
+
+    /**
+     * Written against the interface before MessageWriter, only implementing encode(StringBuilder, Encoding)
+     */
+    private static final class OldStyle implements SubComponent {
+
+        private String value;
+
+        private OldStyle(final String value) {
+            this.value = value;
+        }
+
+        @Override
+        public SubComponent value(final String value) {
+            this.value = value;
+            return this;
+        }
+
+        @Override
+        public String value() {
+            return value;
+        }
+
+        @Override
+        public boolean equals(final String s) {
+            return value.equals(s);
+        }
+
+        @Override
+        public void encode(final StringBuilder sb, final Encoding enc) {
+            sb.append(enc.encode(value)).append(enc.subComponentDelimiter);
+        }
+    }
+
+    @Test
+    public void oldImplementationsEncodeThroughMessageWriter() {
+        final Encoding enc = Message.DEFAULT_ENCODING;
+        final StringBuilder sb = new StringBuilder();
+        final MessageWriter w = MessageWriter.of(sb);
+        new OldStyle("a|b").encode(w, enc);
+        new OldStyle("").encode(w, enc);
+        // trailing empty ones are trimmed like any other
+        w.trim(enc.subComponentDelimiter, 2).flush();
+        assertEquals("a\\F\\b", sb.toString());
+    }
+
+    @Test
+    public void stringBuilderEncodeStillWorks() throws Exception {
+        final StringBuilder sb = new StringBuilder();
+        new Message("MSH|^~\\&|A|B|C|D|20160101||ADT^A01|1|P|2.5\rPID|1||123^^^MRN").getLine("PID").getField(3).encode(sb, Message.DEFAULT_ENCODING);
+        assertEquals("123^^^MRN|", sb.toString());
+    }
+}